@@ -0,0 +1,49 @@
+package com.twopc.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+
+// releases a MappedByteBuffer right away instead of whenever the GC gets to it
+// without this a compacted segment stays mapped (and its deleted file keeps using disk) until a full GC
+// Java 17 has no public unmap, so this goes through sun.misc.Unsafe.invokeCleaner like most storage engines do;
+// if that is not available the mapping is simply left to the GC
+// the caller must guarantee nothing reads the buffer afterwards, touching an unmapped buffer crashes the JVM
+final class BufferCleaner {
+    private static final Logger logger = LoggerFactory.getLogger(BufferCleaner.class);
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", java.nio.ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Cannot unmap WAL segments explicitly, mappings are released by the GC instead: {}", e.toString());
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private BufferCleaner() {}
+
+    static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("Failed to unmap WAL segment buffer", e);
+        }
+    }
+}
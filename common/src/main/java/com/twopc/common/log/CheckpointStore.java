@@ -0,0 +1,170 @@
+package com.twopc.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// reads and writes wal.checkpoint: the index as of some log position, so startup only replays the log after it
+// a checkpoint holds every transaction still in the index (in flight, or terminal but not yet acknowledged)
+// as its index entry, plus the per-segment record counters compaction relies on
+// the file is written to a temp file and moved into place, so a crash leaves either the old or the new one
+// layout: [int magic][int version][long covered position]
+//         [int segments] { [int id][long size][int records][int dead][int markers] }
+//         [int entries] { [utf transactionId][long entry][long base] }
+//         [int crc32c of everything before]
+class CheckpointStore {
+    private static final Logger logger = LoggerFactory.getLogger(CheckpointStore.class);
+    static final String FILE_NAME = "wal.checkpoint";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x32504343;
+    // version 1 had no bases, such a checkpoint is ignored and the log replayed in full
+    private static final int VERSION = 2;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Path directory;
+    private final Path file;
+
+    CheckpointStore(Path directory) throws IOException {
+        this.directory = directory;
+        this.file = directory.resolve(FILE_NAME);
+        Files.deleteIfExists(directory.resolve(FILE_NAME + TEMP_SUFFIX));
+    }
+
+    void write(Checkpoint checkpoint) throws IOException {
+        Path temp = directory.resolve(FILE_NAME + TEMP_SUFFIX);
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // buffering sits below the checksum so the trailer can be written past it
+            BufferedOutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_BYTES);
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(checkpoint.coveredPosition);
+
+            out.writeInt(checkpoint.segments.size());
+            for (SegmentCounters segment : checkpoint.segments) {
+                out.writeInt(segment.id);
+                out.writeLong(segment.size);
+                out.writeInt(segment.records);
+                out.writeInt(segment.deadRecords);
+                out.writeInt(segment.markerRecords);
+            }
+
+            out.writeInt(checkpoint.entries.size());
+            for (int i = 0; i < checkpoint.entries.size(); i++) {
+                out.writeUTF(checkpoint.entries.key(i));
+                out.writeLong(checkpoint.entries.value(i));
+                out.writeLong(checkpoint.entries.base(i));
+            }
+            out.flush();
+
+            DataOutputStream trailer = new DataOutputStream(buffered);
+            trailer.writeInt((int) crc.getValue());
+            trailer.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // the stored checkpoint, or null if there is none or it cannot be trusted
+    Checkpoint load() {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        CRC32C crc = new CRC32C();
+        try (InputStream buffered = new BufferedInputStream(Files.newInputStream(file), BUFFER_BYTES)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(buffered, crc));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("Ignoring {}, unknown format", file);
+                return null;
+            }
+            long coveredPosition = in.readLong();
+
+            // every counted item takes at least 10 bytes, so a count beyond that is a corrupt file, not a huge one
+            long maxItems = Files.size(file) / 10;
+            int segmentCount = in.readInt();
+            if (segmentCount < 0 || segmentCount > maxItems) {
+                throw new IOException("implausible segment count " + segmentCount);
+            }
+            List<SegmentCounters> segments = new ArrayList<>(segmentCount);
+            for (int i = 0; i < segmentCount; i++) {
+                segments.add(new SegmentCounters(in.readInt(), in.readLong(), in.readInt(), in.readInt(), in.readInt()));
+            }
+
+            int entryCount = in.readInt();
+            if (entryCount < 0 || entryCount > maxItems) {
+                throw new IOException("implausible entry count " + entryCount);
+            }
+            String[] keys = new String[entryCount];
+            long[] values = new long[entryCount];
+            long[] bases = new long[entryCount];
+            for (int i = 0; i < entryCount; i++) {
+                keys[i] = in.readUTF();
+                values[i] = in.readLong();
+                bases[i] = in.readLong();
+            }
+
+            int expected = (int) crc.getValue();
+            if (new DataInputStream(buffered).readInt() != expected) {
+                logger.warn("Ignoring {}, checksum mismatch", file);
+                return null;
+            }
+            return new Checkpoint(coveredPosition, segments, new TransactionIndex.Entries(keys, values, bases));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    // called before anything changes the bytes a checkpoint points into, e.g. compaction moving records
+    void invalidate() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    static class Checkpoint {
+        final long coveredPosition;
+        final List<SegmentCounters> segments;
+        final TransactionIndex.Entries entries;
+
+        Checkpoint(long coveredPosition, List<SegmentCounters> segments, TransactionIndex.Entries entries) {
+            this.coveredPosition = coveredPosition;
+            this.segments = segments;
+            this.entries = entries;
+        }
+    }
+
+    static class SegmentCounters {
+        final int id;
+        // compaction rewrites a segment under the same id, its size tells the two apart
+        final long size;
+        final int records;
+        final int deadRecords;
+        final int markerRecords;
+
+        SegmentCounters(int id, long size, int records, int deadRecords, int markerRecords) {
+            this.id = id;
+            this.size = size;
+            this.records = records;
+            this.deadRecords = deadRecords;
+            this.markerRecords = markerRecords;
+        }
+    }
+}
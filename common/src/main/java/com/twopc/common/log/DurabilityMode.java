@@ -0,0 +1,11 @@
+package com.twopc.common.log;
+
+// how much a WAL append has to guarantee before the caller is released
+// PER_RECORD: every record is written and forced to disk on its own
+// GROUP: records from concurrent callers are written together and share one force()
+// OS_BUFFERED: records are handed to the page cache only, survives a process crash but not a power loss
+public enum DurabilityMode {
+    PER_RECORD,
+    GROUP,
+    OS_BUFFERED
+}
@@ -1,179 +1,968 @@
 package com.twopc.common.log;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.twopc.common.model.Transaction;
 import com.twopc.common.protocol.TransactionState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
+// segmented, append-only WAL
+// records go to the active segment wal-<id>.log until it reaches segment-size-bytes, then a new one is started
+// new segments come preallocated from the SegmentPool, appends overwrite them in place
+// sealed segments are only read, and rewritten in the background by the SegmentCompactor
+// older sealed segments are compressed in the background by the SegmentArchiver and stay readable in place
 public class FileBasedWAL implements WriteAheadLog {
     private static final Logger logger = LoggerFactory.getLogger(FileBasedWAL.class);
+    static final String LEGACY_LOG_FILE = "wal.log";
+    private static final long POOL_REFILL_SECONDS = 1;
+    // a tail reader at the end of the log is woken by every append, this only bounds how late it notices close
+    private static final long TAIL_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
 
-    private final String logFilePath;
-    private final ObjectMapper objectMapper;
-    private final ReadWriteLock lock;
+    private final Path walDirectory;
+    private final StringDictionary dictionary;
+    private final RecordCodec codec;
+
+    // readers of sealed segments take the read side, the compactor takes the write side while it swaps a segment
+    // appends never take it, they only touch the active segment which is never compacted
+    private final ReadWriteLock segmentsLock;
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // txn id -> position of its latest record, rebuilt by replay on open and kept current by the writer
+    private final TransactionIndex index;
+    // every transaction id ever appended, so lookups of unknown ids end before the index or any lock
+    private final TransactionIdFilter knownIds;
+    private final GroupCommitWriter writer;
+    private final CheckpointStore checkpoints;
+    private final SegmentPool pool;
+    private final SegmentCompactor compactor;
+    private final SegmentArchiver archiver;
+
+    // compaction and checkpoints run one at a time, on the maintenance thread or when called directly
+    // (from a request thread, possibly virtual: a lock, not a monitor, so a wait on it does not pin the carrier)
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+    private final ScheduledExecutorService maintenanceScheduler;
+
+    private volatile long lastCheckpointPosition = LogPosition.NONE;
+    private volatile int lastCheckpointTransactions;
+    private final int replayParallelism;
+    private final String name;
+    private final int tailBufferSize;
+    private final Set<Tail> tails = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger tailCount = new AtomicInteger();
+    private String recoveryMode;
+    private ParallelReplayer.Result recovery;
+    private long recoveryMillis;
 
     public FileBasedWAL(String serviceName, String baseDir) {
-        this.logFilePath = baseDir + "/" + serviceName + "/wal.log";
-        this.objectMapper = new ObjectMapper();
-        this.objectMapper.registerModule(new JavaTimeModule());
-        this.objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
-        this.lock = new ReentrantReadWriteLock();
+        this(serviceName, optionsFor(baseDir));
+    }
 
-        initializeLogFile();
+    public FileBasedWAL(String serviceName, WalOptions options) {
+        this(Paths.get(options.getBaseDir(), serviceName), serviceName, options);
     }
 
-    private void initializeLogFile() {
+    // name only shows up in thread names, the ShardedWAL opens one of these per shard directory
+    FileBasedWAL(Path walDirectory, String name, WalOptions options) {
+        this.walDirectory = walDirectory;
+        this.segmentsLock = new ReentrantReadWriteLock();
+        this.index = new TransactionIndex();
+        this.replayParallelism = options.getReplayParallelism();
+        this.name = name;
+        this.tailBufferSize = Math.max(1, options.getTailBufferSize());
+
         try {
-            Path path = Paths.get(logFilePath);
-            Files.createDirectories(path.getParent());
-            if (!Files.exists(path)) {
-                Files.createFile(path);
-                logger.info("Created WAL file: {}", logFilePath);
+            Files.createDirectories(walDirectory);
+            this.dictionary = new StringDictionary(walDirectory);
+            this.codec = new RecordCodec(dictionary);
+            this.checkpoints = new CheckpointStore(walDirectory);
+            this.pool = new SegmentPool(walDirectory, options);
+            boolean newLog = openSegments();
+            this.knownIds = TransactionIdFilter.create(options.getBloomFilterExpectedIds(),
+                    options.getBloomFilterFalsePositiveRate()).loadInto(walDirectory, newLog);
+            if (newLog) {
+                // stored right away, so a crash before the first checkpoint does not leave a log without its filter
+                knownIds.write(walDirectory);
             }
+            recover();
+            this.writer = new GroupCommitWriter(name, segments.lastEntry().getValue(), this::rollSegment, this::applyToIndex, options);
         } catch (IOException e) {
-            throw new LogException("Failed to initialize WAL file: " + logFilePath, e);
+            throw new LogException("Failed to open WAL in " + walDirectory, e);
+        }
+
+        this.compactor = new SegmentCompactor(walDirectory, segments, segmentsLock, index, codec, checkpoints, knownIds,
+                pool, options.getCompactionThreshold());
+        this.archiver = new SegmentArchiver(walDirectory, segments, segmentsLock, options);
+        this.maintenanceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-maintenance-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long compactionInterval = Math.max(1, options.getCompactionIntervalSeconds());
+        maintenanceScheduler.scheduleWithFixedDelay(this::compactQuietly, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+        maintenanceScheduler.scheduleWithFixedDelay(this::refillPoolQuietly, 0, POOL_REFILL_SECONDS, TimeUnit.SECONDS);
+        if (archiver.isEnabled()) {
+            maintenanceScheduler.scheduleWithFixedDelay(this::archiveQuietly, compactionInterval, compactionInterval, TimeUnit.SECONDS);
         }
+        long checkpointInterval = options.getCheckpointIntervalSeconds();
+        if (checkpointInterval > 0) {
+            maintenanceScheduler.scheduleWithFixedDelay(this::checkpointQuietly, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
+        }
+
+        logger.info("Opened WAL {} with durability {}, {} segments", walDirectory, options.getDurability(), segments.size());
     }
 
-    @Override
-    public void writeLog(Transaction transaction) {
-        lock.writeLock().lock();
+    private static WalOptions optionsFor(String baseDir) {
+        WalOptions options = new WalOptions();
+        options.setBaseDir(baseDir);
+        return options;
+    }
+
+    // returns whether the log was created just now
+    private boolean openSegments() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        Set<Integer> archivedIds = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(walDirectory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SegmentCompactor.TEMP_SUFFIX) || name.endsWith(Segment.ARCHIVED_SUFFIX + SegmentArchive.TEMP_SUFFIX)) {
+                    // leftover of a compaction or archival that crashed before its swap, the original segment is intact
+                    Files.delete(file);
+                    continue;
+                }
+                int id = Segment.parseId(name);
+                if (id >= 0) {
+                    ids.add(id);
+                }
+                int archivedId = Segment.parseArchivedId(name);
+                if (archivedId >= 0) {
+                    archivedIds.add(archivedId);
+                }
+            }
+        }
+        // both files exist when a crash came between writing the archive and deleting the segment,
+        // or between compacting an archived segment and deleting its archive; the uncompressed file is the current one
+        for (Iterator<Integer> archived = archivedIds.iterator(); archived.hasNext(); ) {
+            int id = archived.next();
+            if (ids.contains(id)) {
+                Files.delete(walDirectory.resolve(Segment.archivedFileName(id)));
+                archived.remove();
+            }
+        }
+
+        // a single-file log from before segmentation becomes the first segment
+        Path legacy = walDirectory.resolve(LEGACY_LOG_FILE);
+        if (Files.exists(legacy)) {
+            if (ids.isEmpty()) {
+                Files.move(legacy, walDirectory.resolve(Segment.fileName(1)));
+                ids.add(1);
+                logger.info("Adopted legacy {} as the first WAL segment", legacy);
+            } else {
+                logger.warn("Ignoring legacy {} because segments already exist in {}", legacy, walDirectory);
+            }
+        }
+
+        Collections.sort(ids);
+        for (int id : ids) {
+            segments.put(id, Segment.open(walDirectory, id));
+        }
+        for (int id : archivedIds) {
+            segments.put(id, Segment.openArchived(walDirectory, id));
+        }
+        boolean newLog = segments.isEmpty();
+        if (newLog) {
+            segments.put(1, pool.take(1));
+            logger.info("Created WAL segment {}", walDirectory.resolve(Segment.fileName(1)));
+        }
+        if (segments.lastEntry().getValue().isArchived()) {
+            // only sealed segments are archived, appends need a writable one behind them
+            Segment next = pool.take(segments.lastKey() + 1);
+            segments.put(next.getId(), next);
+        }
+
+        // JSON segments are only read from now on, new records go to a fresh binary segment
+        Segment last = segments.lastEntry().getValue();
+        if (last.getFormat() == SegmentFormat.JSON_LINES) {
+            long valid = codec.legacyValidLength(last);
+            if (valid < last.size()) {
+                logger.warn("Truncating {} bytes of torn record at the end of {}", last.size() - valid, last.getPath());
+                last.truncate(valid);
+            }
+            Segment next = pool.take(last.getId() + 1);
+            segments.put(next.getId(), next);
+            logger.info("Sealed legacy JSON segment {}, new records go to {}", last.getPath(), next.getPath());
+        }
+
+        // everything but the active segment is read through a read-only mapping
+        for (Segment sealed : segments.headMap(segments.lastKey(), false).values()) {
+            sealed.seal();
+        }
+        return newLog;
+    }
+
+    // loads the latest checkpoint and replays only the log after it, so startup time follows the amount of
+    // live transactions rather than the length of the history; without a usable checkpoint everything is replayed
+    private void recover() throws IOException {
+        long startedAt = System.nanoTime();
+        CheckpointStore.Checkpoint checkpoint = checkpoints.load();
+        long from = LogPosition.NONE;
+        if (checkpoint != null && restore(checkpoint)) {
+            from = checkpoint.coveredPosition;
+            lastCheckpointPosition = from;
+            lastCheckpointTransactions = checkpoint.entries.size();
+        }
+        recoveryMode = from == LogPosition.NONE ? "full-replay" : "checkpoint";
+        recovery = new ParallelReplayer(segments, index, knownIds, codec, replayParallelism).replay(from);
+        recoveryMillis = (System.nanoTime() - startedAt) / 1_000_000;
+        logger.info("Recovered WAL {} by {}: {} transactions in {} ms (~{} bytes per indexed transaction)",
+                walDirectory, recoveryMode, index.size(), recoveryMillis, index.estimatedBytesPerEntry());
+        logger.info("Replayed {} records ({} bytes) from {} segments on {} threads in {} ms: {} records/s, {} MB/s",
+                recovery.records, recovery.bytes, recovery.segments, recovery.threads, recovery.millis(),
+                recovery.recordsPerSecond(), String.format("%.1f", recovery.megabytesPerSecond()));
+    }
+
+    // a checkpoint is only used if the segments it describes are still exactly there,
+    // compaction deletes the checkpoint before it moves records, so this guards against files changed by hand
+    private boolean restore(CheckpointStore.Checkpoint checkpoint) {
+        int coveredId = LogPosition.segment(checkpoint.coveredPosition);
+        Segment covered = segments.get(coveredId);
+        boolean usable = covered != null
+                && covered.getFormat() == SegmentFormat.BINARY
+                && covered.size() >= LogPosition.offset(checkpoint.coveredPosition)
+                && checkpoint.segments.size() == segments.headMap(coveredId, true).size();
+        for (CheckpointStore.SegmentCounters counters : checkpoint.segments) {
+            Segment segment = segments.get(counters.id);
+            // sealed segments never change size unless compaction rewrote them
+            usable &= segment != null && (counters.id == coveredId || segment.size() == counters.size);
+        }
+        if (!usable) {
+            logger.warn("WAL checkpoint at {} does not match the segments in {}, replaying the whole log",
+                    LogPosition.toString(checkpoint.coveredPosition), walDirectory);
+            return false;
+        }
+
+        for (CheckpointStore.SegmentCounters counters : checkpoint.segments) {
+            segments.get(counters.id).restoreCounters(counters.records, counters.deadRecords, counters.markerRecords);
+        }
+        for (int i = 0; i < checkpoint.entries.size(); i++) {
+            index.put(checkpoint.entries.key(i), checkpoint.entries.value(i), checkpoint.entries.base(i));
+            knownIds.add(checkpoint.entries.key(i));
+        }
+        return true;
+    }
+
+    // shared by replay and the writer, so the live index always equals what a restart would rebuild
+    private void applyToIndex(WalRecord record) {
+        segments.get(LogPosition.segment(record.getPosition())).recordAdded(record.getType());
+        knownIds.add(record.getTransactionId());
+        index.apply(record.getTransactionId(), record.getType(), record.getPosition(), record.isTerminal(), this::recordDied);
+        for (Tail tail : tails) {
+            LockSupport.unpark(tail.reader);
+        }
+    }
+
+    private void recordDied(long position) {
+        Segment owner = segments.get(LogPosition.segment(position));
+        if (owner != null) {
+            owner.recordDied();
+        }
+    }
+
+    // called by the writer's current leader when the active segment is full
+    // the full segment is trimmed to its data before the next one exists, so only the newest segment
+    // of the log can ever have file space beyond its data
+    private Segment rollSegment(Segment full) throws IOException {
+        full.force();
+        full.trimToSize();
+        full.seal();
+        Segment next = pool.take(full.getId() + 1);
+        segments.put(next.getId(), next);
+        logger.info("Sealed WAL segment {} at {} bytes, rolled to {}", full.getPath(), full.size(), next.getPath());
+        return next;
+    }
+
+    private void compactQuietly() {
+        try {
+            compactNow();
+        } catch (RuntimeException e) {
+            logger.error("WAL compaction run failed", e);
+        }
+    }
+
+    private void archiveQuietly() {
+        try {
+            archiveNow();
+        } catch (RuntimeException e) {
+            logger.error("WAL archival run failed", e);
+        }
+    }
+
+    private void refillPoolQuietly() {
         try {
-            String jsonLine = objectMapper.writeValueAsString(transaction);
+            pool.refill();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not preallocate WAL segment files in {}, rolls will preallocate inline", walDirectory, e);
+        }
+    }
 
-            try (BufferedWriter writer = new BufferedWriter(
-                    new FileWriter(logFilePath, true)
-            )){
-                writer.write(jsonLine);
-                writer.newLine();
-                writer.flush();
+    private void checkpointQuietly() {
+        try {
+            maintenanceLock.lock();
+            try {
+                Segment active = segments.lastEntry().getValue();
+                // nothing was appended since the last checkpoint
+                if (LogPosition.of(active.getId(), active.size()) != lastCheckpointPosition) {
+                    writeCheckpoint();
+                }
+            } finally {
+                maintenanceLock.unlock();
             }
+        } catch (IOException | RuntimeException e) {
+            logger.error("WAL checkpoint failed", e);
+        }
+    }
+
+    @Override
+    public void checkpoint() {
+        maintenanceLock.lock();
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            throw new LogException("Failed to write WAL checkpoint in " + walDirectory, e);
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+
+    // called with maintenanceLock held
+    private void writeCheckpoint() throws IOException {
+        long startedAt = System.nanoTime();
+        CheckpointStore.Checkpoint checkpoint = writer.whileIdle(this::captureCheckpoint);
+        // os-buffered appends are not forced, the records a checkpoint covers have to be
+        segments.get(LogPosition.segment(checkpoint.coveredPosition)).force();
+        // the filter goes first: it already knows every id the checkpoint covers, and a checkpoint must
+        // never be newer than the filter stored next to it, replay only adds what comes after the checkpoint
+        knownIds.write(walDirectory);
+        checkpoints.write(checkpoint);
+        lastCheckpointPosition = checkpoint.coveredPosition;
+        lastCheckpointTransactions = checkpoint.entries.size();
+        logger.info("Wrote WAL checkpoint at {} with {} transactions in {} ms", LogPosition.toString(checkpoint.coveredPosition),
+                checkpoint.entries.size(), (System.nanoTime() - startedAt) / 1_000_000);
+    }
+
+    // runs while the writer is idle: index, counters and the covered position all describe the same point in the log
+    private CheckpointStore.Checkpoint captureCheckpoint() {
+        Segment active = segments.lastEntry().getValue();
+        List<CheckpointStore.SegmentCounters> counters = new ArrayList<>(segments.size());
+        for (Segment segment : segments.values()) {
+            counters.add(new CheckpointStore.SegmentCounters(segment.getId(), segment.size(), segment.getRecords(),
+                    segment.getDeadRecords(), segment.getMarkerRecords()));
+        }
+        return new CheckpointStore.Checkpoint(LogPosition.of(active.getId(), active.size()), counters, index.entries());
+    }
 
+    @Override
+    public void writeLog(Transaction transaction) {
+        try {
+            appendAsync(transaction).join();
             logger.debug("Wrote to WAL: {}", transaction);
+        } catch (CompletionException e) {
+            throw new LogException("Failed to write to WAL: " + transaction.getTransactionId(), GroupCommitWriter.unwrap(e));
+        }
+    }
+
+    // the record is encoded on the calling thread, only the write itself is left to the writer thread
+    @Override
+    public CompletableFuture<Long> appendAsync(Transaction transaction) {
+        try {
+            return writer.appendAsync(codec.encode(transaction));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // a transaction without a record yet is written in full, after that only the change goes to the log
+    @Override
+    public void writeTransition(Transaction transaction) {
+        if (!index.contains(transaction.getTransactionId())) {
+            writeLog(transaction);
+            return;
+        }
+        try {
+            writer.append(codec.encodeTransition(transaction));
+            logger.debug("Wrote transition to WAL: {}", transaction);
         } catch (IOException e) {
             throw new LogException("Failed to write to WAL: " + transaction.getTransactionId(), e);
-        } finally {
-            lock.writeLock().unlock();
         }
     }
 
     @Override
-    public Optional<Transaction> readLog(String transactionId) {
-        lock.readLock().lock();
+    public void writeBatch(WalBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
         try {
-            List<Transaction> allTransactions = readAllTransactionsFromFile();
-            return allTransactions.stream()
-                    .filter(txn -> txn.getTransactionId().equals(transactionId))
-                    .reduce((first, second) -> second);
-        } finally {
-            lock.readLock().unlock();
+            appendBatchAsync(batch).join();
+            logger.debug("Wrote batch of {} records to WAL", batch.size());
+        } catch (CompletionException e) {
+            throw new LogException("Failed to write batch of " + batch.size() + " records to WAL", GroupCommitWriter.unwrap(e));
         }
     }
 
+    // encodes the whole batch on the calling thread, then hands it to the writer as one contiguous range
+    // a transition of a transaction the index does not know yet is written in full, like writeTransition does
     @Override
-    public List<Transaction> readLogsByState(TransactionState state) {
-        lock.readLock().lock();
+    public CompletableFuture<Void> appendBatchAsync(WalBatch batch) {
+        if (batch.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<WalRecord> records = new ArrayList<>(batch.size());
         try {
-            List<Transaction> allTransactions = readAllTransactionsFromFile();
-            return allTransactions.stream()
-                    .filter(txn -> txn.getState().equals(state))
-                    .collect(Collectors.toList());
+            for (WalBatch.Entry entry : batch.entries()) {
+                switch (entry.kind) {
+                    case FULL -> records.add(codec.encode(entry.transaction));
+                    case TRANSITION -> records.add(index.contains(entry.transactionId)
+                            ? codec.encodeTransition(entry.transaction) : codec.encode(entry.transaction));
+                    case ACK -> records.add(codec.encodeMarker(RecordType.ACK, entry.transactionId));
+                }
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return writer.appendBatchAsync(records);
+    }
+
+    @Override
+    public Optional<Transaction> readLog(String transactionId) {
+        if (!knownIds.mightContain(transactionId)) {
+            return Optional.empty();
+        }
+        segmentsLock.readLock().lock();
+        try {
+            TransactionIndex.State state = index.lookup(transactionId);
+            if (state.entry == TransactionIndex.NO_POSITION) {
+                return Optional.empty();
+            }
+            WalRecord latest = readAt(TransactionIndex.position(state.entry));
+            return Optional.of(state.base == TransactionIndex.NO_POSITION
+                    ? codec.decode(latest)
+                    : codec.fold(codec.decode(readAt(state.base)), latest));
+        } catch (IOException e) {
+            throw new LogException("Failed to read from WAL: " + transactionId, e);
         } finally {
-            lock.readLock().unlock();
+            segmentsLock.readLock().unlock();
         }
     }
 
-    private List<Transaction> readAllTransactionsFromFile() {
+    @Override
+    public List<Transaction> readLogsByState(TransactionState state) {
+        List<Transaction> transactions = new ArrayList<>();
+        // the state is in the record header, records in other states are never decoded
+        forEachLatest(record -> record.getState() == state, transactions::add);
+        return transactions;
+    }
+
+    @Override
+    public List<Transaction> readAllLogs() {
         List<Transaction> transactions = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFilePath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    Transaction txn = objectMapper.readValue(line, Transaction.class);
-                    transactions.add(txn);
+        forEachLatest(record -> true, transactions::add);
+        return transactions;
+    }
+
+    @Override
+    public boolean mightContain(String transactionId) {
+        // an incomplete filter does not know the ids compaction dropped before it was rebuilt
+        return !knownIds.isComplete() || knownIds.mightContain(transactionId);
+    }
+
+    // after transactions were copied in from another log: its filter also knows the ids it compacted away,
+    // which no copy brought along; stored with the next checkpoint
+    void addKnownIdsOf(FileBasedWAL source) {
+        knownIds.addAll(source.knownIds);
+    }
+
+    @Override
+    public TransactionCursor query(WalQuery query) {
+        return new QueryCursor(query);
+    }
+
+    // called with the segments read lock held
+    private WalRecord readAt(long position) throws IOException {
+        Segment segment = segments.get(LogPosition.segment(position));
+        if (segment == null) {
+            throw new IOException("No WAL segment for " + LogPosition.toString(position));
+        }
+        return codec.readAt(segment, LogPosition.offset(position));
+    }
+
+    // visits the latest snapshot of every live transaction in log order, decoding only records the filter accepts
+    // a record is the latest one exactly when the index points at it, so no per-scan map is needed
+    // a TRANSITION is folded onto its base, which is read separately since it usually sits in an earlier segment
+    private void forEachLatest(Predicate<WalRecord> filter, Consumer<Transaction> consumer) {
+        for (Integer id : new ArrayList<>(segments.keySet())) {
+            segmentsLock.readLock().lock();
+            try {
+                Segment segment = segments.get(id);
+                if (segment == null) {
+                    continue;
                 }
+                codec.scan(segment, segment.size(), record -> {
+                    if (!record.getType().carriesState() || !filter.test(record)) {
+                        return;
+                    }
+                    TransactionIndex.State state = index.lookup(record.getTransactionId());
+                    if (state.entry != TransactionIndex.NO_POSITION && TransactionIndex.position(state.entry) == record.getPosition()) {
+                        try {
+                            consumer.accept(state.base == TransactionIndex.NO_POSITION
+                                    ? codec.decode(record)
+                                    : codec.fold(codec.decode(readAt(state.base)), record));
+                        } catch (IOException e) {
+                            throw new LogException("Failed to decode WAL record at " + LogPosition.toString(record.getPosition()), e);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                throw new LogException("Failed to read from WAL", e);
+            } finally {
+                segmentsLock.readLock().unlock();
             }
-        } catch (FileNotFoundException e) {
-            return transactions;
-        } catch (IOException e) {
-            throw new LogException("Failed to read from WAL", e);
         }
-        return transactions;
     }
 
-    private Map<String, Transaction> getLatestTransactionSnapshots() {
-        List<Transaction> allTransactions = readAllTransactionsFromFile();
-        Map<String, Transaction> latestSnapshots = new HashMap<>();
-        for (Transaction txn : allTransactions) {
-            latestSnapshots.put(txn.getTransactionId(), txn);
+    // a filtered page of the log on top of a LogWalker
+    private final class QueryCursor implements TransactionCursor {
+        private final WalQuery query;
+        private final LogWalker walker;
+        private Transaction pending;
+        private String pendingCursor;
+        private int returned;
+
+        QueryCursor(WalQuery query) {
+            this.query = query;
+            this.walker = new LogWalker(query.getCursor());
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (pending == null && !walker.endOfLog && (query.getLimit() == 0 || returned < query.getLimit())) {
+                pendingCursor = walker.token();
+                pending = walker.next(this::latestMatching);
+                if (pending == null) {
+                    // a query pages through the log as it is now, it does not wait for more
+                    walker.endOfLog = true;
+                }
+            }
+            return pending != null;
+        }
+
+        @Override
+        public Transaction next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Transaction next = pending;
+            pending = null;
+            returned++;
+            return next;
+        }
+
+        @Override
+        public String cursor() {
+            if (pending != null) {
+                return pendingCursor;
+            }
+            return walker.endOfLog ? null : walker.token();
+        }
+
+        @Override
+        public void close() {
+            pending = null;
+        }
+
+        // the transaction if this is its latest record and it passes the filter
+        private Transaction latestMatching(WalRecord record) throws IOException {
+            if (!record.getType().carriesState() || !query.matchesHeader(record)) {
+                return null;
+            }
+            TransactionIndex.State state = index.lookup(record.getTransactionId());
+            if (state.entry == TransactionIndex.NO_POSITION || TransactionIndex.position(state.entry) != record.getPosition()) {
+                return null;
+            }
+            if (query.isUnsettled() && TransactionIndex.isSettled(state.entry)) {
+                return null;
+            }
+            Transaction transaction = state.base == TransactionIndex.NO_POSITION
+                    ? codec.decode(record)
+                    : codec.fold(codec.decode(readAt(state.base)), record);
+            return query.matches(transaction) ? transaction : null;
         }
-        return latestSnapshots;
     }
 
     @Override
-    public List<Transaction> readAllLogs() {
-        lock.readLock().lock();
-        try {
-            Map<String, Transaction> latestTransactions = getLatestTransactionSnapshots();
-            return new ArrayList<>(latestTransactions.values());
-        } finally {
-            lock.readLock().unlock();
+    public WalSubscription tail(String fromCursor, Consumer<WalChange> consumer) {
+        Tail tail = new Tail(fromCursor, consumer);
+        tails.add(tail);
+        tail.start();
+        return tail;
+    }
+
+    // a reader thread walks the log and fills a bounded buffer, a dispatcher thread empties it into the consumer
+    // a slow consumer fills the buffer and the reader simply stops reading ahead, the log itself is the backlog,
+    // so appends never wait for a subscriber
+    // the reader only sees records up to the segment size, which the writer moves after the force: only durable
+    // records are delivered
+    private final class Tail implements WalSubscription {
+        private final LogWalker walker;
+        private final Consumer<WalChange> consumer;
+        private final BlockingQueue<WalChange> buffer;
+        private final Thread reader;
+        private final Thread dispatcher;
+        private volatile boolean closed;
+        private volatile String delivered;
+
+        Tail(String fromCursor, Consumer<WalChange> consumer) {
+            this.walker = new LogWalker(fromCursor);
+            this.consumer = consumer;
+            this.buffer = new ArrayBlockingQueue<>(tailBufferSize);
+            this.delivered = fromCursor;
+            int id = tailCount.incrementAndGet();
+            this.reader = new Thread(this::read, "wal-tail-reader-" + name + "-" + id);
+            this.dispatcher = new Thread(this::dispatch, "wal-tail-" + name + "-" + id);
+            reader.setDaemon(true);
+            dispatcher.setDaemon(true);
+        }
+
+        void start() {
+            reader.start();
+            dispatcher.start();
+        }
+
+        private void read() {
+            try {
+                while (!closed) {
+                    WalChange change = walker.next(this::toChange);
+                    if (change == null) {
+                        LockSupport.parkNanos(this, TAIL_PARK_NANOS);
+                        continue;
+                    }
+                    while (!closed && !buffer.offer(change, TAIL_PARK_NANOS, TimeUnit.NANOSECONDS)) {
+                        // consumer is behind, wait for room
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+            } catch (RuntimeException e) {
+                logger.error("WAL tail {} stopped reading {}", reader.getName(), walDirectory, e);
+                close();
+            }
+        }
+
+        private void dispatch() {
+            try {
+                while (!closed) {
+                    WalChange change = buffer.poll(TAIL_PARK_NANOS, TimeUnit.NANOSECONDS);
+                    if (change != null && !closed) {
+                        consumer.accept(change);
+                        delivered = change.getCursor();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+            } catch (RuntimeException e) {
+                logger.warn("WAL tail {} stopped, its consumer failed at {}", dispatcher.getName(), delivered, e);
+                close();
+            }
+        }
+
+        // called with the segments read lock held, after the walker moved past the record
+        private WalChange toChange(WalRecord record) throws IOException {
+            String transactionId = record.getTransactionId();
+            return switch (record.getType()) {
+                case TOMBSTONE -> new WalChange(WalChange.Kind.DELETE, transactionId, null, record.getPosition(), walker.token());
+                case ACK -> new WalChange(WalChange.Kind.ACKNOWLEDGE, transactionId, null, record.getPosition(), walker.token());
+                case TRANSACTION -> new WalChange(WalChange.Kind.UPDATE, transactionId, codec.decode(record),
+                        record.getPosition(), walker.token());
+                case TRANSITION -> {
+                    // the index knows the base of the latest transition; every transition after that base has the same
+                    // one, for an older transition the base may already be compacted away
+                    TransactionIndex.State state = index.lookup(transactionId);
+                    Transaction transaction = state.base != TransactionIndex.NO_POSITION && state.base < record.getPosition()
+                            ? codec.fold(codec.decode(readAt(state.base)), record)
+                            : codec.decodeTransition(record);
+                    yield new WalChange(WalChange.Kind.UPDATE, transactionId, transaction, record.getPosition(), walker.token());
+                }
+            };
+        }
+
+        @Override
+        public String cursor() {
+            return delivered;
+        }
+
+        @Override
+        public boolean isActive() {
+            return !closed;
+        }
+
+        // never interrupts the reader, an interrupt during a read would close the segment's channel
+        @Override
+        public void close() {
+            closed = true;
+            tails.remove(this);
+            LockSupport.unpark(reader);
+        }
+    }
+
+    interface RecordVisitor<T> {
+        // null skips the record
+        T visit(WalRecord record) throws IOException;
+    }
+
+    // walks the log record by record from a resumable token, taking the segments read lock for one record at a time
+    // so compaction and appends are never held up by a slow reader
+    // the token is <segment>-<offset>-<salt>: a segment rewritten by compaction gets a new salt and
+    // the offset no longer points at a record boundary, such a segment is started over from its first record
+    private final class LogWalker {
+        private static final long SEGMENT_START = -1;
+
+        private int segmentId;
+        private long offset = SEGMENT_START;
+        private int salt;
+        // set by the owner once it stops reading
+        boolean endOfLog;
+
+        LogWalker(String token) {
+            if (token == null || token.isEmpty()) {
+                return;
+            }
+            String[] parts = token.split("-");
+            try {
+                if (parts.length != 3) {
+                    throw new NumberFormatException(token);
+                }
+                segmentId = Integer.parseInt(parts[0]);
+                offset = Long.parseLong(parts[1]);
+                salt = Integer.parseUnsignedInt(parts[2], 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid WAL cursor: " + token);
+            }
+        }
+
+        String token() {
+            return segmentId + "-" + offset + "-" + Integer.toHexString(salt);
+        }
+
+        // the first record the visitor does not skip, visited while the read lock is still held, since records of
+        // sealed segments are views into their mapping; null once the durable end of the log is reached
+        <T> T next(RecordVisitor<T> visitor) {
+            while (true) {
+                segmentsLock.readLock().lock();
+                try {
+                    Map.Entry<Integer, Segment> entry = segments.ceilingEntry(segmentId);
+                    if (entry == null) {
+                        return null;
+                    }
+                    Segment segment = entry.getValue();
+                    if (entry.getKey() != segmentId || offset == SEGMENT_START || segment.salt() != salt) {
+                        segmentId = entry.getKey();
+                        offset = segment.dataStart();
+                        salt = segment.salt();
+                    }
+                    if (offset >= segment.size()) {
+                        if (segments.higherKey(segmentId) == null) {
+                            return null;
+                        }
+                        segmentId++;
+                        offset = SEGMENT_START;
+                        continue;
+                    }
+
+                    WalRecord record = codec.readAt(segment, offset);
+                    offset += record.length();
+                    T visited = visitor.visit(record);
+                    if (visited != null) {
+                        return visited;
+                    }
+                } catch (IOException e) {
+                    throw new LogException("Failed to read WAL at " + LogPosition.toString(LogPosition.of(segmentId, Math.max(0, offset))), e);
+                } finally {
+                    segmentsLock.readLock().unlock();
+                }
+            }
         }
     }
 
+    // appends a tombstone, the transaction disappears from lookups right away
+    // and its records are dropped when the compactor reaches their segments
     @Override
     public void deleteLog(String transactionId) {
-        lock.writeLock().lock();
         try {
-            List<Transaction> allTransactions = readAllTransactionsFromFile();
-            List<Transaction> filtered = allTransactions.stream()
-                    .filter(txn -> !txn.getTransactionId().equals(transactionId))
-                    .toList();
-
-            rewriteLogFile(filtered);
-
+            writer.append(codec.encodeMarker(RecordType.TOMBSTONE, transactionId));
             logger.info("Deleted transaction from WAL: {}", transactionId);
         } catch (IOException e) {
             throw new LogException("Failed to delete from WAL: " + transactionId, e);
-        } finally {
-            lock.writeLock().unlock();
         }
     }
 
-    // since log is append only, so we can't delete a line in the middle
-    // temp file is created first to prevent the original file from being corrupted in case of crash while rewriting
-    private void rewriteLogFile(List<Transaction> filtered) throws IOException {
-        Path path = Paths.get(logFilePath);
-        Path tempPath = Paths.get(logFilePath + ".tmp");
+    @Override
+    public void acknowledge(String transactionId) {
+        try {
+            writer.append(codec.encodeMarker(RecordType.ACK, transactionId));
+            logger.debug("Acknowledged transaction in WAL: {}", transactionId);
+        } catch (IOException e) {
+            throw new LogException("Failed to acknowledge in WAL: " + transactionId, e);
+        }
+    }
+
+    // the latest record is terminal and was acknowledged by everyone involved
+    boolean isSettled(String transactionId) {
+        long entry = index.get(transactionId);
+        return entry != TransactionIndex.NO_POSITION && TransactionIndex.isSettled(entry);
+    }
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempPath.toFile()))) {
-            for (Transaction transaction : filtered) {
-                String jsonLine = objectMapper.writeValueAsString(transaction);
-                writer.write(jsonLine);
-                writer.newLine();
+    @Override
+    public String getLogFilePath() {
+        return walDirectory.toString();
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        long totalBytes = 0;
+        long diskBytes = 0;
+        int archivedSegments = 0;
+        for (Segment segment : segments.values()) {
+            totalBytes += segment.size();
+            diskBytes += segment.diskSize();
+            archivedSegments += segment.isArchived() ? 1 : 0;
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("path", walDirectory.toString());
+        stats.put("segments", segments.size());
+        stats.put("activeSegment", segments.lastKey());
+        stats.put("sizeBytes", totalBytes);
+        stats.put("diskBytes", diskBytes);
+        stats.put("archivedSegments", archivedSegments);
+        stats.put("archivalRuns", archiver.getArchivedSegments());
+        stats.put("archivalSavedBytes", archiver.getSavedBytes());
+        stats.put("dictionaryEntries", dictionary.size());
+        stats.put("indexedTransactions", index.size());
+        stats.put("indexCapacity", index.capacity());
+        stats.put("indexBytesPerTransaction", index.estimatedBytesPerEntry());
+        stats.put("indexTotalBytes", index.estimatedTotalBytes());
+        stats.put("bloomFilterBits", knownIds.bits());
+        stats.put("bloomFilterComplete", knownIds.isComplete());
+        stats.put("bloomFilterHashes", knownIds.hashes());
+        stats.put("bloomFilterIds", knownIds.ids());
+        stats.put("bloomFilterFalsePositiveRate", knownIds.estimatedFalsePositiveRate());
+        stats.put("tailSubscriptions", tails.size());
+        stats.put("groupCommitFlushes", writer.getFlushes());
+        stats.put("groupCommitFlushedRecords", writer.getFlushedRecords());
+        stats.put("recoveryMode", recoveryMode);
+        stats.put("recoveryMillis", recoveryMillis);
+        stats.put("recoveryReplayedRecords", recovery.records);
+        stats.put("recoveryReplayedBytes", recovery.bytes);
+        stats.put("recoveryThreads", recovery.threads);
+        stats.put("recoveryRecordsPerSecond", recovery.recordsPerSecond());
+        stats.put("recoveryMegabytesPerSecond", Math.round(recovery.megabytesPerSecond() * 10) / 10.0);
+        stats.put("checkpointPosition", LogPosition.toString(lastCheckpointPosition));
+        stats.put("checkpointTransactions", lastCheckpointTransactions);
+        stats.put("compactions", compactor.getCompactions());
+        stats.put("compactionReclaimedBytes", compactor.getReclaimedBytes());
+        stats.put("compactionDeletedSegments", compactor.getDeletedSegments());
+        stats.put("segmentPoolSpares", pool.getSpares());
+        stats.put("segmentsPreallocated", pool.getPreallocated());
+        stats.put("segmentsRecycled", pool.getRecycled());
+        stats.put("rollsWithoutSpare", pool.getRolledWithoutSpare());
+        return stats;
+    }
+
+    // runs one compaction pass right away instead of waiting for the scheduler
+    // compaction moves records, so a fresh checkpoint replaces the one it invalidated
+    public void compactNow() {
+        maintenanceLock.lock();
+        try {
+            if (compactor.compactSealedSegments() > 0) {
+                try {
+                    writeCheckpoint();
+                } catch (IOException e) {
+                    logger.error("WAL checkpoint after compaction failed, next startup replays the whole log", e);
+                }
             }
-            writer.flush();
+        } finally {
+            maintenanceLock.unlock();
         }
+    }
 
-        // atomic replace
-        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    // compresses every sealed segment past archive-after-segments right away instead of waiting for the scheduler
+    // offsets do not move, so unlike compaction this leaves the checkpoint valid
+    public void archiveNow() {
+        maintenanceLock.lock();
+        try {
+            archiver.archiveSealedSegments();
+        } finally {
+            maintenanceLock.unlock();
+        }
     }
 
     @Override
-    public String getLogFilePath() {
-        return logFilePath;
+    public void close() {
+        for (Tail tail : tails) {
+            tail.close();
+        }
+        maintenanceScheduler.shutdownNow();
+        try {
+            maintenanceScheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // a checkpoint at shutdown makes the next start replay nothing
+        maintenanceLock.lock();
+        try {
+            writeCheckpoint();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not write WAL checkpoint on close, next startup replays from the previous one", e);
+        } finally {
+            maintenanceLock.unlock();
+        }
+
+        try {
+            writer.close();
+            segmentsLock.writeLock().lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    segment.close();
+                }
+                dictionary.close();
+            } finally {
+                segmentsLock.writeLock().unlock();
+            }
+            logger.info("Closed WAL {}", walDirectory);
+        } catch (IOException e) {
+            throw new LogException("Failed to close WAL: " + walDirectory, e);
+        }
     }
 }
@@ -0,0 +1,374 @@
+package com.twopc.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// group commit on top of the active segment's long-lived FileChannel, done by one dedicated writer thread
+// callers encode their record on their own thread, claim a slot in a pre-allocated ring and get a future back;
+// claiming and publishing a slot is a couple of atomic operations, callers never take a lock
+// the writer thread drains whatever is published, waits up to the batching window for more,
+// writes the whole batch with one gathering write, forces once and completes every future in the batch
+// the listener sees every record after it is durable and before its future completes,
+// so an index position never points at bytes that are not on disk yet
+// records are re-keyed to the active segment's salt on the way out, and in segments that have one an end-of-data
+// marker goes out behind every batch; it is not counted in the segment size, the next batch overwrites it
+class GroupCommitWriter implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(GroupCommitWriter.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final ByteBuffer END_MARKER = ByteBuffer.allocateDirect(RecordCodec.END_MARKER_BYTES);
+
+    // seals a full segment and returns the fresh one that takes over
+    interface SegmentRoller {
+        Segment roll(Segment full) throws IOException;
+    }
+
+    interface AppendListener {
+        void onAppended(WalRecord record);
+    }
+
+    private final DurabilityMode durability;
+    private final long windowNanos;
+    private final int maxBatchBytes;
+    private final long segmentSizeBytes;
+    private final SegmentRoller roller;
+    private final AppendListener listener;
+
+    // slot i holds sequence numbers i, i + capacity, i + 2 * capacity, ...
+    // published[i] is the sequence last stored in slot i, the writer only takes a slot once it carries the expected one
+    private final Slot[] ring;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong();
+    // every sequence below this was taken out of the ring by the writer, producers wait on it when the ring is full
+    private final AtomicLong released = new AtomicLong();
+
+    // held by the writer thread while it writes a batch and applies it, see whileIdle
+    private final ReentrantLock flushLock = new ReentrantLock();
+    // producers between their closed check and publishing, close() waits for them
+    private final AtomicInteger appending = new AtomicInteger();
+    private final Thread writerThread;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+    private volatile IOException failure;
+    // batches written (one write and, unless os-buffered, one force each) and the records in them
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedRecords = new AtomicLong();
+
+    // only touched by the writer thread
+    private Segment active;
+    private long nextSequence;
+
+    GroupCommitWriter(String name, Segment active, SegmentRoller roller, AppendListener listener, WalOptions options) throws IOException {
+        this.active = active;
+        this.roller = roller;
+        this.listener = listener;
+        this.durability = options.getDurability();
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, options.getGroupCommitWindowMicros()));
+        this.maxBatchBytes = Math.max(1, options.getGroupCommitMaxBytes());
+        this.segmentSizeBytes = options.getSegmentSizeBytes();
+        active.channel().position(active.size());
+
+        int capacity = Integer.highestOneBit(Math.max(2, options.getRingBufferSize()) - 1) << 1;
+        this.ring = new Slot[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+            published.set(i, i - (long) capacity);
+        }
+        this.mask = capacity - 1;
+
+        this.writerThread = new Thread(this::runWriter, "wal-writer-" + name);
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // hands one encoded record to the writer thread, the future completes with the log position it was written at
+    // once the record is as durable as the configured DurabilityMode promises
+    // futures are completed on the writer thread, dependent actions should be quick or run async
+    CompletableFuture<Long> appendAsync(WalRecord record) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        appending.incrementAndGet();
+        try {
+            if (closed) {
+                future.completeExceptionally(new IOException("WAL writer is closed"));
+                return future;
+            }
+            if (failure != null) {
+                future.completeExceptionally(new IOException("WAL writer failed earlier, refusing further appends", failure));
+                return future;
+            }
+
+            long sequence = claimed.getAndIncrement();
+            // ring full: the writer is at least one lap behind, wait for it to free the slot
+            while (sequence - ring.length >= released.get()) {
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+            int index = (int) (sequence & mask);
+            Slot slot = ring[index];
+            slot.record = record;
+            slot.future = future;
+            published.set(index, sequence);
+        } finally {
+            appending.decrementAndGet();
+        }
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+        return future;
+    }
+
+    // hands several records over so that they are written and forced together: the slots are claimed as one
+    // contiguous range and published last to first, the writer thread only sees the first record once all are there
+    // a batch bigger than the ring goes over in ring-sized pieces, and group-commit-max-bytes still caps each write
+    // the future completes once every record is as durable as the configured DurabilityMode promises
+    CompletableFuture<Void> appendBatchAsync(List<WalRecord> records) {
+        List<CompletableFuture<Long>> futures = new ArrayList<>(records.size());
+        for (int from = 0; from < records.size(); from += ring.length) {
+            List<WalRecord> piece = records.subList(from, Math.min(records.size(), from + ring.length));
+            for (int i = 0; i < piece.size(); i++) {
+                futures.add(new CompletableFuture<>());
+            }
+            publishRange(piece, futures.subList(from, from + piece.size()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void publishRange(List<WalRecord> records, List<CompletableFuture<Long>> futures) {
+        appending.incrementAndGet();
+        try {
+            IOException refused = closed ? new IOException("WAL writer is closed")
+                    : failure != null ? new IOException("WAL writer failed earlier, refusing further appends", failure)
+                    : null;
+            if (refused != null) {
+                futures.forEach(future -> future.completeExceptionally(refused));
+                return;
+            }
+
+            long first = claimed.getAndAdd(records.size());
+            long last = first + records.size() - 1;
+            // slots are freed in order, once the last one is free all of them are
+            while (last - ring.length >= released.get()) {
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+            for (long sequence = last; sequence >= first; sequence--) {
+                int index = (int) (sequence & mask);
+                Slot slot = ring[index];
+                slot.record = records.get((int) (sequence - first));
+                slot.future = futures.get((int) (sequence - first));
+                published.set(index, sequence);
+            }
+        } finally {
+            appending.decrementAndGet();
+        }
+        if (writerParked) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    // blocking append, returns the log position
+    // a durability wait is not abandoned half way, so this does not react to interrupts
+    long append(WalRecord record) throws IOException {
+        try {
+            return appendAsync(record).join();
+        } catch (CompletionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    static IOException unwrap(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure instanceof IOException io ? io : new IOException("WAL append failed", failure);
+    }
+
+    private void runWriter() {
+        Batch batch = new Batch();
+        while (true) {
+            int batchBytes = collect(batch, 0);
+            if (batch.records.isEmpty()) {
+                if (closed && appending.get() == 0 && nextSequence == claimed.get()) {
+                    return;
+                }
+                park(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            if (durability == DurabilityMode.GROUP && windowNanos > 0) {
+                // give concurrent callers the window to join the batch
+                long deadline = System.nanoTime() + windowNanos;
+                long remaining = windowNanos;
+                while (batchBytes < maxBatchBytes && remaining > 0 && !closed) {
+                    park(remaining);
+                    batchBytes = collect(batch, batchBytes);
+                    remaining = deadline - System.nanoTime();
+                }
+            }
+            flush(batch, batchBytes);
+            batch.records.clear();
+            batch.futures.clear();
+        }
+    }
+
+    // moves published records out of the ring in sequence order, stops at the first gap or a full batch
+    // PER_RECORD takes one record at a time since every record gets its own force()
+    private int collect(Batch batch, int batchBytes) {
+        while (batchBytes < maxBatchBytes && !(durability == DurabilityMode.PER_RECORD && !batch.records.isEmpty())) {
+            int index = (int) (nextSequence & mask);
+            if (published.get(index) != nextSequence) {
+                break;
+            }
+            Slot slot = ring[index];
+            batch.records.add(slot.record);
+            batch.futures.add(slot.future);
+            batchBytes += slot.record.length();
+            slot.record = null;
+            slot.future = null;
+            nextSequence++;
+            released.set(nextSequence);
+        }
+        return batchBytes;
+    }
+
+    private void park(long nanos) {
+        writerParked = true;
+        // re-check after announcing, a producer that published just before would not have unparked us
+        if (published.get((int) (nextSequence & mask)) != nextSequence) {
+            LockSupport.parkNanos(this, nanos);
+        }
+        writerParked = false;
+    }
+
+    private void flush(Batch batch, int batchBytes) {
+        List<WalRecord> records = batch.records;
+        IOException error = failure;
+        if (error == null) {
+            flushLock.lock();
+            try {
+                writeAndForce(records, batchBytes);
+                flushes.incrementAndGet();
+                flushedRecords.addAndGet(records.size());
+            } catch (IOException | RuntimeException e) {
+                error = e instanceof IOException io ? io : new IOException("WAL flush failed", e);
+                failure = error;
+                logger.error("WAL flush of {} records failed, writer is now unusable", records.size(), e);
+            } finally {
+                flushLock.unlock();
+            }
+        }
+
+        for (int i = 0; i < records.size(); i++) {
+            if (error == null) {
+                batch.futures.get(i).complete(records.get(i).getPosition());
+            } else {
+                batch.futures.get(i).completeExceptionally(new IOException("WAL flush failed", error));
+            }
+        }
+    }
+
+    private void writeAndForce(List<WalRecord> batch, int batchBytes) throws IOException {
+        int markerBytes = active.hasEndMarker() ? RecordCodec.END_MARKER_BYTES : 0;
+        if (active.size() > active.dataStart() && active.size() + batchBytes + markerBytes > segmentSizeBytes) {
+            active = roller.roll(active);
+            active.channel().position(active.size());
+            markerBytes = active.hasEndMarker() ? RecordCodec.END_MARKER_BYTES : 0;
+        }
+
+        long offset = active.size();
+        ByteBuffer[] buffers = new ByteBuffer[batch.size() + (markerBytes > 0 ? 1 : 0)];
+        for (int i = 0; i < batch.size(); i++) {
+            WalRecord record = batch.get(i);
+            record.setPosition(LogPosition.of(active.getId(), offset));
+            offset += record.length();
+            buffers[i] = record.getData();
+            RecordCodec.salt(buffers[i], active.salt());
+        }
+        if (markerBytes > 0) {
+            buffers[batch.size()] = END_MARKER.duplicate();
+        }
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            active.channel().write(buffers);
+        }
+        // the marker is overwritten by the next batch
+        active.channel().position(offset);
+
+        if (durability != DurabilityMode.OS_BUFFERED) {
+            active.force();
+        }
+        active.setSize(offset);
+
+        for (WalRecord record : batch) {
+            listener.onAppended(record);
+        }
+        if (batch.size() > 1) {
+            logger.trace("Group commit flushed {} records", batch.size());
+        }
+    }
+
+    long getFlushes() {
+        return flushes.get();
+    }
+
+    long getFlushedRecords() {
+        return flushedRecords.get();
+    }
+
+    // runs the action while no batch is being written, so everything appended so far is on disk and applied
+    // by the listener and nothing new gets applied until it returns; appends queue up in the ring meanwhile
+    <T> T whileIdle(Supplier<T> action) {
+        flushLock.lock();
+        try {
+            return action.get();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // records already handed over are still written before the writer thread stops
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the WAL writer", e);
+        }
+
+        if (failure == null && active.channel().isOpen()) {
+            active.channel().force(true);
+        }
+    }
+
+    private static class Slot {
+        private WalRecord record;
+        private CompletableFuture<Long> future;
+    }
+
+    // records taken out of the ring for one write, reused by the writer thread
+    private static class Batch {
+        private final List<WalRecord> records = new ArrayList<>();
+        private final List<CompletableFuture<Long>> futures = new ArrayList<>();
+    }
+}
@@ -0,0 +1,142 @@
+package com.twopc.common.log;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// migration reader for logs written before the binary format: one Jackson JSON document per line,
+// markers as {"marker":"ACK","transactionId":"..."}
+// JSON segments are never appended to, they stay readable until compaction rewrites them in binary
+class JsonLinesReader {
+    private static final byte NEWLINE = '\n';
+
+    private final ObjectMapper objectMapper;
+    private final JsonFactory jsonFactory;
+
+    JsonLinesReader(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    Transaction decode(WalRecord record) throws IOException {
+        ByteBuffer data = record.getData();
+        return objectMapper.readValue(data.array(), data.arrayOffset(), data.limit(), Transaction.class);
+    }
+
+    // positioned read of the line starting at offset, no shared channel position so concurrent readers are fine
+    WalRecord readAt(Segment segment, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        long position = offset;
+        while (true) {
+            int read = segment.read(buffer, position);
+            for (int i = (int) (position - offset); i < buffer.position(); i++) {
+                if (buffer.get(i) == NEWLINE) {
+                    return parse(Arrays.copyOf(buffer.array(), i + 1), LogPosition.of(segment.getId(), offset));
+                }
+            }
+            if (read < 0) {
+                throw new IOException("Truncated record at " + LogPosition.toString(LogPosition.of(segment.getId(), offset)));
+            }
+            position = offset + buffer.position();
+            if (!buffer.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+    }
+
+    // sequential pass over [0, end), returns the end of the last complete line
+    long scan(Segment segment, long end, Consumer<WalRecord> consumer) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(512);
+        long chunkStart = 0;
+        long lineStart = 0;
+        while (chunkStart < end) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), end - chunkStart));
+            int read = segment.read(chunk, chunkStart);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = chunk.array();
+            int from = 0;
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] != NEWLINE) {
+                    continue;
+                }
+                line.write(bytes, from, i - from + 1);
+                if (line.size() > 1) {
+                    consumer.accept(parse(line.toByteArray(), LogPosition.of(segment.getId(), lineStart)));
+                }
+                line.reset();
+                from = i + 1;
+                lineStart = chunkStart + from;
+            }
+            line.write(bytes, from, read - from);
+            chunkStart += read;
+        }
+        return lineStart;
+    }
+
+    // length of the file up to and including its last complete line
+    // a crash in the middle of a write can leave a line without its newline at the end of the file
+    long validLength(FileChannel channel) throws IOException {
+        long end = channel.size();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (end > 0) {
+            one.clear();
+            channel.read(one, end - 1);
+            if (one.get(0) == NEWLINE) {
+                break;
+            }
+            end--;
+        }
+        return end;
+    }
+
+    // only the header fields are parsed here: marker, transactionId and state
+    private WalRecord parse(byte[] line, long position) throws IOException {
+        RecordType type = RecordType.TRANSACTION;
+        String transactionId = null;
+        TransactionState state = null;
+
+        try (JsonParser parser = jsonFactory.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Malformed WAL record at " + LogPosition.toString(position));
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME && (transactionId == null || state == null)) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "marker" -> {
+                        type = RecordType.valueOf(parser.getValueAsString());
+                        state = TransactionState.INIT;
+                    }
+                    case "transactionId" -> transactionId = parser.getValueAsString();
+                    case "state" -> state = TransactionState.valueOf(parser.getValueAsString());
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+
+        if (transactionId == null) {
+            throw new IOException("WAL record without transactionId at " + LogPosition.toString(position));
+        }
+        WalRecord record = new WalRecord(type, transactionId, type == RecordType.TRANSACTION ? state : null,
+                line, SegmentFormat.JSON_LINES);
+        record.setPosition(position);
+        return record;
+    }
+}
@@ -0,0 +1,32 @@
+package com.twopc.common.log;
+
+// a position in a segmented WAL packed into one long: segment id in the high bits, byte offset in the low 32
+// positions compare in log order, so "later record" is simply "larger position"
+public final class LogPosition {
+    public static final long NONE = -1L;
+
+    private static final int OFFSET_BITS = 32;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final long SEGMENT_MASK = (1L << 28) - 1;
+
+    private LogPosition() {}
+
+    public static long of(long segmentId, long offset) {
+        if (offset < 0 || offset > OFFSET_MASK) {
+            throw new IllegalArgumentException("Offset out of range for a WAL segment: " + offset);
+        }
+        return ((segmentId & SEGMENT_MASK) << OFFSET_BITS) | offset;
+    }
+
+    public static int segment(long position) {
+        return (int) ((position >>> OFFSET_BITS) & SEGMENT_MASK);
+    }
+
+    public static long offset(long position) {
+        return position & OFFSET_MASK;
+    }
+
+    public static String toString(long position) {
+        return position == NONE ? "none" : segment(position) + ":" + offset(position);
+    }
+}
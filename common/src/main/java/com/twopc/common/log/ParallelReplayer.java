@@ -0,0 +1,230 @@
+package com.twopc.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// startup replay of many segments on a fork-join pool
+// reading and checksumming records is the expensive part and every segment can be decoded on its own,
+// so each segment is folded in parallel into its net effect per transaction;
+// the folds are then applied to the index one segment at a time in log order, which leaves exactly
+// the index and segment counters a sequential replay of every record through FileBasedWAL.applyToIndex would
+class ParallelReplayer {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelReplayer.class);
+
+    private final NavigableMap<Integer, Segment> segments;
+    private final TransactionIndex index;
+    private final TransactionIdFilter knownIds;
+    private final RecordCodec codec;
+    private final int parallelism;
+
+    ParallelReplayer(NavigableMap<Integer, Segment> segments, TransactionIndex index, TransactionIdFilter knownIds,
+                     RecordCodec codec, int parallelism) {
+        this.segments = segments;
+        this.index = index;
+        this.knownIds = knownIds;
+        this.codec = codec;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    // replays every segment from the given position on (everything for NONE)
+    // a torn tail of the last segment is truncated, a bad record in a sealed segment is corruption
+    Result replay(long from) throws IOException {
+        long startedAt = System.nanoTime();
+        int lastId = segments.lastKey();
+        int fromId = from == LogPosition.NONE ? Integer.MIN_VALUE : LogPosition.segment(from);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<SegmentFold>> folds = new ArrayList<>();
+            for (Segment segment : segments.tailMap(fromId, true).values()) {
+                long start = segment.getId() == fromId ? LogPosition.offset(from) : segment.dataStart();
+                folds.add(pool.submit(() -> fold(segment, start)));
+            }
+
+            // merged in log order as they complete, so a finished fold does not wait for the whole pass to be dropped
+            Result result = new Result(parallelism);
+            for (ForkJoinTask<SegmentFold> task : folds) {
+                SegmentFold fold = join(task);
+                Segment segment = fold.segment;
+                if (fold.validEnd < segment.size()) {
+                    if (segment.getId() != lastId) {
+                        // sealed segments were forced before the roll, a bad record there is real corruption
+                        throw new IOException("Corrupt WAL segment " + segment.getPath() + " at offset " + fold.validEnd);
+                    }
+                    if (!segment.hasEndMarker()) {
+                        // only the active segment can have been cut off mid-write
+                        logger.warn("Truncating {} bytes of torn record at the end of {}", segment.size() - fold.validEnd, segment.getPath());
+                        segment.truncate(fold.validEnd);
+                    } else {
+                        // a preallocated segment: the data ends at its end-of-data marker, the rest is free space
+                        // that the next batch overwrites, behind a new marker
+                        if (!codec.endsCleanlyAt(segment, fold.validEnd)) {
+                            logger.warn("Dropping torn record at {} in {}", fold.validEnd, segment.getPath());
+                        }
+                        segment.setSize(fold.validEnd);
+                    }
+                }
+                merge(fold);
+                result.segments++;
+                result.records += fold.records;
+                result.bytes += fold.validEnd - fold.start;
+            }
+            result.nanos = System.nanoTime() - startedAt;
+            return result;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private SegmentFold fold(Segment segment, long start) throws IOException {
+        SegmentFold fold = new SegmentFold(segment, start);
+        fold.validEnd = codec.scan(segment, start, segment.size(), fold::add);
+        return fold;
+    }
+
+    private static SegmentFold join(ForkJoinTask<SegmentFold> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replaying the WAL", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Failed to replay WAL segment", e.getCause());
+        }
+    }
+
+    // applies one segment's fold on top of everything before it: the leading records act on the index state
+    // left by earlier segments, a reset replaces it with the state the segment built on its own
+    // every record that dies on the way is counted exactly as a sequential replay would count it
+    private void merge(SegmentFold fold) {
+        for (Map.Entry<String, TransactionFold> folded : fold.transactions.entrySet()) {
+            String transactionId = folded.getKey();
+            TransactionFold transaction = folded.getValue();
+            knownIds.add(transactionId);
+            TransactionIndex.State state = index.lookup(transactionId);
+            long initialEntry = state.entry;
+            long initialBase = state.base;
+            for (int i = 0; i < transaction.leadingCount; i++) {
+                long leading = transaction.leading[i];
+                if (leading == TransactionFold.ACK) {
+                    state.apply(RecordType.ACK, LogPosition.NONE, false, this::recordDied);
+                } else {
+                    state.apply(RecordType.TRANSITION, TransactionIndex.position(leading),
+                            (leading & TransactionIndex.TERMINAL) != 0, this::recordDied);
+                }
+            }
+            if (transaction.local != null) {
+                // what the reset record does to the state it replaces, the rest happened inside the segment
+                state.apply(RecordType.TOMBSTONE, LogPosition.NONE, false, this::recordDied);
+                state = transaction.local;
+            }
+
+            if (state.entry != initialEntry || state.base != initialBase) {
+                index.put(transactionId, state.entry, state.base);
+            }
+        }
+        fold.segment.addCounters(fold.records, fold.deadRecords, fold.markerRecords);
+    }
+
+    private void recordDied(long position) {
+        Segment owner = segments.get(LogPosition.segment(position));
+        if (owner != null) {
+            owner.recordDied();
+        }
+    }
+
+    // net effect of one segment, built by one pool thread
+    private static final class SegmentFold {
+        final Segment segment;
+        final long start;
+        final Map<String, TransactionFold> transactions = new HashMap<>();
+        long validEnd;
+        int records;
+        int markerRecords;
+        // records that died to a later record of the same segment
+        int deadRecords;
+
+        SegmentFold(Segment segment, long start) {
+            this.segment = segment;
+            this.start = start;
+        }
+
+        void add(WalRecord record) {
+            records++;
+            if (record.getType().isMarker()) {
+                markerRecords++;
+            }
+            transactions.computeIfAbsent(record.getTransactionId(), id -> new TransactionFold()).add(record, this);
+        }
+
+        void recordDied(long position) {
+            deadRecords++;
+        }
+    }
+
+    // what one segment does to one transaction
+    private static final class TransactionFold {
+        static final long ACK = Long.MIN_VALUE;
+
+        // ACK and TRANSITION records before the first TRANSACTION or TOMBSTONE, in log order; they act on the state
+        // left by earlier segments, so they can only be applied in merge (TRANSITION as its entry, ACK as ACK)
+        long[] leading = new long[2];
+        int leadingCount;
+        // state after the first TRANSACTION or TOMBSTONE, which no longer depends on earlier segments
+        TransactionIndex.State local;
+
+        void add(WalRecord record, SegmentFold fold) {
+            RecordType type = record.getType();
+            if (local == null && (type == RecordType.ACK || type == RecordType.TRANSITION)) {
+                if (leadingCount == leading.length) {
+                    leading = Arrays.copyOf(leading, leadingCount * 2);
+                }
+                leading[leadingCount++] = type == RecordType.ACK ? ACK
+                        : record.getPosition() | (record.isTerminal() ? TransactionIndex.TERMINAL : 0);
+                return;
+            }
+            if (local == null) {
+                local = new TransactionIndex.State();
+            }
+            local.apply(type, record.getPosition(), record.isTerminal(), fold::recordDied);
+        }
+    }
+
+    static final class Result {
+        final int threads;
+        int segments;
+        long records;
+        long bytes;
+        long nanos;
+
+        Result(int threads) {
+            this.threads = threads;
+        }
+
+        long millis() {
+            return nanos / 1_000_000;
+        }
+
+        long recordsPerSecond() {
+            return nanos == 0 ? 0 : records * 1_000_000_000L / nanos;
+        }
+
+        double megabytesPerSecond() {
+            return nanos == 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1_000_000_000.0);
+        }
+    }
+}
@@ -0,0 +1,706 @@
+package com.twopc.common.log;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// binary record format of the WAL
+//
+// every record is framed as [int length][int crc32c ^ segment salt][byte type][payload]
+//   length counts type + payload, the checksum covers the same bytes and is xor-ed with the salt of the segment
+//   it is written to (0 for segments without one), so a record only checks out in the file it was written to
+//   a frame whose length runs past the end of the file or whose checksum does not match is a torn write
+//   a zero length is the end-of-data marker the writer leaves behind its last record in a preallocated segment
+//
+// TRANSACTION payload:
+//   transactionId   varint length + utf8
+//   state           byte, the TransactionState ordinal (new states must be appended to the enum)
+//   timestamps      byte flags, then createdAt as zigzag varlong epoch second + varint nano,
+//                   updatedAt as zigzag varlong nanos since createdAt
+//   participants    varint count, dictionary strings
+//   votes           varint count, dictionary string key + dictionary string value
+//   operationData   varint count, dictionary string key + tagged value
+//   lockedResources varint count, inline strings
+// TRANSITION payload, a state change of a transaction whose last TRANSACTION record (its base) is still in the log:
+//   transactionId   varint length + utf8
+//   state           byte, as above
+//   updatedAt       byte flags, then zigzag varlong epoch second + varint nano
+//   votes           varint count, dictionary string key + dictionary string value
+//   everything else is taken from the base, which the index tracks, so the record carries no pointer to it
+// TOMBSTONE / ACK payload: transactionId
+//
+// a dictionary string is a varint id into the StringDictionary, 0 means the utf8 string follows inline
+// segments written before this format are JSON lines and are read through JsonLinesReader
+class RecordCodec {
+    static final int FRAME_HEADER_BYTES = 8;
+    static final int END_MARKER_BYTES = FRAME_HEADER_BYTES;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final int SCAN_CHUNK_BYTES = 64 * 1024;
+    private static final int READ_AHEAD_BYTES = 512;
+
+    private static final RecordType[] TYPES = RecordType.values();
+    private static final TransactionState[] STATES = TransactionState.values();
+
+    private static final int HAS_CREATED_AT = 1;
+    private static final int HAS_UPDATED_AT = 2;
+
+    // operation data value tags
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INT = 2;
+    private static final int LONG = 3;
+    private static final int DOUBLE = 4;
+    private static final int TRUE = 5;
+    private static final int FALSE = 6;
+    // anything else (nested maps, lists) is kept as Jackson JSON
+    private static final int JSON = 7;
+
+    private final StringDictionary dictionary;
+    private final ObjectMapper objectMapper;
+    private final JsonLinesReader legacy;
+
+    RecordCodec(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.objectMapper = new ObjectMapper();
+        this.objectMapper.registerModule(new JavaTimeModule());
+        this.objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        this.legacy = new JsonLinesReader(objectMapper);
+    }
+
+    WalRecord encode(Transaction transaction) throws IOException {
+        Output out = new Output(256);
+        out.startFrame(RecordType.TRANSACTION);
+        out.writeString(transaction.getTransactionId());
+        out.writeByte(transaction.getState().ordinal());
+
+        LocalDateTime createdAt = transaction.getCreatedAt();
+        LocalDateTime updatedAt = transaction.getUpdatedAt();
+        out.writeByte((createdAt != null ? HAS_CREATED_AT : 0) | (updatedAt != null ? HAS_UPDATED_AT : 0));
+        if (createdAt != null) {
+            out.writeZigZag(createdAt.toEpochSecond(ZoneOffset.UTC));
+            out.writeVarint(createdAt.getNano());
+        }
+        if (updatedAt != null) {
+            out.writeZigZag(nanosBetween(createdAt, updatedAt));
+        }
+
+        List<String> participants = orEmpty(transaction.getParticipants());
+        out.writeVarint(participants.size());
+        for (String participant : participants) {
+            writeDictionaryString(out, participant);
+        }
+
+        Map<String, String> votes = orEmpty(transaction.getParticipantsVote());
+        out.writeVarint(votes.size());
+        for (Map.Entry<String, String> vote : votes.entrySet()) {
+            writeDictionaryString(out, vote.getKey());
+            writeDictionaryString(out, vote.getValue());
+        }
+
+        Map<String, Object> operationData = orEmpty(transaction.getOperationData());
+        out.writeVarint(operationData.size());
+        for (Map.Entry<String, Object> field : operationData.entrySet()) {
+            writeDictionaryString(out, field.getKey());
+            writeValue(out, field.getValue());
+        }
+
+        List<String> lockedResources = orEmpty(transaction.getLockedResources());
+        out.writeVarint(lockedResources.size());
+        for (String resource : lockedResources) {
+            out.writeString(resource);
+        }
+
+        return new WalRecord(RecordType.TRANSACTION, transaction.getTransactionId(),
+                transaction.getState(), out.finishFrame(), SegmentFormat.BINARY);
+    }
+
+    // only what changes on a phase-2 decision: state, updatedAt and the votes collected in phase 1
+    WalRecord encodeTransition(Transaction transaction) throws IOException {
+        Output out = new Output(64);
+        out.startFrame(RecordType.TRANSITION);
+        out.writeString(transaction.getTransactionId());
+        out.writeByte(transaction.getState().ordinal());
+
+        LocalDateTime updatedAt = transaction.getUpdatedAt();
+        out.writeByte(updatedAt != null ? HAS_UPDATED_AT : 0);
+        if (updatedAt != null) {
+            out.writeZigZag(updatedAt.toEpochSecond(ZoneOffset.UTC));
+            out.writeVarint(updatedAt.getNano());
+        }
+
+        Map<String, String> votes = orEmpty(transaction.getParticipantsVote());
+        out.writeVarint(votes.size());
+        for (Map.Entry<String, String> vote : votes.entrySet()) {
+            writeDictionaryString(out, vote.getKey());
+            writeDictionaryString(out, vote.getValue());
+        }
+
+        return new WalRecord(RecordType.TRANSITION, transaction.getTransactionId(),
+                transaction.getState(), out.finishFrame(), SegmentFormat.BINARY);
+    }
+
+    // the transaction as of a TRANSITION record, from its decoded base
+    // the state change has to be a legal one from the base's state, anything else means the two do not belong together
+    Transaction fold(Transaction base, WalRecord transition) throws IOException {
+        if (transition.getType() != RecordType.TRANSITION) {
+            throw new IOException("Not a transition record: " + transition.getType());
+        }
+        TransactionState state = transition.getState();
+        if (base.getState() != state) {
+            if (!base.getState().canTransitionInto(state)) {
+                throw new IOException("Transition of " + base.getTransactionId() + " from "
+                        + base.getState() + " to " + state + " does not follow its base record");
+            }
+            base.setState(state);
+        }
+
+        ByteBuffer data = transition.getData();
+        Input in = new Input(data, FRAME_HEADER_BYTES + 1, data.limit());
+        in.readString();
+        in.readByte();
+        int flags = in.readByte();
+        base.setUpdatedAt((flags & HAS_UPDATED_AT) != 0
+                ? LocalDateTime.ofEpochSecond(in.readZigZag(), in.readVarint(), ZoneOffset.UTC) : null);
+
+        int voteCount = in.readVarint();
+        Map<String, String> votes = new HashMap<>();
+        for (int i = 0; i < voteCount; i++) {
+            votes.put(readDictionaryString(in), readDictionaryString(in));
+        }
+        base.setParticipantsVote(votes);
+        return base;
+    }
+
+    // a TRANSITION on its own, for readers that no longer have its base: only id, state, updatedAt and votes are set
+    Transaction decodeTransition(WalRecord transition) throws IOException {
+        Transaction partial = new Transaction(transition.getTransactionId());
+        restoreState(partial, transition.getState());
+        return fold(partial, transition);
+    }
+
+    WalRecord encodeMarker(RecordType type, String transactionId) {
+        Output out = new Output(FRAME_HEADER_BYTES + 2 + transactionId.length());
+        out.startFrame(type);
+        out.writeString(transactionId);
+        return new WalRecord(type, transactionId, null, out.finishFrame(), SegmentFormat.BINARY);
+    }
+
+    Transaction decode(WalRecord record) throws IOException {
+        if (record.getType() != RecordType.TRANSACTION) {
+            throw new IOException("Not a transaction record: " + record.getType());
+        }
+        if (record.getFormat() == SegmentFormat.JSON_LINES) {
+            return legacy.decode(record);
+        }
+
+        ByteBuffer data = record.getData();
+        Input in = new Input(data, FRAME_HEADER_BYTES + 1, data.limit());
+        Transaction transaction = new Transaction(in.readString());
+        // state first: setState stamps updatedAt, the logged timestamps below overwrite that
+        restoreState(transaction, state(in.readByte()));
+
+        int flags = in.readByte();
+        LocalDateTime createdAt = null;
+        if ((flags & HAS_CREATED_AT) != 0) {
+            createdAt = LocalDateTime.ofEpochSecond(in.readZigZag(), in.readVarint(), ZoneOffset.UTC);
+        }
+        transaction.setCreatedAt(createdAt);
+        transaction.setUpdatedAt((flags & HAS_UPDATED_AT) != 0 ? plusNanos(createdAt, in.readZigZag()) : null);
+
+        int participantCount = in.readVarint();
+        List<String> participants = new ArrayList<>(participantCount);
+        for (int i = 0; i < participantCount; i++) {
+            participants.add(readDictionaryString(in));
+        }
+        transaction.setParticipants(participants);
+
+        int voteCount = in.readVarint();
+        Map<String, String> votes = new HashMap<>();
+        for (int i = 0; i < voteCount; i++) {
+            votes.put(readDictionaryString(in), readDictionaryString(in));
+        }
+        transaction.setParticipantsVote(votes);
+
+        int fieldCount = in.readVarint();
+        Map<String, Object> operationData = new HashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            operationData.put(readDictionaryString(in), readValue(in));
+        }
+        transaction.setOperationData(operationData);
+
+        int resourceCount = in.readVarint();
+        List<String> lockedResources = new ArrayList<>(resourceCount);
+        for (int i = 0; i < resourceCount; i++) {
+            lockedResources.add(in.readString());
+        }
+        transaction.setLockedResources(lockedResources);
+        return transaction;
+    }
+
+    // re-keys an encoded frame to the salt of the segment it is about to be written to, encode leaves salt 0
+    static void salt(ByteBuffer frame, int salt) {
+        frame.putInt(4, frame.getInt(4) ^ salt);
+    }
+
+    // whether the data of a segment ends at offset with an end-of-data marker rather than a torn record
+    boolean endsCleanlyAt(Segment segment, long offset) throws IOException {
+        if (offset == segment.size()) {
+            return true;
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while (length.hasRemaining() && segment.read(length, offset + length.position()) >= 0) {
+            // four bytes, loop only guards against short reads
+        }
+        return !length.hasRemaining() && length.getInt(0) == 0;
+    }
+
+    // the record in binary framing, JSON records from a legacy segment are re-encoded
+    ByteBuffer toBinary(WalRecord record) throws IOException {
+        if (record.getFormat() == SegmentFormat.BINARY) {
+            return record.getData();
+        }
+        if (record.getType() == RecordType.TRANSACTION) {
+            return encode(legacy.decode(record)).getData();
+        }
+        return encodeMarker(record.getType(), record.getTransactionId()).getData();
+    }
+
+    // positioned read of the record starting at offset, no shared channel position so concurrent readers are fine
+    WalRecord readAt(Segment segment, long offset) throws IOException {
+        if (segment.getFormat() == SegmentFormat.JSON_LINES) {
+            return legacy.readAt(segment, offset);
+        }
+        long position = LogPosition.of(segment.getId(), offset);
+
+        ByteBuffer mapped = segment.mapped();
+        if (mapped != null) {
+            // sealed segment: the record is decoded in place, nothing is copied
+            int length = offset + FRAME_HEADER_BYTES <= mapped.capacity() ? mapped.getInt((int) offset) : -1;
+            if (length < 1 || length > MAX_RECORD_BYTES || offset + FRAME_HEADER_BYTES + length > mapped.capacity()) {
+                throw new IOException("Corrupt WAL record at " + LogPosition.toString(position));
+            }
+            WalRecord record = parseFrame(mapped, (int) offset, FRAME_HEADER_BYTES + length, segment.salt(), false);
+            if (record == null) {
+                throw new IOException("Checksum mismatch in WAL record at " + LogPosition.toString(position));
+            }
+            record.setPosition(position);
+            return record;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_AHEAD_BYTES, Math.max(FRAME_HEADER_BYTES, segment.size() - offset)));
+        readFully(segment, buffer, offset, FRAME_HEADER_BYTES, position);
+        int length = buffer.getInt(0);
+        if (length < 1 || length > MAX_RECORD_BYTES) {
+            throw new IOException("Corrupt WAL record length " + length + " at " + LogPosition.toString(position));
+        }
+        int frameLength = FRAME_HEADER_BYTES + length;
+        if (buffer.capacity() < frameLength) {
+            ByteBuffer bigger = ByteBuffer.allocate(frameLength);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        readFully(segment, buffer, offset, frameLength, position);
+
+        WalRecord record = parseFrame(buffer, 0, frameLength, segment.salt(), false);
+        if (record == null) {
+            throw new IOException("Checksum mismatch in WAL record at " + LogPosition.toString(position));
+        }
+        record.setPosition(position);
+        return record;
+    }
+
+    // sequential pass over [dataStart, end) of a segment, handing every record to the consumer
+    // stops at the first frame that is incomplete or fails its checksum and returns where it stopped,
+    // which is the end of the valid data: equal to end for an intact segment
+    long scan(Segment segment, long end, Consumer<WalRecord> consumer) throws IOException {
+        return scan(segment, segment.dataStart(), end, consumer);
+    }
+
+    // same, starting at the record boundary from, e.g. where a checkpoint left off
+    long scan(Segment segment, long from, long end, Consumer<WalRecord> consumer) throws IOException {
+        if (segment.getFormat() == SegmentFormat.JSON_LINES) {
+            if (from != 0) {
+                throw new IOException("Legacy JSON segments can only be scanned from the start: " + segment.getPath());
+            }
+            return legacy.scan(segment, end, consumer);
+        }
+        ByteBuffer mapped = segment.mapped();
+        if (mapped != null) {
+            return scanMapped(segment, mapped, from, Math.min(end, mapped.capacity()), consumer);
+        }
+
+        // active segment: read in chunks, records are copied out of the chunk because it gets reused
+        byte[] buffer = new byte[SCAN_CHUNK_BYTES];
+        ByteBuffer view = ByteBuffer.wrap(buffer);
+        long bufferStart = from;
+        int filled = 0;
+        int at = 0;
+        while (true) {
+            long offset = bufferStart + at;
+            int available = filled - at;
+            int needed = FRAME_HEADER_BYTES;
+            if (available >= FRAME_HEADER_BYTES) {
+                int length = view.getInt(at);
+                if (length < 1 || length > MAX_RECORD_BYTES) {
+                    return offset;
+                }
+                needed += length;
+            }
+
+            if (available < needed) {
+                if (offset + needed > end) {
+                    return offset;
+                }
+                // slide the partial frame to the front and read the next chunk behind it
+                System.arraycopy(buffer, at, buffer, 0, available);
+                bufferStart = offset;
+                at = 0;
+                if (buffer.length < needed) {
+                    buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+                    view = ByteBuffer.wrap(buffer);
+                }
+                int toRead = (int) Math.min(buffer.length - available, end - offset - available);
+                ByteBuffer target = ByteBuffer.wrap(buffer, available, toRead);
+                while (target.hasRemaining() && segment.read(target, bufferStart + target.position()) >= 0) {
+                    // keep reading until the chunk is full
+                }
+                filled = target.position();
+                if (filled < needed) {
+                    return offset;
+                }
+                continue;
+            }
+
+            WalRecord record = parseFrame(view, at, needed, segment.salt(), true);
+            if (record == null) {
+                return offset;
+            }
+            record.setPosition(LogPosition.of(segment.getId(), offset));
+            consumer.accept(record);
+            at += needed;
+        }
+    }
+
+    // sealed segment: frames are checked and handed out as views into the mapping, no read calls and no copies
+    private long scanMapped(Segment segment, ByteBuffer mapped, long from, long end, Consumer<WalRecord> consumer) throws IOException {
+        long offset = from;
+        while (offset + FRAME_HEADER_BYTES <= end) {
+            int length = mapped.getInt((int) offset);
+            if (length < 1 || length > MAX_RECORD_BYTES || offset + FRAME_HEADER_BYTES + length > end) {
+                return offset;
+            }
+            WalRecord record = parseFrame(mapped, (int) offset, FRAME_HEADER_BYTES + length, segment.salt(), false);
+            if (record == null) {
+                return offset;
+            }
+            record.setPosition(LogPosition.of(segment.getId(), offset));
+            consumer.accept(record);
+            offset += FRAME_HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    // end of the last complete line of a legacy JSON segment
+    long legacyValidLength(Segment segment) throws IOException {
+        return legacy.validLength(segment.channel());
+    }
+
+    // checks the checksum and reads the header fields, null if the frame is torn
+    // the record keeps a view of the frame in buffer unless copy is set
+    private WalRecord parseFrame(ByteBuffer buffer, int at, int frameLength, int salt, boolean copy) throws IOException {
+        int bodyStart = at + FRAME_HEADER_BYTES;
+        int bodyEnd = at + frameLength;
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(bodyStart, bodyEnd - bodyStart));
+        if (((int) crc.getValue() ^ salt) != buffer.getInt(at + 4)) {
+            return null;
+        }
+
+        int typeCode = buffer.get(bodyStart);
+        if (typeCode < 0 || typeCode >= TYPES.length) {
+            throw new IOException("Unknown WAL record type " + typeCode);
+        }
+        RecordType type = TYPES[typeCode];
+        Input in = new Input(buffer, bodyStart + 1, bodyEnd);
+        String transactionId = in.readString();
+        TransactionState state = type.carriesState() ? state(in.readByte()) : null;
+
+        ByteBuffer frame = buffer.slice(at, frameLength);
+        if (copy) {
+            frame = ByteBuffer.allocate(frameLength).put(frame).flip();
+        }
+        return new WalRecord(type, transactionId, state, frame, SegmentFormat.BINARY);
+    }
+
+    private void writeDictionaryString(Output out, String value) throws IOException {
+        int id = value == null ? 0 : dictionary.idOf(value);
+        out.writeVarint(id);
+        if (id == 0) {
+            out.writeString(value);
+        }
+    }
+
+    private String readDictionaryString(Input in) throws IOException {
+        int id = in.readVarint();
+        return id == 0 ? in.readString() : dictionary.get(id);
+    }
+
+    private void writeValue(Output out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String s) {
+            out.writeByte(STRING);
+            out.writeString(s);
+        } else if (value instanceof Integer i) {
+            out.writeByte(INT);
+            out.writeZigZag(i);
+        } else if (value instanceof Long l) {
+            out.writeByte(LONG);
+            out.writeZigZag(l);
+        } else if (value instanceof Double d) {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits(d));
+        } else if (value instanceof Boolean b) {
+            out.writeByte(b ? TRUE : FALSE);
+        } else {
+            out.writeByte(JSON);
+            out.writeBytes(objectMapper.writeValueAsBytes(value));
+        }
+    }
+
+    private Object readValue(Input in) throws IOException {
+        int tag = in.readByte();
+        return switch (tag) {
+            case NULL -> null;
+            case STRING -> in.readString();
+            case INT -> (int) in.readZigZag();
+            case LONG -> in.readZigZag();
+            case DOUBLE -> Double.longBitsToDouble(in.readLong());
+            case TRUE -> Boolean.TRUE;
+            case FALSE -> Boolean.FALSE;
+            case JSON -> objectMapper.readValue(in.readBytes(), Object.class);
+            default -> throw new IOException("Unknown operation data tag " + tag);
+        };
+    }
+
+    private static void restoreState(Transaction transaction, TransactionState state) {
+        // INIT is the constructor default, any other logged state is reached through its legal predecessor
+        // so the transition check in setState stays the single place that guards the state machine
+        switch (state) {
+            case INIT -> { }
+            case PREPARING, PREPARED -> transaction.setState(state);
+            case COMMITTED, ABORTED -> {
+                transaction.setState(TransactionState.PREPARED);
+                transaction.setState(state);
+            }
+        }
+    }
+
+    private static TransactionState state(int code) throws IOException {
+        if (code >= STATES.length) {
+            throw new IOException("Unknown transaction state code " + code);
+        }
+        return STATES[code];
+    }
+
+    private static long nanosBetween(LocalDateTime from, LocalDateTime to) {
+        if (from == null) {
+            return to.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + to.getNano();
+        }
+        long seconds = to.toEpochSecond(ZoneOffset.UTC) - from.toEpochSecond(ZoneOffset.UTC);
+        return seconds * 1_000_000_000L + (to.getNano() - from.getNano());
+    }
+
+    private static LocalDateTime plusNanos(LocalDateTime from, long nanos) {
+        if (from == null) {
+            return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L),
+                    (int) Math.floorMod(nanos, 1_000_000_000L), ZoneOffset.UTC);
+        }
+        return from.plusNanos(nanos);
+    }
+
+    private static void readFully(Segment segment, ByteBuffer buffer, long offset, int length, long position) throws IOException {
+        while (buffer.position() < length) {
+            if (segment.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Truncated WAL record at " + LogPosition.toString(position));
+            }
+        }
+    }
+
+    private static <T> List<T> orEmpty(List<T> list) {
+        return list == null ? List.of() : list;
+    }
+
+    private static <K, V> Map<K, V> orEmpty(Map<K, V> map) {
+        return map == null ? Map.of() : map;
+    }
+
+    // growable buffer for one frame, the header is filled in by finishFrame
+    private static class Output {
+        private byte[] buffer;
+        private int size;
+
+        Output(int initialCapacity) {
+            this.buffer = new byte[Math.max(initialCapacity, FRAME_HEADER_BYTES + 1)];
+        }
+
+        void startFrame(RecordType type) {
+            size = FRAME_HEADER_BYTES;
+            writeByte(type.ordinal());
+        }
+
+        byte[] finishFrame() {
+            int length = size - FRAME_HEADER_BYTES;
+            CRC32C crc = new CRC32C();
+            crc.update(buffer, FRAME_HEADER_BYTES, length);
+            putInt(0, length);
+            putInt(4, (int) crc.getValue());
+            return Arrays.copyOf(buffer, size);
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarint(int value) {
+            writeVarlong(value & 0xFFFFFFFFL);
+        }
+
+        void writeZigZag(long value) {
+            writeVarlong((value << 1) ^ (value >> 63));
+        }
+
+        void writeVarlong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeString(String value) {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void putInt(int at, int value) {
+            buffer[at] = (byte) (value >>> 24);
+            buffer[at + 1] = (byte) (value >>> 16);
+            buffer[at + 2] = (byte) (value >>> 8);
+            buffer[at + 3] = (byte) value;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+    }
+
+    // reads with absolute gets only, so a shared mapped buffer is never repositioned
+    private static class Input {
+        private final ByteBuffer buffer;
+        private final int end;
+        private int position;
+
+        Input(ByteBuffer buffer, int position, int end) {
+            this.buffer = buffer;
+            this.position = position;
+            this.end = end;
+        }
+
+        int readByte() throws IOException {
+            require(1);
+            return buffer.get(position++) & 0xFF;
+        }
+
+        int readVarint() throws IOException {
+            return (int) readVarlong();
+        }
+
+        long readZigZag() throws IOException {
+            long value = readVarlong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readVarlong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in WAL record");
+        }
+
+        long readLong() throws IOException {
+            require(8);
+            long value = buffer.getLong(position);
+            position += 8;
+            return value;
+        }
+
+        String readString() throws IOException {
+            int length = readVarint();
+            require(length);
+            String value;
+            if (buffer.hasArray()) {
+                value = new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+            } else {
+                byte[] bytes = new byte[length];
+                buffer.get(position, bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            position += length;
+            return value;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readVarint();
+            require(length);
+            byte[] bytes = new byte[length];
+            buffer.get(position, bytes);
+            position += length;
+            return bytes;
+        }
+
+        private void require(int bytes) throws IOException {
+            if (bytes < 0 || position + bytes > end) {
+                throw new IOException("WAL record ends early");
+            }
+        }
+    }
+}
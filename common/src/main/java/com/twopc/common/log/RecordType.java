@@ -0,0 +1,24 @@
+package com.twopc.common.log;
+
+// kinds of records stored in a WAL segment
+// TRANSACTION: full snapshot of a transaction
+// TOMBSTONE: the transaction was deleted, older records for it are dead
+// ACK: the transaction reached a terminal state and every participant acknowledged it,
+//      its records may be dropped by compaction
+// TRANSITION: only the new state, updatedAt and votes of a transaction; readers fold it onto the
+//      transaction's latest TRANSACTION record (its base), which stays live as long as the transition does
+enum RecordType {
+    TRANSACTION,
+    TOMBSTONE,
+    ACK,
+    TRANSITION;
+
+    boolean isMarker() {
+        return this == TOMBSTONE || this == ACK;
+    }
+
+    // TRANSACTION and TRANSITION records carry a state in their header
+    boolean carriesState() {
+        return !isMarker();
+    }
+}
@@ -0,0 +1,350 @@
+package com.twopc.common.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// one fixed-size file of the WAL, named wal-<id>.log
+// the newest segment is the active one and receives appends, all older ones are sealed and only read or compacted
+// the active segment is usually a preallocated file (see SegmentPool) that appends overwrite in place, so its file
+// length says nothing about where the data ends: replay finds the end as the first end-of-data marker or bad frame
+// every file gets a random salt in its header that is mixed into the checksum of its records,
+// so records left over from a recycled file's previous life never pass as records of this one
+// sealing truncates the file to its data, a sealed segment's file length is its size
+// a sealed segment is memory-mapped read-only, scans and lookups decode straight from the mapping
+// older sealed segments may be archived as wal-<id>.zlog (see SegmentArchive): same id, offsets and size,
+// but read by inflating single blocks instead of through a mapping
+// the mapping is released in close(), callers make sure no reader is still inside (see FileBasedWAL.segmentsLock)
+// the record counters are bookkeeping for the compactor, they are estimates and never used for correctness
+class Segment implements Closeable {
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+    static final String ARCHIVED_SUFFIX = ".zlog";
+    static final int HEADER_BYTES = 12;
+    // version 1 had no salt, its records are checksummed as if the salt was 0
+    private static final int V1_HEADER_BYTES = 8;
+    private static final int MAGIC = 0x32504357;
+    private static final int VERSION = 2;
+
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private final SegmentFormat format;
+    private final int version;
+    private final int salt;
+    // set for an archived segment, which is read through it rather than a mapping
+    private final SegmentArchive archive;
+
+    // end of the last complete record, readers never look past it
+    private volatile long size;
+
+    // set once the segment is sealed, covers [0, size)
+    private volatile MappedByteBuffer mapped;
+
+    private final AtomicInteger records = new AtomicInteger();
+    private final AtomicInteger deadRecords = new AtomicInteger();
+    private final AtomicInteger markerRecords = new AtomicInteger();
+
+    private Segment(int id, Path path, FileChannel channel, SegmentFormat format, int version, int salt, long size) {
+        this(id, path, channel, format, version, salt, size, null);
+    }
+
+    private Segment(int id, Path path, FileChannel channel, SegmentFormat format, int version, int salt, long size,
+                    SegmentArchive archive) {
+        this.id = id;
+        this.path = path;
+        this.channel = channel;
+        this.format = format;
+        this.version = version;
+        this.salt = salt;
+        this.size = size;
+        this.archive = archive;
+    }
+
+    // opens wal-<id>.zlog, an archived segment is sealed and read-only
+    static Segment openArchived(Path directory, int id) throws IOException {
+        Path path = directory.resolve(archivedFileName(id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            SegmentArchive archive = SegmentArchive.open(channel, path);
+            return new Segment(id, path, channel, SegmentFormat.BINARY, archive.segmentVersion(), archive.salt(),
+                    archive.size(), archive);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // opens wal-<id>.log, creating an empty growing file if there is none
+    // the size of a segment written with end-of-data markers is its file length until replay found the real end
+    static Segment open(Path directory, int id) throws IOException {
+        Path path = directory.resolve(fileName(id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size < V1_HEADER_BYTES) {
+                // new segment, or one whose header never made it to disk, so it holds no records either
+                int salt = newSalt(0);
+                channel.truncate(0);
+                writeHeader(channel, salt);
+                channel.force(true);
+                return new Segment(id, path, channel, SegmentFormat.BINARY, VERSION, salt, HEADER_BYTES);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                // header is tiny, loop only guards against short reads
+            }
+            if (header.getInt(0) == MAGIC) {
+                int version = header.getInt(4);
+                if (version == 1) {
+                    return new Segment(id, path, channel, SegmentFormat.BINARY, version, 0, size);
+                }
+                if (version != VERSION || size < HEADER_BYTES) {
+                    throw new IOException("Unsupported WAL segment version " + version + " in " + path);
+                }
+                return new Segment(id, path, channel, SegmentFormat.BINARY, version, header.getInt(8), size);
+            }
+            if (header.get(0) == '{') {
+                return new Segment(id, path, channel, SegmentFormat.JSON_LINES, 0, 0, size);
+            }
+            throw new IOException("Not a WAL segment: " + path);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // segment files start with [int magic "2PCW"][int format version][int salt]
+    static byte[] header(int salt) {
+        return ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putInt(salt).array();
+    }
+
+    // header plus an end-of-data marker right behind it, so the file reads as an empty segment
+    // whatever an earlier use of the file left after them; not forced, callers force once they are done
+    static void writeHeader(FileChannel channel, int salt) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + RecordCodec.END_MARKER_BYTES).put(header(salt)).rewind();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    // any non-zero salt other than the one the file had before
+    static int newSalt(int previous) {
+        int salt;
+        do {
+            salt = ThreadLocalRandom.current().nextInt();
+        } while (salt == 0 || salt == previous);
+        return salt;
+    }
+
+    // salt of an existing segment file without opening it as a segment, 0 if it has none
+    static int readSalt(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+            // header is tiny, loop only guards against short reads
+        }
+        return !header.hasRemaining() && header.getInt(0) == MAGIC && header.getInt(4) == VERSION ? header.getInt(8) : 0;
+    }
+
+    static String fileName(int id) {
+        return String.format("%s%010d%s", PREFIX, id, SUFFIX);
+    }
+
+    static String archivedFileName(int id) {
+        return String.format("%s%010d%s", PREFIX, id, ARCHIVED_SUFFIX);
+    }
+
+    // segment id encoded in the file name, or -1 if the file is not a segment
+    static int parseId(String fileName) {
+        return parseId(fileName, SUFFIX);
+    }
+
+    // segment id of an archived segment file, or -1 if the file is none
+    static int parseArchivedId(String fileName) {
+        return parseId(fileName, ARCHIVED_SUFFIX);
+    }
+
+    private static int parseId(String fileName, String suffix) {
+        if (!fileName.startsWith(PREFIX) || !fileName.endsWith(suffix)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(PREFIX.length(), fileName.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // cuts a preallocated file down to its data once it is full, the only time a segment's file length changes
+    // after it became active; sealed segments are then exactly their data on disk
+    void trimToSize() throws IOException {
+        if (channel.size() != size) {
+            channel.truncate(size);
+            channel.force(true);
+        }
+    }
+
+    // maps the segment read-only, called once it will not be appended to anymore
+    // a segment over 2GB cannot be mapped as one buffer and keeps using positioned channel reads
+    void seal() throws IOException {
+        long length = size;
+        if (archive == null && mapped == null && length <= Integer.MAX_VALUE) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    // the read-only mapping of a sealed segment, null for the active one
+    // only absolute get methods may be used on it, it is shared by all readers
+    ByteBuffer mapped() {
+        return mapped;
+    }
+
+    int read(ByteBuffer dst, long offset) throws IOException {
+        if (archive != null) {
+            return archive.read(dst, offset);
+        }
+        MappedByteBuffer buffer = mapped;
+        if (buffer == null) {
+            return channel.read(dst, offset);
+        }
+        if (offset >= buffer.capacity()) {
+            return -1;
+        }
+        int length = (int) Math.min(dst.remaining(), buffer.capacity() - offset);
+        dst.put(buffer.slice((int) offset, length));
+        return length;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    void truncate(long length) throws IOException {
+        channel.truncate(length);
+        channel.force(true);
+        size = length;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    SegmentFormat getFormat() {
+        return format;
+    }
+
+    // offset of the first record
+    long dataStart() {
+        if (format != SegmentFormat.BINARY) {
+            return 0;
+        }
+        return version == 1 ? V1_HEADER_BYTES : HEADER_BYTES;
+    }
+
+    int version() {
+        return version;
+    }
+
+    boolean isArchived() {
+        return archive != null;
+    }
+
+    // bytes the segment takes on disk, less than its size once archived
+    long diskSize() {
+        return archive != null ? archive.compressedSize() : size;
+    }
+
+    // mixed into every record checksum, 0 for segments from before salting
+    int salt() {
+        return salt;
+    }
+
+    // segments written since salting end their data with an end-of-data marker instead of the end of the file
+    boolean hasEndMarker() {
+        return format == SegmentFormat.BINARY && version >= VERSION;
+    }
+
+    long size() {
+        return size;
+    }
+
+    void setSize(long size) {
+        this.size = size;
+    }
+
+    void recordAdded(RecordType type) {
+        records.incrementAndGet();
+        if (type.isMarker()) {
+            markerRecords.incrementAndGet();
+        }
+    }
+
+    void recordDied() {
+        deadRecords.incrementAndGet();
+    }
+
+    // counters as stored in a checkpoint, instead of counting them again on replay
+    void restoreCounters(int records, int deadRecords, int markerRecords) {
+        this.records.set(records);
+        this.deadRecords.set(deadRecords);
+        this.markerRecords.set(markerRecords);
+    }
+
+    // counters of records replayed in bulk, see ParallelReplayer
+    void addCounters(int records, int deadRecords, int markerRecords) {
+        this.records.addAndGet(records);
+        this.deadRecords.addAndGet(deadRecords);
+        this.markerRecords.addAndGet(markerRecords);
+    }
+
+    int getRecords() {
+        return records.get();
+    }
+
+    int getDeadRecords() {
+        return deadRecords.get();
+    }
+
+    int getMarkerRecords() {
+        return markerRecords.get();
+    }
+
+    // share of records compaction could drop, markers only count once nothing older is left for them to shadow
+    double garbageRatio(boolean oldest) {
+        int total = records.get();
+        if (total == 0) {
+            return 1.0;
+        }
+        int garbage = deadRecords.get() + (oldest ? markerRecords.get() : 0);
+        return Math.min(1.0, (double) garbage / total);
+    }
+
+    @Override
+    public void close() throws IOException {
+        MappedByteBuffer buffer = mapped;
+        mapped = null;
+        if (buffer != null) {
+            BufferCleaner.unmap(buffer);
+        }
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "Segment{id=" + id + ", size=" + size + ", records=" + records + ", dead=" + deadRecords + "}";
+    }
+}
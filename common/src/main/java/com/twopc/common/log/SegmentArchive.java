@@ -0,0 +1,212 @@
+package com.twopc.common.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// block-compressed copy of a sealed segment, wal-<id>.zlog
+// the segment's bytes (its header included) are cut into blocks of block-bytes that are deflated one by one,
+// so a record at some offset is read by inflating only the block(s) it sits in; offsets, and with them every
+// log position in the index and the checkpoint, stay exactly what they were in the uncompressed segment
+// layout: [int magic][int version][int segment version][int salt][long size][int block bytes][int blocks]
+//         { [long offset of block i in this file] } for blocks + 1 entries, the last one is the end of the data
+//         [int crc32c of everything before] then the deflated blocks
+// written to wal-<id>.zlog.tmp and moved into place, the segment it replaces is deleted afterwards
+class SegmentArchive {
+    static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x3250435a;
+    private static final int VERSION = 1;
+    private static final int FIXED_HEADER_BYTES = 32;
+
+    private final FileChannel channel;
+    private final int segmentVersion;
+    private final int salt;
+    private final long size;
+    private final int blockBytes;
+    private final long[] blockOffsets;
+
+    // the block read last, sequential scans inflate every block once
+    private volatile Block cached;
+
+    private SegmentArchive(FileChannel channel, int segmentVersion, int salt, long size, int blockBytes, long[] blockOffsets) {
+        this.channel = channel;
+        this.segmentVersion = segmentVersion;
+        this.salt = salt;
+        this.size = size;
+        this.blockBytes = blockBytes;
+        this.blockOffsets = blockOffsets;
+    }
+
+    // compresses [0, size) of a sealed segment into target, returns the compressed file size
+    static long write(Segment segment, Path target, int blockBytes, int level) throws IOException {
+        long size = segment.size();
+        int blocks = (int) ((size + blockBytes - 1) / blockBytes);
+        long[] offsets = new long[blocks + 1];
+        int headerBytes = FIXED_HEADER_BYTES + 8 * offsets.length + 4;
+
+        Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+        Deflater deflater = new Deflater(level, true);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer block = ByteBuffer.allocate(blockBytes);
+            byte[] compressed = new byte[blockBytes + blockBytes / 8 + 64];
+            long position = headerBytes;
+            for (int i = 0; i < blocks; i++) {
+                long start = (long) i * blockBytes;
+                block.clear().limit((int) Math.min(blockBytes, size - start));
+                while (block.hasRemaining() && segment.read(block, start + block.position()) >= 0) {
+                    // keep reading until the block is full
+                }
+                if (block.hasRemaining()) {
+                    throw new IOException("Segment " + segment.getPath() + " ended before its size " + size);
+                }
+                deflater.reset();
+                deflater.setInput(block.array(), 0, block.limit());
+                deflater.finish();
+                offsets[i] = position;
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(compressed);
+                    position += writeFully(out, ByteBuffer.wrap(compressed, 0, length), position);
+                }
+            }
+            offsets[blocks] = position;
+
+            ByteBuffer header = ByteBuffer.allocate(headerBytes);
+            header.putInt(MAGIC).putInt(VERSION).putInt(segment.version()).putInt(segment.salt())
+                    .putLong(size).putInt(blockBytes).putInt(blocks);
+            for (long offset : offsets) {
+                header.putLong(offset);
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(header.array(), 0, header.position());
+            header.putInt((int) crc.getValue()).flip();
+            writeFully(out, header, 0);
+            out.force(true);
+        } finally {
+            deflater.end();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return offsets[blocks];
+    }
+
+    static SegmentArchive open(FileChannel channel, Path path) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_BYTES);
+        readFully(channel, fixed, 0, path);
+        if (fixed.getInt(0) != MAGIC || fixed.getInt(4) != VERSION) {
+            throw new IOException("Not a compressed WAL segment: " + path);
+        }
+        int blocks = fixed.getInt(28);
+        int blockBytes = fixed.getInt(24);
+        if (blocks < 0 || blockBytes <= 0 || (long) blocks * 8 > channel.size()) {
+            throw new IOException("Corrupt compressed WAL segment header in " + path);
+        }
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_BYTES + 8 * (blocks + 1) + 4);
+        readFully(channel, header, 0, path);
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, header.capacity() - 4);
+        if ((int) crc.getValue() != header.getInt(header.capacity() - 4)) {
+            throw new IOException("Checksum mismatch in compressed WAL segment header of " + path);
+        }
+        long[] offsets = new long[blocks + 1];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = header.getLong(FIXED_HEADER_BYTES + 8 * i);
+        }
+        return new SegmentArchive(channel, header.getInt(8), header.getInt(12), header.getLong(16), blockBytes, offsets);
+    }
+
+    // copies from the block holding offset, at most up to that block's end; callers loop like for a channel read
+    int read(ByteBuffer dst, long offset) throws IOException {
+        if (offset >= size) {
+            return -1;
+        }
+        int index = (int) (offset / blockBytes);
+        Block block = cached;
+        if (block == null || block.index != index) {
+            block = new Block(index, inflate(index));
+            cached = block;
+        }
+        int from = (int) (offset - (long) index * blockBytes);
+        int length = Math.min(dst.remaining(), block.data.length - from);
+        dst.put(block.data, from, length);
+        return length;
+    }
+
+    private byte[] inflate(int index) throws IOException {
+        int compressedLength = (int) (blockOffsets[index + 1] - blockOffsets[index]);
+        // one spare byte: raw inflate may want a dummy byte past the end of its input
+        ByteBuffer compressed = ByteBuffer.allocate(compressedLength + 1);
+        compressed.limit(compressedLength);
+        readFully(channel, compressed, blockOffsets[index], null);
+        byte[] data = new byte[(int) Math.min(blockBytes, size - (long) index * blockBytes)];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed.array(), 0, compressedLength + 1);
+            int inflated = 0;
+            while (inflated < data.length) {
+                int n = inflater.inflate(data, inflated, data.length - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != data.length) {
+                throw new IOException("Compressed WAL block " + index + " inflated to " + inflated + " bytes, expected " + data.length);
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed WAL block " + index, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    int segmentVersion() {
+        return segmentVersion;
+    }
+
+    int salt() {
+        return salt;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long compressedSize() {
+        return blockOffsets[blockOffsets.length - 1];
+    }
+
+    private static long writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset, Path path) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of compressed WAL segment" + (path == null ? "" : " " + path));
+            }
+        }
+    }
+
+    private static final class Block {
+        private final int index;
+        private final byte[] data;
+
+        Block(int index, byte[] data) {
+            this.index = index;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.twopc.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+
+// background archival of sealed WAL segments into block-compressed wal-<id>.zlog files (see SegmentArchive)
+// the newest archive-after-segments sealed segments stay uncompressed and mapped, they hold most of what is
+// still in flight; everything older is what terminal transactions are kept in for audit and is rarely read
+// an archived segment keeps its id, size and offsets, so the index and the checkpoint stay valid and
+// readLog, queries, tails and the compactor read it like any other segment, one inflated block at a time
+// a crash before the swap leaves the uncompressed segment in charge, startup drops the half-done archive
+class SegmentArchiver {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentArchiver.class);
+
+    private final Path directory;
+    private final NavigableMap<Integer, Segment> segments;
+    private final ReadWriteLock segmentsLock;
+    private final int keepUncompressed;
+    private final int blockBytes;
+    private final int level;
+
+    private final AtomicLong archivedSegments = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    SegmentArchiver(Path directory, NavigableMap<Integer, Segment> segments, ReadWriteLock segmentsLock, WalOptions options) {
+        this.directory = directory;
+        this.segments = segments;
+        this.segmentsLock = segmentsLock;
+        this.keepUncompressed = options.getArchiveAfterSegments();
+        this.blockBytes = Math.max(4096, options.getArchiveBlockBytes());
+        this.level = options.getArchiveCompressionLevel();
+    }
+
+    boolean isEnabled() {
+        return keepUncompressed > 0;
+    }
+
+    // returns how many segments were archived
+    int archiveSealedSegments() {
+        if (!isEnabled()) {
+            return 0;
+        }
+        List<Integer> sealed = new ArrayList<>(segments.headMap(segments.lastKey(), false).keySet());
+        int archived = 0;
+        for (Integer id : sealed.subList(0, Math.max(0, sealed.size() - keepUncompressed))) {
+            Segment segment = segments.get(id);
+            if (segment == null || segment.isArchived() || segment.getFormat() != SegmentFormat.BINARY) {
+                continue;
+            }
+            try {
+                archive(segment);
+                archived++;
+            } catch (IOException e) {
+                logger.error("Failed to archive WAL segment {}, will retry on the next run", segment.getPath(), e);
+            }
+        }
+        return archived;
+    }
+
+    private void archive(Segment segment) throws IOException {
+        Path target = directory.resolve(Segment.archivedFileName(segment.getId()));
+        // readers keep using the mapped segment while its copy is compressed
+        long compressedBytes = SegmentArchive.write(segment, target, blockBytes, level);
+
+        segmentsLock.writeLock().lock();
+        try {
+            if (segments.get(segment.getId()) != segment) {
+                // compacted in the meantime, the copy is of a file that no longer exists
+                Files.deleteIfExists(target);
+                return;
+            }
+            Segment archived = Segment.openArchived(directory, segment.getId());
+            archived.restoreCounters(segment.getRecords(), segment.getDeadRecords(), segment.getMarkerRecords());
+            segments.put(segment.getId(), archived);
+            // no reader can be inside the old segment while we hold the write lock
+            segment.close();
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        Files.delete(segment.getPath());
+
+        archivedSegments.incrementAndGet();
+        savedBytes.addAndGet(segment.size() - compressedBytes);
+        logger.info("Archived WAL segment {}: {} -> {} bytes", segment.getPath(), segment.size(), compressedBytes);
+    }
+
+    long getArchivedSegments() {
+        return archivedSegments.get();
+    }
+
+    long getSavedBytes() {
+        return savedBytes.get();
+    }
+}
@@ -0,0 +1,256 @@
+package com.twopc.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+
+// background compaction of sealed WAL segments
+// a record is dead once a newer record for its transaction exists, a tombstone deleted the transaction,
+// or the transaction is COMMITTED/ABORTED and acknowledged (ACK marker)
+// a TRANSACTION record that is the base of the latest TRANSITION stays alive with it until the transaction is settled
+// a sealed segment with enough dead records is copied without them and swapped in place
+// markers are kept while an older segment exists, they keep stale records of their transaction from coming back on replay
+// before a settled transaction is dropped the id filter is stored, so the ids it knows survive a crash that follows
+// the active segment is never compacted and the writer never waits for the compactor
+class SegmentCompactor {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentCompactor.class);
+    static final String TEMP_SUFFIX = ".compact";
+
+    private final Path directory;
+    private final NavigableMap<Integer, Segment> segments;
+    private final ReadWriteLock segmentsLock;
+    private final TransactionIndex index;
+    private final RecordCodec codec;
+    private final CheckpointStore checkpoints;
+    private final TransactionIdFilter knownIds;
+    private final SegmentPool pool;
+    private final double threshold;
+
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong deletedSegments = new AtomicLong();
+
+    SegmentCompactor(Path directory, NavigableMap<Integer, Segment> segments, ReadWriteLock segmentsLock,
+                     TransactionIndex index, RecordCodec codec, CheckpointStore checkpoints,
+                     TransactionIdFilter knownIds, SegmentPool pool, double threshold) {
+        this.directory = directory;
+        this.segments = segments;
+        this.segmentsLock = segmentsLock;
+        this.index = index;
+        this.codec = codec;
+        this.checkpoints = checkpoints;
+        this.knownIds = knownIds;
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    // returns how many segments were compacted
+    int compactSealedSegments() {
+        int compacted = 0;
+        int activeId = segments.lastKey();
+        for (Integer id : new ArrayList<>(segments.headMap(activeId, false).keySet())) {
+            Segment segment = segments.get(id);
+            if (segment == null) {
+                continue;
+            }
+            boolean oldest = id.equals(segments.firstKey());
+            if (segment.garbageRatio(oldest) < threshold) {
+                continue;
+            }
+            try {
+                compact(segment, oldest);
+                compacted++;
+            } catch (IOException e) {
+                logger.error("Failed to compact WAL segment {}, will retry on the next run", segment.getPath(), e);
+            }
+        }
+        return compacted;
+    }
+
+    private void compact(Segment segment, boolean oldest) throws IOException {
+        List<Candidate> kept = new ArrayList<>();
+        List<Candidate> settled = new ArrayList<>();
+
+        codec.scan(segment, segment.size(), record -> {
+            TransactionIndex.State state = index.lookup(record.getTransactionId());
+            long entry = state.entry;
+            switch (record.getType()) {
+                case TRANSACTION, TRANSITION -> {
+                    if (entry == TransactionIndex.NO_POSITION) {
+                        return;
+                    }
+                    if (TransactionIndex.position(entry) == record.getPosition()) {
+                        if (TransactionIndex.isSettled(entry)) {
+                            settled.add(new Candidate(record, entry, state.base));
+                        } else {
+                            kept.add(new Candidate(record, entry, state.base));
+                        }
+                    } else if (state.base == record.getPosition()) {
+                        if (TransactionIndex.isSettled(entry)) {
+                            settled.add(new Candidate(record, entry, state.base));
+                        } else {
+                            kept.add(new Candidate(record, entry, state.base));
+                        }
+                    }
+                }
+                case TOMBSTONE -> {
+                    if (!oldest) {
+                        kept.add(new Candidate(record, entry, state.base));
+                    }
+                }
+                case ACK -> {
+                    if (!oldest || entry != TransactionIndex.NO_POSITION) {
+                        kept.add(new Candidate(record, entry, state.base));
+                    }
+                }
+            }
+        });
+
+        Path temp = directory.resolve(Segment.fileName(segment.getId()) + TEMP_SUFFIX);
+        long[] newOffsets = writeCompacted(temp, kept, segment.salt());
+        if (!settled.isEmpty()) {
+            // these ids leave the log now, the stored filter has to know them first (adds are never undone,
+            // so a snapshot taken now has every id the index ever held)
+            knownIds.write(directory);
+        }
+        long oldSize = segment.size();
+        Path retired = null;
+
+        segmentsLock.writeLock().lock();
+        try {
+            // the checkpoint points at offsets in this segment, drop it before any of them move
+            checkpoints.invalidate();
+            // a settled transaction leaves the index with the first of its records to be compacted away,
+            // its records elsewhere were counted dead by the ACK and go when their segments are compacted
+            for (Candidate candidate : settled) {
+                index.remove(candidate.record.getTransactionId(), candidate.entry);
+            }
+            int dead = remapIndex(segment.getId(), kept, newOffsets);
+
+            if (kept.isEmpty()) {
+                segments.remove(segment.getId());
+                segment.close();
+                // an archive file is much smaller than a segment, recycling it would not save any allocation
+                if (segment.isArchived()) {
+                    Files.delete(segment.getPath());
+                } else {
+                    retired = pool.retire(segment.getPath());
+                }
+                Files.deleteIfExists(temp);
+                deletedSegments.incrementAndGet();
+                reclaimedBytes.addAndGet(oldSize);
+                logger.info("Deleted fully compacted WAL segment {}", segment.getPath());
+            } else {
+                // an archived segment comes back uncompressed, the archiver compresses it again later
+                Path target = directory.resolve(Segment.fileName(segment.getId()));
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (segment.isArchived()) {
+                    Files.delete(segment.getPath());
+                }
+                Segment compacted = Segment.open(directory, segment.getId());
+                compacted.seal();
+                for (Candidate candidate : kept) {
+                    compacted.recordAdded(candidate.record.getType());
+                }
+                for (int i = 0; i < dead; i++) {
+                    compacted.recordDied();
+                }
+                segments.put(segment.getId(), compacted);
+                // no reader can be inside the old segment while we hold the write lock, so its mapping can go now
+                segment.close();
+                reclaimedBytes.addAndGet(oldSize - compacted.size());
+                logger.info("Compacted WAL segment {}: {} -> {} bytes, {} records kept",
+                        segment.getPath(), oldSize, compacted.size(), kept.size());
+            }
+            compactions.incrementAndGet();
+        } finally {
+            segmentsLock.writeLock().unlock();
+        }
+        if (retired != null) {
+            // the file is out of the log already, readers need not wait for it to be made a spare
+            pool.recycle(retired);
+        }
+    }
+
+    // the rewritten segment keeps the old one's salt, so its records are copied as they are
+    private long[] writeCompacted(Path temp, List<Candidate> kept, int salt) throws IOException {
+        long[] offsets = new long[kept.size()];
+        if (kept.isEmpty()) {
+            return offsets;
+        }
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(out, ByteBuffer.wrap(Segment.header(salt)));
+            long offset = Segment.HEADER_BYTES;
+            for (int i = 0; i < kept.size(); i++) {
+                // records of a legacy JSON segment are migrated to the binary format here
+                ByteBuffer data = codec.toBinary(kept.get(i).record);
+                offsets[i] = offset;
+                offset += data.remaining();
+                write(out, data);
+            }
+            out.force(true);
+        }
+        return offsets;
+    }
+
+    private static void write(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    // point index entries and bases at the records' new offsets, returns how many kept records died while we were copying
+    // entries can change concurrently (a newer record, an ACK flag), so each one is remapped only if it still points here
+    private int remapIndex(int segmentId, List<Candidate> kept, long[] newOffsets) {
+        int dead = 0;
+        for (int i = 0; i < kept.size(); i++) {
+            WalRecord record = kept.get(i).record;
+            if (!record.getType().carriesState()) {
+                continue;
+            }
+            long newPosition = LogPosition.of(segmentId, newOffsets[i]);
+            TransactionIndex.Remapped remapped = index.remap(record.getTransactionId(), record.getPosition(), newPosition);
+            if (remapped == TransactionIndex.Remapped.NONE || remapped == TransactionIndex.Remapped.SETTLED_ENTRY) {
+                dead++;
+            }
+        }
+        return dead;
+    }
+
+    long getCompactions() {
+        return compactions.get();
+    }
+
+    long getReclaimedBytes() {
+        return reclaimedBytes.get();
+    }
+
+    long getDeletedSegments() {
+        return deletedSegments.get();
+    }
+
+    private static class Candidate {
+        private final WalRecord record;
+        private final long entry;
+        private final long base;
+
+        Candidate(WalRecord record, long entry, long base) {
+            this.record = record;
+            this.entry = entry;
+            this.base = base;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.twopc.common.log;
+
+// on-disk layout of a segment, recognised by its first bytes
+// BINARY: magic header followed by length-prefixed, checksummed records (RecordCodec)
+// JSON_LINES: one JSON document per line, written before the binary format existed (JsonLinesReader)
+enum SegmentFormat {
+    BINARY,
+    JSON_LINES
+}
@@ -0,0 +1,211 @@
+package com.twopc.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+// spare segment files, already segment-size-bytes long, for the writer to roll onto
+// growing a file by every append makes each fsync also persist the new file size and extents, which is the expensive
+// part of a durable write on ext4/xfs; a preallocated file is only overwritten in place, so steady-state appends
+// never extend a file and a force() has only data to flush
+// spares are zero-filled by the maintenance thread, or recycled from segments compaction emptied, so rolling
+// to a new segment only renames a ready file; when no spare is ready the roll preallocates one itself
+// spare files are named wal-spare-<n>.tmp while being filled and wal-spare-<n>.spare once ready
+class SegmentPool {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentPool.class);
+    private static final String SPARE_PREFIX = "wal-spare-";
+    static final String SPARE_SUFFIX = ".spare";
+    private static final String FILLING_SUFFIX = ".tmp";
+    private static final int ZERO_CHUNK_BYTES = 1024 * 1024;
+
+    private final Path directory;
+    private final long segmentSizeBytes;
+    private final int capacity;
+    private final boolean preallocate;
+
+    // ready spares, guarded by this; filling and recycling happen outside the lock so a roll never waits for them
+    private final Deque<Path> spares = new ArrayDeque<>();
+    private long nextSpare;
+
+    private final AtomicLong preallocated = new AtomicLong();
+    private final AtomicLong recycled = new AtomicLong();
+    private final AtomicLong rolledWithoutSpare = new AtomicLong();
+
+    SegmentPool(Path directory, WalOptions options) throws IOException {
+        this.directory = directory;
+        this.segmentSizeBytes = options.getSegmentSizeBytes();
+        this.capacity = Math.max(0, options.getSegmentPoolSize());
+        this.preallocate = options.isPreallocateSegments();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SPARE_PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long number = spareNumber(name);
+                nextSpare = Math.max(nextSpare, number + 1);
+                if (!preallocate || name.endsWith(FILLING_SUFFIX) || Files.size(file) != segmentSizeBytes) {
+                    // half-filled by a crashed refill, or left from another configuration
+                    Files.delete(file);
+                } else {
+                    spares.add(file);
+                }
+            }
+        }
+    }
+
+    static boolean isSpare(String fileName) {
+        return fileName.startsWith(SPARE_PREFIX);
+    }
+
+    private static long spareNumber(String fileName) {
+        int dot = fileName.indexOf('.', SPARE_PREFIX.length());
+        String number = fileName.substring(SPARE_PREFIX.length(), dot < 0 ? fileName.length() : dot);
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // wal-<id>.log as a fresh, empty segment
+    // a spare gets its new salt and an end-of-data marker before it is renamed into place,
+    // so a crash in between never leaves a segment file that shows the spare's old records
+    Segment take(int id) throws IOException {
+        if (!preallocate) {
+            return Segment.open(directory, id);
+        }
+        Path spare;
+        synchronized (this) {
+            spare = spares.poll();
+        }
+        if (spare == null) {
+            rolledWithoutSpare.incrementAndGet();
+            spare = fill(newSparePath(FILLING_SUFFIX));
+        }
+        try (FileChannel channel = FileChannel.open(spare, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Segment.writeHeader(channel, Segment.newSalt(Segment.readSalt(channel)));
+            channel.force(true);
+        }
+        Files.move(spare, directory.resolve(Segment.fileName(id)), StandardCopyOption.ATOMIC_MOVE);
+        Segment segment = Segment.open(directory, id);
+        // the file is all free space behind the marker
+        segment.setSize(segment.dataStart());
+        return segment;
+    }
+
+    // tops the pool up to its configured size, run by the maintenance thread
+    void refill() throws IOException {
+        if (!preallocate) {
+            return;
+        }
+        while (true) {
+            Path filling;
+            synchronized (this) {
+                if (spares.size() >= capacity) {
+                    return;
+                }
+                filling = newSparePath(FILLING_SUFFIX);
+            }
+            Path ready = fill(filling);
+            synchronized (this) {
+                spares.add(ready);
+            }
+        }
+    }
+
+    // takes the closed file of a segment compaction emptied out of the log: renamed to a spare being filled
+    // if the pool has room for it, deleted otherwise; either way it is no segment anymore once this returns
+    // returns the renamed file for recycle, null if it was deleted
+    Path retire(Path segmentFile) throws IOException {
+        boolean wanted;
+        synchronized (this) {
+            wanted = preallocate && spares.size() < capacity;
+        }
+        if (!wanted) {
+            Files.deleteIfExists(segmentFile);
+            return null;
+        }
+        Path filling = newSparePath(FILLING_SUFFIX);
+        Files.move(segmentFile, filling, StandardCopyOption.ATOMIC_MOVE);
+        return filling;
+    }
+
+    // makes a retired segment file a ready spare, it only needs its trimmed tail allocated again
+    // its old records stay in it until overwritten, they no longer check out once the file is taken with a new salt
+    void recycle(Path filling) throws IOException {
+        try (FileChannel channel = FileChannel.open(filling, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size > segmentSizeBytes) {
+                channel.truncate(segmentSizeBytes);
+            } else {
+                zeroFill(channel, size);
+            }
+            channel.force(true);
+        }
+        Path ready = readyPath(filling);
+        Files.move(filling, ready, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            spares.add(ready);
+        }
+        recycled.incrementAndGet();
+    }
+
+    private Path fill(Path filling) throws IOException {
+        try (FileChannel channel = FileChannel.open(filling, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            // real zeros rather than setLength, a sparse file would allocate its blocks on the first appends after all
+            zeroFill(channel, 0);
+            channel.force(true);
+        }
+        Path ready = readyPath(filling);
+        Files.move(filling, ready, StandardCopyOption.ATOMIC_MOVE);
+        preallocated.incrementAndGet();
+        logger.debug("Preallocated WAL segment file {} ({} bytes)", ready, segmentSizeBytes);
+        return ready;
+    }
+
+    private void zeroFill(FileChannel channel, long from) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect((int) Math.min(ZERO_CHUNK_BYTES, Math.max(1, segmentSizeBytes)));
+        long position = from;
+        while (position < segmentSizeBytes) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), segmentSizeBytes - position));
+            while (zeros.hasRemaining()) {
+                position += channel.write(zeros, position);
+            }
+        }
+    }
+
+    private synchronized Path newSparePath(String suffix) {
+        return directory.resolve(SPARE_PREFIX + (nextSpare++) + suffix);
+    }
+
+    private static Path readyPath(Path filling) {
+        String name = filling.getFileName().toString();
+        return filling.resolveSibling(name.substring(0, name.length() - FILLING_SUFFIX.length()) + SPARE_SUFFIX);
+    }
+
+    synchronized int getSpares() {
+        return spares.size();
+    }
+
+    long getPreallocated() {
+        return preallocated.get();
+    }
+
+    long getRecycled() {
+        return recycled.get();
+    }
+
+    long getRolledWithoutSpare() {
+        return rolledWithoutSpare.get();
+    }
+}
@@ -0,0 +1,477 @@
+package com.twopc.common.log;
+
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+// N independent FileBasedWALs, a transaction always goes to the shard picked by the hash of its id
+// every shard has its own segments, index, writer thread and fsync, so appends to different shards never wait
+// for each other; with shard-dirs the shards are spread over several directories, e.g. one per disk
+// shard i lives in <dir>/<service>/shard-i where dir is shard-dirs[i % shard-dirs.size()], or base-dir
+// log positions returned by appendAsync are positions within the transaction's shard
+// the shard count is stored in <base-dir>/<service>/wal.shards, it cannot change once records were written
+// because existing transactions would no longer be found in their shard
+public class ShardedWAL implements WriteAheadLog {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedWAL.class);
+    static final String LAYOUT_FILE = "wal.shards";
+
+    private final Path serviceDirectory;
+    private final FileBasedWAL[] shards;
+
+    public ShardedWAL(String serviceName, WalOptions options) {
+        int shardCount = Math.max(1, options.getShards());
+        this.serviceDirectory = Paths.get(options.getBaseDir(), serviceName);
+        this.shards = new FileBasedWAL[shardCount];
+
+        try {
+            Files.createDirectories(serviceDirectory);
+            checkLayout(shardCount);
+        } catch (IOException e) {
+            throw new LogException("Failed to read WAL shard layout in " + serviceDirectory, e);
+        }
+
+        // shards recover independently, so they are opened side by side
+        ExecutorService opener = Executors.newFixedThreadPool(shardCount);
+        try {
+            List<CompletableFuture<FileBasedWAL>> opening = new ArrayList<>();
+            for (int i = 0; i < shardCount; i++) {
+                Path directory = shardDirectory(serviceName, options, i);
+                String name = serviceName + "-shard-" + i;
+                opening.add(CompletableFuture.supplyAsync(() -> new FileBasedWAL(directory, name, options), opener));
+            }
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = opening.get(i).join();
+            }
+        } catch (CompletionException e) {
+            closeOpened();
+            throw e.getCause() instanceof LogException log ? log : new LogException("Failed to open WAL shards", e.getCause());
+        } finally {
+            opener.shutdown();
+        }
+
+        try {
+            migrateUnshardedLog(options);
+            Files.writeString(serviceDirectory.resolve(LAYOUT_FILE), Integer.toString(shardCount), StandardCharsets.UTF_8);
+        } catch (IOException | RuntimeException e) {
+            closeOpened();
+            throw new LogException("Failed to move the unsharded WAL in " + serviceDirectory + " into shards", e);
+        }
+        logger.info("Opened sharded WAL {} with {} shards", serviceDirectory, shardCount);
+    }
+
+    private static Path shardDirectory(String serviceName, WalOptions options, int shard) {
+        List<String> dirs = options.getShardDirs();
+        String base = dirs == null || dirs.isEmpty() ? options.getBaseDir() : dirs.get(shard % dirs.size());
+        return Paths.get(base, serviceName, "shard-" + shard);
+    }
+
+    private void checkLayout(int shardCount) throws IOException {
+        Path layout = serviceDirectory.resolve(LAYOUT_FILE);
+        if (!Files.exists(layout)) {
+            return;
+        }
+        int existing = Integer.parseInt(Files.readString(layout, StandardCharsets.UTF_8).trim());
+        if (existing != shardCount) {
+            throw new LogException("WAL in " + serviceDirectory + " was written with " + existing
+                    + " shards but " + shardCount + " are configured, the shard count cannot change");
+        }
+    }
+
+    // a log written before sharding sits directly in the service directory: every transaction it still needs
+    // is copied into its shard, then the old files are removed
+    // a crash half way leaves the old log in place and the copy simply runs again, a record written twice is harmless
+    private void migrateUnshardedLog(WalOptions options) throws IOException {
+        boolean unshardedLog = false;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(serviceDirectory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                unshardedLog |= Segment.parseId(name) >= 0 || Segment.parseArchivedId(name) >= 0
+                        || name.equals(FileBasedWAL.LEGACY_LOG_FILE);
+            }
+        }
+        if (!unshardedLog) {
+            return;
+        }
+
+        int migrated = 0;
+        try (FileBasedWAL unsharded = new FileBasedWAL(serviceDirectory, serviceDirectory.getFileName() + "-unsharded", options)) {
+            for (Transaction transaction : unsharded.readAllLogs()) {
+                String transactionId = transaction.getTransactionId();
+                shard(transactionId).writeLog(transaction);
+                if (unsharded.isSettled(transactionId)) {
+                    shard(transactionId).acknowledge(transactionId);
+                }
+                migrated++;
+            }
+            // the copy only covers what is still in the old log, ids it compacted away come from its filter,
+            // or the shards' filters stop claiming to know the whole history; the checkpoint stores them
+            for (FileBasedWAL shard : shards) {
+                shard.addKnownIdsOf(unsharded);
+            }
+        }
+        for (FileBasedWAL shard : shards) {
+            shard.checkpoint();
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(serviceDirectory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (Segment.parseId(name) >= 0 || Segment.parseArchivedId(name) >= 0 || SegmentPool.isSpare(name)
+                        || name.equals(StringDictionary.FILE_NAME) || name.equals(CheckpointStore.FILE_NAME)
+                        || name.equals(TransactionIdFilter.FILE_NAME)) {
+                    Files.delete(file);
+                }
+            }
+        }
+        logger.info("Moved {} transactions from the unsharded WAL in {} into {} shards", migrated, serviceDirectory, shards.length);
+    }
+
+    private FileBasedWAL shard(String transactionId) {
+        return shards[shardOf(transactionId, shards.length)];
+    }
+
+    // the shard a transaction is logged in, for callers that partition their own state the same way
+    // String.hashCode is fixed by the spec, so a transaction maps to the same shard across restarts
+    public static int shardOf(String transactionId, int shardCount) {
+        int h = transactionId.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shardCount);
+    }
+
+    @Override
+    public void writeLog(Transaction transaction) {
+        shard(transaction.getTransactionId()).writeLog(transaction);
+    }
+
+    @Override
+    public void writeTransition(Transaction transaction) {
+        shard(transaction.getTransactionId()).writeTransition(transaction);
+    }
+
+    @Override
+    public CompletableFuture<Long> appendAsync(Transaction transaction) {
+        return shard(transaction.getTransactionId()).appendAsync(transaction);
+    }
+
+    // split by shard, every shard writes its part as one group write, all shards at the same time
+    @Override
+    public void writeBatch(WalBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            appendBatchAsync(batch).join();
+        } catch (CompletionException e) {
+            throw new LogException("Failed to write batch of " + batch.size() + " records to WAL", GroupCommitWriter.unwrap(e));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> appendBatchAsync(WalBatch batch) {
+        Map<FileBasedWAL, WalBatch> perShard = new LinkedHashMap<>();
+        for (WalBatch.Entry entry : batch.entries()) {
+            perShard.computeIfAbsent(shard(entry.transactionId), shard -> WalBatch.create()).add(entry);
+        }
+        List<CompletableFuture<Void>> writes = new ArrayList<>(perShard.size());
+        perShard.forEach((shard, part) -> writes.add(shard.appendBatchAsync(part)));
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public Optional<Transaction> readLog(String transactionId) {
+        return shard(transactionId).readLog(transactionId);
+    }
+
+    @Override
+    public boolean mightContain(String transactionId) {
+        return shard(transactionId).mightContain(transactionId);
+    }
+
+    // shard by shard, each shard in log order
+    @Override
+    public List<Transaction> readLogsByState(TransactionState state) {
+        List<Transaction> transactions = new ArrayList<>();
+        for (FileBasedWAL shard : shards) {
+            transactions.addAll(shard.readLogsByState(state));
+        }
+        return transactions;
+    }
+
+    @Override
+    public List<Transaction> readAllLogs() {
+        List<Transaction> transactions = new ArrayList<>();
+        for (FileBasedWAL shard : shards) {
+            transactions.addAll(shard.readAllLogs());
+        }
+        return transactions;
+    }
+
+    // shard by shard like readAllLogs, the cursor is <shard>/<cursor within that shard>
+    @Override
+    public TransactionCursor query(WalQuery query) {
+        return new ShardedCursor(query);
+    }
+
+    // one tail per shard, their consumers take turns so the subscriber sees one change at a time
+    // the cursor is the comma-separated cursors of all shards, changes of different shards come in no fixed order
+    @Override
+    public WalSubscription tail(String fromCursor, Consumer<WalChange> consumer) {
+        return new ShardedTail(fromCursor, consumer);
+    }
+
+    @Override
+    public void deleteLog(String transactionId) {
+        shard(transactionId).deleteLog(transactionId);
+    }
+
+    @Override
+    public void acknowledge(String transactionId) {
+        shard(transactionId).acknowledge(transactionId);
+    }
+
+    @Override
+    public String getLogFilePath() {
+        return serviceDirectory.toString();
+    }
+
+    @Override
+    public void checkpoint() {
+        for (FileBasedWAL shard : shards) {
+            shard.checkpoint();
+        }
+    }
+
+    // runs one compaction pass on every shard
+    public void compactNow() {
+        for (FileBasedWAL shard : shards) {
+            shard.compactNow();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        long sizeBytes = 0;
+        long segments = 0;
+        long transactions = 0;
+        List<Map<String, Object>> perShard = new ArrayList<>();
+        for (FileBasedWAL shard : shards) {
+            Map<String, Object> stats = shard.getStats();
+            sizeBytes += ((Number) stats.get("sizeBytes")).longValue();
+            segments += ((Number) stats.get("segments")).longValue();
+            transactions += ((Number) stats.get("indexedTransactions")).longValue();
+            perShard.add(stats);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("path", serviceDirectory.toString());
+        stats.put("shards", shards.length);
+        stats.put("segments", segments);
+        stats.put("sizeBytes", sizeBytes);
+        stats.put("indexedTransactions", transactions);
+        stats.put("perShard", perShard);
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        LogException failure = null;
+        for (FileBasedWAL shard : shards) {
+            try {
+                shard.close();
+            } catch (LogException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private final class ShardedCursor implements TransactionCursor {
+        private final WalQuery query;
+        private int shard;
+        private TransactionCursor current;
+        private int returned;
+
+        ShardedCursor(WalQuery query) {
+            this.query = query;
+            String cursor = query.getCursor();
+            String inner = null;
+            if (cursor != null && !cursor.isEmpty()) {
+                int slash = cursor.indexOf('/');
+                try {
+                    shard = Integer.parseInt(slash < 0 ? cursor : cursor.substring(0, slash));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid WAL cursor: " + cursor);
+                }
+                if (shard < 0 || shard > shards.length) {
+                    throw new IllegalArgumentException("Invalid WAL cursor: " + cursor);
+                }
+                inner = slash < 0 ? null : cursor.substring(slash + 1);
+            }
+            if (shard < shards.length) {
+                current = shards[shard].query(query.after(inner));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current != null) {
+                if (query.getLimit() > 0 && returned >= query.getLimit()) {
+                    return false;
+                }
+                if (current.hasNext()) {
+                    return true;
+                }
+                if (current.cursor() != null) {
+                    // the shard stopped at the page limit, not at its end
+                    return false;
+                }
+                current.close();
+                current = ++shard < shards.length
+                        ? shards[shard].query(query.after(null).limit(query.getLimit() == 0 ? 0 : query.getLimit() - returned))
+                        : null;
+            }
+            return false;
+        }
+
+        @Override
+        public Transaction next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            returned++;
+            return current.next();
+        }
+
+        @Override
+        public String cursor() {
+            if (current == null) {
+                return null;
+            }
+            String inner = current.cursor();
+            if (inner != null) {
+                return shard + "/" + inner;
+            }
+            return shard + 1 < shards.length ? (shard + 1) + "/" : null;
+        }
+
+        @Override
+        public void close() {
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    private final class ShardedTail implements WalSubscription {
+        private final String[] cursors;
+        private final WalSubscription[] tails;
+
+        ShardedTail(String fromCursor, Consumer<WalChange> consumer) {
+            this.cursors = new String[shards.length];
+            this.tails = new WalSubscription[shards.length];
+            if (fromCursor != null && !fromCursor.isEmpty()) {
+                String[] parts = fromCursor.split(",", -1);
+                if (parts.length != shards.length) {
+                    throw new IllegalArgumentException("WAL cursor " + fromCursor + " is not for " + shards.length + " shards");
+                }
+                for (int i = 0; i < parts.length; i++) {
+                    cursors[i] = parts[i].isEmpty() ? null : parts[i];
+                }
+            }
+            try {
+                for (int i = 0; i < shards.length; i++) {
+                    int shard = i;
+                    tails[i] = shards[i].tail(cursors[i], change -> deliver(shard, change, consumer));
+                }
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // the shard's cursor only moves once the consumer is done with the change
+        private synchronized void deliver(int shard, WalChange change, Consumer<WalChange> consumer) {
+            String previous = cursors[shard];
+            cursors[shard] = change.getCursor();
+            String joined = joined();
+            cursors[shard] = previous;
+            try {
+                consumer.accept(change.withCursor(joined));
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+            cursors[shard] = change.getCursor();
+        }
+
+        private String joined() {
+            StringBuilder cursor = new StringBuilder();
+            for (int i = 0; i < cursors.length; i++) {
+                if (i > 0) {
+                    cursor.append(',');
+                }
+                if (cursors[i] != null) {
+                    cursor.append(cursors[i]);
+                }
+            }
+            return cursor.toString();
+        }
+
+        @Override
+        public synchronized String cursor() {
+            return joined();
+        }
+
+        @Override
+        public boolean isActive() {
+            for (WalSubscription tail : tails) {
+                if (tail == null || !tail.isActive()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            for (WalSubscription tail : tails) {
+                if (tail != null) {
+                    tail.close();
+                }
+            }
+        }
+    }
+
+    private void closeOpened() {
+        for (FileBasedWAL shard : shards) {
+            if (shard != null) {
+                try {
+                    shard.close();
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to close WAL shard {}", shard.getLogFilePath(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.twopc.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// ids for strings that repeat on almost every record: participant URLs, operation data keys, votes
+// records store the small varint id instead of the string
+// ids are shared by all segments of the WAL and never change, so compaction can copy records byte for byte
+// the file wal.dict only grows: each entry is [int length][int crc32c][utf8 bytes], id = entry number
+// a new entry is forced to disk before the record using it is encoded, a torn last entry was never used
+class StringDictionary implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(StringDictionary.class);
+    static final String FILE_NAME = "wal.dict";
+
+    // ids are meant for a small, fixed vocabulary, anything beyond this is written inline
+    private static final int MAX_ENTRIES = 4096;
+    private static final int MAX_ENTRY_BYTES = 1024;
+
+    private final FileChannel channel;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    // index 0 is unused, id 0 means "inline string" in a record
+    private volatile String[] strings;
+    private long size;
+    private final ReentrantLock addLock = new ReentrantLock();
+
+    StringDictionary(Path directory) throws IOException {
+        this.channel = FileChannel.open(directory.resolve(FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+    }
+
+    private void load() throws IOException {
+        List<String> loaded = new ArrayList<>();
+        loaded.add(null);
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        long fileSize = channel.size();
+        long offset = 0;
+        while (offset + header.capacity() <= fileSize) {
+            header.clear();
+            channel.read(header, offset);
+            int length = header.getInt(0);
+            int checksum = header.getInt(4);
+            if (length <= 0 || length > MAX_ENTRY_BYTES || offset + 8 + length > fileSize) {
+                break;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            channel.read(bytes, offset + 8);
+            CRC32C crc = new CRC32C();
+            crc.update(bytes.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            String value = new String(bytes.array(), StandardCharsets.UTF_8);
+            ids.put(value, loaded.size());
+            loaded.add(value);
+            offset += 8 + length;
+        }
+
+        if (offset < fileSize) {
+            logger.warn("Truncating {} bytes of torn entry at the end of the WAL dictionary", fileSize - offset);
+            channel.truncate(offset);
+            channel.force(true);
+        }
+        this.size = offset;
+        this.strings = loaded.toArray(new String[0]);
+    }
+
+    // id of the string, adding it if there is still room, 0 if it has to be written inline
+    int idOf(String value) throws IOException {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        return add(value);
+    }
+
+    // writes and forces under a ReentrantLock rather than a monitor, a virtual thread waiting on the force unmounts
+    private int add(String value) throws IOException {
+        addLock.lock();
+        try {
+            Integer id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (strings.length > MAX_ENTRIES || bytes.length == 0 || bytes.length > MAX_ENTRY_BYTES) {
+                return 0;
+            }
+
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, bytes.length);
+            ByteBuffer entry = ByteBuffer.allocate(8 + bytes.length);
+            entry.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+            while (entry.hasRemaining()) {
+                size += channel.write(entry, size);
+            }
+            channel.force(false);
+
+            String[] grown = new String[strings.length + 1];
+            System.arraycopy(strings, 0, grown, 0, strings.length);
+            int newId = strings.length;
+            grown[newId] = value;
+            strings = grown;
+            ids.put(value, newId);
+            return newId;
+        } finally {
+            addLock.unlock();
+        }
+    }
+
+    String get(int id) throws IOException {
+        String[] current = strings;
+        if (id <= 0 || id >= current.length) {
+            throw new IOException("Unknown WAL dictionary id " + id);
+        }
+        return current[id];
+    }
+
+    int size() {
+        return strings.length - 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
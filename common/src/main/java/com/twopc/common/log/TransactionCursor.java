@@ -0,0 +1,17 @@
+package com.twopc.common.log;
+
+import com.twopc.common.model.Transaction;
+
+import java.util.Iterator;
+
+// one page of a WriteAheadLog.query, transactions are read from the log as the caller iterates
+// so memory use does not depend on how many transactions the log holds
+public interface TransactionCursor extends Iterator<Transaction>, AutoCloseable {
+
+    // opaque token to pass to WalQuery.after to continue behind the last transaction next returned,
+    // null once the end of the log was reached
+    String cursor();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,257 @@
+package com.twopc.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// bloom filter over every transaction id ever appended to a WAL, including ids compaction has long dropped
+// mightContain false means the id was never logged here, answered from memory without the index or any lock
+// bits are only ever set, so concurrent adds and lookups need no locking
+// stored in wal.bloom next to the checkpoint, written to a temp file and moved into place; compaction writes it
+// before it drops a settled transaction, so a stored filter never misses an id that is gone from the log
+// a filter is complete if it has seen the whole history of its log; one rebuilt by replay of a log that may have
+// been compacted is not, and mightContain false only tells that the id is not in the log right now
+// layout: [int magic][int version][int hashes][int words][long ids][byte complete] { [long word] } [int crc32c of everything before]
+// version 1 files have no complete byte and are loaded as incomplete
+class TransactionIdFilter {
+    private static final Logger logger = LoggerFactory.getLogger(TransactionIdFilter.class);
+    static final String FILE_NAME = "wal.bloom";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x3250424c;
+    private static final int VERSION = 2;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_WORDS = Integer.MAX_VALUE / 64;
+
+    // sized with expectedIds 0: remembers nothing and answers every lookup with "maybe"
+    static final TransactionIdFilter DISABLED = new TransactionIdFilter(0, 0, true);
+
+    private final AtomicLongArray words;
+    private final int hashes;
+    private final long bits;
+    // only ever goes from complete to incomplete, when ids of another log of unknown completeness are taken over
+    private volatile boolean complete;
+    // adds that set at least one new bit, roughly the number of distinct ids
+    private final AtomicLong ids = new AtomicLong();
+
+    private TransactionIdFilter(int wordCount, int hashes, boolean complete) {
+        this.words = new AtomicLongArray(wordCount);
+        this.hashes = hashes;
+        this.bits = (long) wordCount * 64;
+        this.complete = complete;
+    }
+
+    // the usual m = -n ln p / (ln 2)^2 bits and k = m/n ln 2 hash functions
+    static TransactionIdFilter create(long expectedIds, double falsePositiveRate) {
+        if (expectedIds <= 0) {
+            return DISABLED;
+        }
+        double rate = Math.min(0.5, Math.max(1e-9, falsePositiveRate));
+        double bitCount = -expectedIds * Math.log(rate) / (Math.log(2) * Math.log(2));
+        int wordCount = (int) Math.min(MAX_WORDS, Math.max(1, Math.ceil(bitCount / 64)));
+        int hashes = (int) Math.max(1, Math.round(wordCount * 64.0 / expectedIds * Math.log(2)));
+        return new TransactionIdFilter(wordCount, Math.min(hashes, 16), true);
+    }
+
+    boolean isEnabled() {
+        return bits > 0;
+    }
+
+    // whether every id ever logged went through this filter, not only the ones still in the log
+    boolean isComplete() {
+        return complete;
+    }
+
+    // takes over every id the other filter has seen, as when the transactions of one log are moved into another
+    // a source that is incomplete, or sized differently so its bits cannot be merged, leaves this filter incomplete
+    void addAll(TransactionIdFilter other) {
+        if (bits == 0) {
+            return;
+        }
+        if (!other.complete || other.hashes != hashes || other.bits != bits) {
+            complete = false;
+            return;
+        }
+        for (int i = 0; i < words.length(); i++) {
+            long otherWord = other.words.get(i);
+            words.getAndUpdate(i, current -> current | otherWord);
+        }
+        ids.addAndGet(other.ids.get());
+    }
+
+    void add(String transactionId) {
+        if (bits == 0) {
+            return;
+        }
+        long hash = hash(transactionId);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        boolean changed = false;
+        for (int i = 1; i <= hashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((words.get(word) & mask) == 0) {
+                words.getAndUpdate(word, current -> current | mask);
+                changed = true;
+            }
+        }
+        if (changed) {
+            ids.incrementAndGet();
+        }
+    }
+
+    boolean mightContain(String transactionId) {
+        if (bits == 0) {
+            return true;
+        }
+        long hash = hash(transactionId);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= hashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, bits);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long bits() {
+        return bits;
+    }
+
+    int hashes() {
+        return hashes;
+    }
+
+    long ids() {
+        return ids.get();
+    }
+
+    // (set bits / bits) ^ hashes, walks the whole filter, meant for stats only
+    double estimatedFalsePositiveRate() {
+        if (bits == 0) {
+            return 1.0;
+        }
+        long set = 0;
+        for (int i = 0; i < words.length(); i++) {
+            set += Long.bitCount(words.get(i));
+        }
+        return Math.pow((double) set / bits, hashes);
+    }
+
+    // fnv-1a over the chars, finished with the murmur3 64-bit mix so both halves are usable as hashes
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // a snapshot of the bits, adds that race with it may or may not be in it; checkpoints and compaction share the temp file
+    synchronized void write(Path directory) throws IOException {
+        if (bits == 0) {
+            return;
+        }
+        Path file = directory.resolve(FILE_NAME);
+        Path temp = directory.resolve(FILE_NAME + TEMP_SUFFIX);
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_BYTES);
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hashes);
+            out.writeInt(words.length());
+            out.writeLong(ids.get());
+            out.writeBoolean(complete);
+            for (int i = 0; i < words.length(); i++) {
+                out.writeLong(words.get(i));
+            }
+            out.flush();
+
+            DataOutputStream trailer = new DataOutputStream(buffered);
+            trailer.writeInt((int) crc.getValue());
+            trailer.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // the stored filter if it has the shape this one was created with, otherwise this (empty) filter
+    // a filter that cannot be loaded is rebuilt by replay and then only knows the transactions still in the log:
+    // complete for a log created just now, incomplete for any other, and stored as such from then on
+    TransactionIdFilter loadInto(Path directory, boolean newLog) {
+        Path file = directory.resolve(FILE_NAME);
+        try {
+            Files.deleteIfExists(directory.resolve(FILE_NAME + TEMP_SUFFIX));
+        } catch (IOException e) {
+            logger.warn("Could not remove leftover {}{}", file, TEMP_SUFFIX, e);
+        }
+        if (bits == 0) {
+            return this;
+        }
+        TransactionIdFilter rebuilt = newLog ? this : new TransactionIdFilter(words.length(), hashes, false);
+        if (!Files.exists(file)) {
+            if (!newLog) {
+                logger.warn("No {} for an existing log, ids compacted away before are not known", file);
+            }
+            return rebuilt;
+        }
+        CRC32C crc = new CRC32C();
+        try (InputStream buffered = new BufferedInputStream(Files.newInputStream(file), BUFFER_BYTES)) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(buffered, crc));
+            int magic = in.readInt();
+            int version = in.readInt();
+            if (magic != MAGIC || (version != 1 && version != VERSION)) {
+                logger.warn("Ignoring {}, unknown format", file);
+                return rebuilt;
+            }
+            if (in.readInt() != hashes || in.readInt() != words.length()) {
+                logger.warn("Ignoring {}, it was sized for different bloom-filter settings", file);
+                return rebuilt;
+            }
+            long storedIds = in.readLong();
+            boolean storedComplete = version == VERSION && in.readBoolean();
+            TransactionIdFilter loaded = new TransactionIdFilter(words.length(), hashes, storedComplete);
+            loaded.ids.set(storedIds);
+            for (int i = 0; i < words.length(); i++) {
+                loaded.words.set(i, in.readLong());
+            }
+            int expected = (int) crc.getValue();
+            if (new DataInputStream(buffered).readInt() != expected) {
+                logger.warn("Ignoring {}, checksum mismatch", file);
+                return rebuilt;
+            }
+            return loaded;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable {}: {}", file, e.toString());
+            return rebuilt;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.twopc.common.log;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+
+// transaction id -> log position of the latest record for that transaction
+// open addressing with linear probing over parallel arrays, so an entry costs one String
+// plus one reference and two longs, instead of a HashMap node and a boxed Long
+// an entry is the LogPosition with a couple of flag bits on top, see TERMINAL and ACKNOWLEDGED
+// when the latest record is a TRANSITION, the base is the position of the TRANSACTION record it folds onto
+class TransactionIndex {
+    static final long NO_POSITION = -1L;
+
+    // latest record is COMMITTED or ABORTED
+    static final long TERMINAL = 1L << 60;
+    // an ACK marker followed the terminal record, compaction may drop the transaction
+    static final long ACKNOWLEDGED = 1L << 61;
+    private static final long FLAGS = TERMINAL | ACKNOWLEDGED;
+    private static final float MAX_LOAD = 0.6f;
+
+    // String header + backing byte[] header, txn ids are ASCII so they use the compact LATIN1 coder
+    private static final int STRING_OVERHEAD_BYTES = 24 + 16;
+    // one compressed reference in keys[] and one long each in positions[] and bases[]
+    private static final int SLOT_BYTES = 4 + 8 + 8;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private String[] keys;
+    private long[] positions;
+    private long[] bases;
+    private int size;
+    private long keyBytes;
+
+    TransactionIndex() {
+        this(1024);
+    }
+
+    TransactionIndex(int expectedEntries) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedEntries / MAX_LOAD)) - 1) << 1;
+        this.keys = new String[capacity];
+        this.positions = new long[capacity];
+        this.bases = new long[capacity];
+    }
+
+    static long position(long entry) {
+        return entry & ~FLAGS;
+    }
+
+    static long flags(long entry) {
+        return entry & FLAGS;
+    }
+
+    static boolean isSettled(long entry) {
+        return (entry & FLAGS) == FLAGS;
+    }
+
+    // entry of the latest record for the transaction, or -1 if it was never logged
+    long get(String transactionId) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(keys, transactionId);
+            return keys[slot] == null ? NO_POSITION : positions[slot];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // position of the TRANSACTION record the latest TRANSITION folds onto, -1 if the latest record is a full one
+    long base(String transactionId) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(keys, transactionId);
+            return keys[slot] == null ? NO_POSITION : bases[slot];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // entry and base read together, so they belong to the same record
+    State lookup(String transactionId) {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(keys, transactionId);
+            State state = new State();
+            if (keys[slot] != null) {
+                state.entry = positions[slot];
+                state.base = bases[slot];
+            }
+            return state;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean contains(String transactionId) {
+        return get(transactionId) != NO_POSITION;
+    }
+
+    // applies one appended or replayed record, see State.apply
+    // done under one lock so it cannot interleave with the compactor remapping the entry
+    // died is called with the lock held, it must not call back into the index
+    void apply(String transactionId, RecordType type, long position, boolean terminal, LongConsumer died) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(keys, transactionId);
+            State state = new State();
+            if (keys[slot] != null) {
+                state.entry = positions[slot];
+                state.base = bases[slot];
+            }
+            state.apply(type, position, terminal, died);
+            store(transactionId, slot, state.entry, state.base);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // sets entry and base as they are, -1 as entry removes the transaction
+    void put(String transactionId, long entry, long base) {
+        lock.writeLock().lock();
+        try {
+            store(transactionId, findSlot(keys, transactionId), entry, base);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // called with the write lock held
+    private void store(String transactionId, int slot, long entry, long base) {
+        if (entry == NO_POSITION) {
+            removeSlot(transactionId, slot);
+            return;
+        }
+        if (keys[slot] == null) {
+            keys[slot] = transactionId;
+            size++;
+            keyBytes += transactionId.length();
+        }
+        positions[slot] = entry;
+        bases[slot] = base;
+
+        if (size > keys.length * MAX_LOAD) {
+            resize(keys.length << 1);
+        }
+    }
+
+    // a record was moved by compaction: whichever of entry or base still points at it follows it,
+    // flags are kept; a newer record may have replaced it meanwhile, then nothing points at it anymore
+    Remapped remap(String transactionId, long from, long to) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(keys, transactionId);
+            if (keys[slot] == null) {
+                return Remapped.NONE;
+            }
+            if (position(positions[slot]) == from) {
+                positions[slot] = to | flags(positions[slot]);
+                return isSettled(positions[slot]) ? Remapped.SETTLED_ENTRY : Remapped.ENTRY;
+            }
+            if (bases[slot] == from) {
+                bases[slot] = to;
+                return Remapped.BASE;
+            }
+            return Remapped.NONE;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    enum Remapped {
+        NONE,
+        ENTRY,
+        SETTLED_ENTRY,
+        BASE
+    }
+
+    boolean remove(String transactionId, long expected) {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(keys, transactionId);
+            if (keys[slot] == null || positions[slot] != expected) {
+                return false;
+            }
+            removeSlot(transactionId, slot);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // called with the write lock held
+    private long removeSlot(String transactionId, int slot) {
+        if (keys[slot] == null) {
+            return NO_POSITION;
+        }
+        long removed = positions[slot];
+        keys[slot] = null;
+        bases[slot] = NO_POSITION;
+        size--;
+        keyBytes -= transactionId.length();
+
+        // backward shift so later entries of the same probe run stay reachable
+        int mask = keys.length - 1;
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (keys[next] != null) {
+            int home = hash(keys[next]) & mask;
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                keys[hole] = keys[next];
+                positions[hole] = positions[next];
+                bases[hole] = bases[next];
+                keys[next] = null;
+                bases[next] = NO_POSITION;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return removed;
+    }
+
+    // copy of all keys and entries, taken under the read lock
+    Entries entries() {
+        lock.readLock().lock();
+        try {
+            String[] snapshotKeys = new String[size];
+            long[] snapshotValues = new long[size];
+            long[] snapshotBases = new long[size];
+            int next = 0;
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != null) {
+                    snapshotKeys[next] = keys[slot];
+                    snapshotValues[next] = positions[slot];
+                    snapshotBases[next] = bases[slot];
+                    next++;
+                }
+            }
+            return new Entries(snapshotKeys, snapshotValues, snapshotBases);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            Arrays.fill(keys, null);
+            size = 0;
+            keyBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int capacity() {
+        lock.readLock().lock();
+        try {
+            return keys.length;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // approximate heap cost of one indexed transaction: the key String, its bytes,
+    // and this entry's share of the (partly empty) slot arrays
+    long estimatedBytesPerEntry() {
+        lock.readLock().lock();
+        try {
+            if (size == 0) {
+                return 0;
+            }
+            long avgKeyBytes = align8(16 + keyBytes / size) - 16;
+            long slotShare = ((long) keys.length * SLOT_BYTES) / size;
+            return STRING_OVERHEAD_BYTES + avgKeyBytes + slotShare;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long estimatedTotalBytes() {
+        return estimatedBytesPerEntry() * size();
+    }
+
+    private void resize(int newCapacity) {
+        String[] oldKeys = keys;
+        long[] oldPositions = positions;
+        long[] oldBases = bases;
+        String[] newKeys = new String[newCapacity];
+        long[] newPositions = new long[newCapacity];
+        long[] newBases = new long[newCapacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = findSlot(newKeys, oldKeys[i]);
+                newKeys[slot] = oldKeys[i];
+                newPositions[slot] = oldPositions[i];
+                newBases[slot] = oldBases[i];
+            }
+        }
+        keys = newKeys;
+        positions = newPositions;
+        bases = newBases;
+    }
+
+    // slot holding the key, or the empty slot where it would go
+    private static int findSlot(String[] table, String key) {
+        int mask = table.length - 1;
+        int slot = hash(key) & mask;
+        while (table[slot] != null && !table[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static long align8(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    // latest entry and base of one transaction, and what each kind of record does to them
+    // the single definition of the rules, used for live appends and sequential replay through apply()
+    // and by ParallelReplayer when it folds a segment on its own
+    // died gets the position of every record that the change makes dead
+    static final class State {
+        long entry = NO_POSITION;
+        long base = NO_POSITION;
+
+        void apply(RecordType type, long position, boolean terminal, LongConsumer died) {
+            long latest = position | (terminal ? TERMINAL : 0);
+            switch (type) {
+                case TRANSACTION -> {
+                    clear(died);
+                    entry = latest;
+                }
+                case TRANSITION -> {
+                    if (entry == NO_POSITION) {
+                        // nothing left to fold onto, e.g. the base was settled and compacted away
+                        died.accept(position);
+                        return;
+                    }
+                    if (base == NO_POSITION) {
+                        base = position(entry);
+                    } else {
+                        died.accept(position(entry));
+                    }
+                    entry = latest;
+                }
+                case TOMBSTONE -> clear(died);
+                case ACK -> {
+                    // a terminal transaction becomes settled, a non-terminal one is dropped
+                    // (its terminal record was already compacted away, so only stale older records can remain)
+                    if (entry == NO_POSITION || (entry & ACKNOWLEDGED) != 0) {
+                        return;
+                    }
+                    if ((entry & TERMINAL) != 0) {
+                        // everything of a settled transaction is garbage now, whichever segment compacts first drops it
+                        died.accept(position(entry));
+                        if (base != NO_POSITION) {
+                            died.accept(base);
+                        }
+                        entry |= ACKNOWLEDGED;
+                    } else {
+                        clear(died);
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown record type " + type);
+            }
+        }
+
+        // the records of a settled transaction were counted dead by its ACK already
+        private void clear(LongConsumer died) {
+            if (entry != NO_POSITION && (entry & ACKNOWLEDGED) == 0) {
+                died.accept(position(entry));
+                if (base != NO_POSITION) {
+                    died.accept(base);
+                }
+            }
+            entry = NO_POSITION;
+            base = NO_POSITION;
+        }
+    }
+
+    static final class Entries {
+        private final String[] keys;
+        private final long[] values;
+        private final long[] bases;
+
+        Entries(String[] keys, long[] values, long[] bases) {
+            this.keys = keys;
+            this.values = values;
+            this.bases = bases;
+        }
+
+        int size() {
+            return keys.length;
+        }
+
+        String key(int i) {
+            return keys[i];
+        }
+
+        long value(int i) {
+            return values[i];
+        }
+
+        long base(int i) {
+            return bases[i];
+        }
+    }
+}
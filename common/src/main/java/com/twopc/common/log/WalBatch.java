@@ -0,0 +1,66 @@
+package com.twopc.common.log;
+
+import com.twopc.common.model.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// records for WriteAheadLog.writeBatch, e.g. the PREPARED states or the decisions of one batched request
+// each entry is what writeLog, writeTransition or acknowledge would have written on its own, in the order added
+// not thread-safe, filled by one thread and then handed to the log
+public final class WalBatch {
+    enum Kind { FULL, TRANSITION, ACK }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public static WalBatch create() {
+        return new WalBatch();
+    }
+
+    // the whole transaction, as writeLog
+    public WalBatch write(Transaction transaction) {
+        entries.add(new Entry(Kind.FULL, transaction.getTransactionId(), transaction));
+        return this;
+    }
+
+    // a state change, as writeTransition
+    public WalBatch transition(Transaction transaction) {
+        entries.add(new Entry(Kind.TRANSITION, transaction.getTransactionId(), transaction));
+        return this;
+    }
+
+    // phase 2 was acknowledged, as acknowledge
+    public WalBatch acknowledge(String transactionId) {
+        entries.add(new Entry(Kind.ACK, transactionId, null));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    List<Entry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    static final class Entry {
+        final Kind kind;
+        final String transactionId;
+        final Transaction transaction;
+
+        Entry(Kind kind, String transactionId, Transaction transaction) {
+            this.kind = kind;
+            this.transactionId = transactionId;
+            this.transaction = transaction;
+        }
+    }
+}
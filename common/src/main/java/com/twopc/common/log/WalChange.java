@@ -0,0 +1,68 @@
+package com.twopc.common.log;
+
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+
+// one record of the log as seen by a WriteAheadLog.tail subscriber
+public final class WalChange {
+    public enum Kind {
+        // a new state of the transaction, full or as a transition
+        UPDATE,
+        // deleteLog was called for the transaction
+        DELETE,
+        // every participant acknowledged the transaction's outcome
+        ACKNOWLEDGE
+    }
+
+    private final Kind kind;
+    private final String transactionId;
+    private final Transaction transaction;
+    private final long position;
+    private final String cursor;
+
+    WalChange(Kind kind, String transactionId, Transaction transaction, long position, String cursor) {
+        this.kind = kind;
+        this.transactionId = transactionId;
+        this.transaction = transaction;
+        this.position = position;
+        this.cursor = cursor;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    // the transaction as of this record for UPDATE, null otherwise
+    // a transition whose base record is no longer in the log only carries id, state, updatedAt and votes
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    public TransactionState getState() {
+        return transaction == null ? null : transaction.getState();
+    }
+
+    // LogPosition of the record, within its shard for a ShardedWAL
+    public long getPosition() {
+        return position;
+    }
+
+    // pass to tail to resume right behind this change, e.g. after a restart
+    public String getCursor() {
+        return cursor;
+    }
+
+    WalChange withCursor(String cursor) {
+        return new WalChange(kind, transactionId, transaction, position, cursor);
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + transactionId + (transaction == null ? "" : " " + transaction.getState())
+                + " at " + LogPosition.toString(position);
+    }
+}
@@ -0,0 +1,227 @@
+package com.twopc.common.log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// tuning knobs for FileBasedWAL and ShardedWAL
+// bound from <service>.wal.* in each service's application.yml
+public class WalOptions {
+    private String baseDir = "./logs";
+    private DurabilityMode durability = DurabilityMode.GROUP;
+
+    // how long a flushing caller waits for other callers to join its batch
+    private long groupCommitWindowMicros = 200;
+
+    // a batch is flushed right away once this many bytes are waiting
+    private int groupCommitMaxBytes = 256 * 1024;
+
+    // slots in the ring between request threads and the WAL writer thread, appends wait when it is full
+    private int ringBufferSize = 4096;
+
+    // the active segment is sealed and a new one started once it would grow past this
+    private long segmentSizeBytes = 64L * 1024 * 1024;
+
+    // new segments are files of segmentSizeBytes prepared ahead of time and overwritten in place,
+    // so appends never grow a file; false grows every segment with its appends
+    private boolean preallocateSegments = true;
+
+    // preallocated or recycled segment files kept ready for the next roll
+    private int segmentPoolSize = 2;
+
+    // how often the background compactor looks at sealed segments
+    private long compactionIntervalSeconds = 30;
+
+    // share of dead records at which a sealed segment gets rewritten
+    private double compactionThreshold = 0.5;
+
+    // how often the index is checkpointed so a restart only replays the log written after it, 0 disables
+    private long checkpointIntervalSeconds = 60;
+
+    // independent sub-logs a transaction is routed to by the hash of its id, 1 keeps a single log
+    private int shards = 1;
+
+    // directories the shards are spread over round-robin, e.g. one per disk; empty puts them all under baseDir
+    private List<String> shardDirs = new ArrayList<>();
+
+    // threads decoding segments in parallel on startup, 0 uses one per core
+    private int replayParallelism = 0;
+
+    // transaction ids the bloom filter of known ids is sized for (per shard), 0 disables it
+    // more ids than this only raise the false positive rate, a lookup never misses an id that was logged
+    private long bloomFilterExpectedIds = 1_000_000;
+
+    // false positive rate of the bloom filter at bloomFilterExpectedIds ids
+    private double bloomFilterFalsePositiveRate = 0.01;
+
+    // sealed segments beyond the newest this many are compressed into wal-<id>.zlog, 0 keeps every segment uncompressed
+    private int archiveAfterSegments = 4;
+
+    // uncompressed bytes per independently compressed block of an archived segment, a read inflates one block
+    private int archiveBlockBytes = 64 * 1024;
+
+    // java.util.zip.Deflater level 1 (fastest) to 9 (smallest)
+    private int archiveCompressionLevel = 6;
+
+    // changes a tail subscription reads ahead of its consumer before it stops reading
+    private int tailBufferSize = 1024;
+
+    public String getBaseDir() {
+        return baseDir;
+    }
+
+    public void setBaseDir(String baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    public DurabilityMode getDurability() {
+        return durability;
+    }
+
+    public void setDurability(DurabilityMode durability) {
+        this.durability = durability;
+    }
+
+    public long getGroupCommitWindowMicros() {
+        return groupCommitWindowMicros;
+    }
+
+    public void setGroupCommitWindowMicros(long groupCommitWindowMicros) {
+        this.groupCommitWindowMicros = groupCommitWindowMicros;
+    }
+
+    public int getGroupCommitMaxBytes() {
+        return groupCommitMaxBytes;
+    }
+
+    public void setGroupCommitMaxBytes(int groupCommitMaxBytes) {
+        this.groupCommitMaxBytes = groupCommitMaxBytes;
+    }
+
+    public long getSegmentSizeBytes() {
+        return segmentSizeBytes;
+    }
+
+    public void setSegmentSizeBytes(long segmentSizeBytes) {
+        this.segmentSizeBytes = segmentSizeBytes;
+    }
+
+    public boolean isPreallocateSegments() {
+        return preallocateSegments;
+    }
+
+    public void setPreallocateSegments(boolean preallocateSegments) {
+        this.preallocateSegments = preallocateSegments;
+    }
+
+    public int getSegmentPoolSize() {
+        return segmentPoolSize;
+    }
+
+    public void setSegmentPoolSize(int segmentPoolSize) {
+        this.segmentPoolSize = segmentPoolSize;
+    }
+
+    public long getCompactionIntervalSeconds() {
+        return compactionIntervalSeconds;
+    }
+
+    public void setCompactionIntervalSeconds(long compactionIntervalSeconds) {
+        this.compactionIntervalSeconds = compactionIntervalSeconds;
+    }
+
+    public double getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public int getRingBufferSize() {
+        return ringBufferSize;
+    }
+
+    public void setRingBufferSize(int ringBufferSize) {
+        this.ringBufferSize = ringBufferSize;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    public List<String> getShardDirs() {
+        return shardDirs;
+    }
+
+    public void setShardDirs(List<String> shardDirs) {
+        this.shardDirs = shardDirs;
+    }
+
+    public int getReplayParallelism() {
+        return replayParallelism;
+    }
+
+    public void setReplayParallelism(int replayParallelism) {
+        this.replayParallelism = replayParallelism;
+    }
+
+    public long getCheckpointIntervalSeconds() {
+        return checkpointIntervalSeconds;
+    }
+
+    public void setCheckpointIntervalSeconds(long checkpointIntervalSeconds) {
+        this.checkpointIntervalSeconds = checkpointIntervalSeconds;
+    }
+
+    public long getBloomFilterExpectedIds() {
+        return bloomFilterExpectedIds;
+    }
+
+    public void setBloomFilterExpectedIds(long bloomFilterExpectedIds) {
+        this.bloomFilterExpectedIds = bloomFilterExpectedIds;
+    }
+
+    public double getBloomFilterFalsePositiveRate() {
+        return bloomFilterFalsePositiveRate;
+    }
+
+    public void setBloomFilterFalsePositiveRate(double bloomFilterFalsePositiveRate) {
+        this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+    }
+
+    public int getTailBufferSize() {
+        return tailBufferSize;
+    }
+
+    public void setTailBufferSize(int tailBufferSize) {
+        this.tailBufferSize = tailBufferSize;
+    }
+
+    public int getArchiveAfterSegments() {
+        return archiveAfterSegments;
+    }
+
+    public void setArchiveAfterSegments(int archiveAfterSegments) {
+        this.archiveAfterSegments = archiveAfterSegments;
+    }
+
+    public int getArchiveBlockBytes() {
+        return archiveBlockBytes;
+    }
+
+    public void setArchiveBlockBytes(int archiveBlockBytes) {
+        this.archiveBlockBytes = archiveBlockBytes;
+    }
+
+    public int getArchiveCompressionLevel() {
+        return archiveCompressionLevel;
+    }
+
+    public void setArchiveCompressionLevel(int archiveCompressionLevel) {
+        this.archiveCompressionLevel = archiveCompressionLevel;
+    }
+}
@@ -0,0 +1,115 @@
+package com.twopc.common.log;
+
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+
+import java.time.LocalDateTime;
+
+// filter, page size and resume point of a WriteAheadLog.query
+// the state is checked against the record header and unsettled against the index before anything is decoded,
+// the time range (on updatedAt) and the participant are checked on the decoded transaction
+// immutable, every with-method returns a copy
+public final class WalQuery {
+    private final TransactionState state;
+    private final LocalDateTime updatedFrom;
+    private final LocalDateTime updatedTo;
+    private final String participant;
+    private final boolean unsettled;
+    private final String cursor;
+    private final int limit;
+
+    private WalQuery(TransactionState state, LocalDateTime updatedFrom, LocalDateTime updatedTo,
+                     String participant, boolean unsettled, String cursor, int limit) {
+        this.state = state;
+        this.updatedFrom = updatedFrom;
+        this.updatedTo = updatedTo;
+        this.participant = participant;
+        this.unsettled = unsettled;
+        this.cursor = cursor;
+        this.limit = limit;
+    }
+
+    // every live transaction, from the start of the log, without a limit
+    public static WalQuery all() {
+        return new WalQuery(null, null, null, null, false, null, 0);
+    }
+
+    // null matches any state
+    public WalQuery state(TransactionState state) {
+        return new WalQuery(state, updatedFrom, updatedTo, participant, unsettled, cursor, limit);
+    }
+
+    // updatedAt in [from, to), either bound may be null
+    public WalQuery updatedBetween(LocalDateTime from, LocalDateTime to) {
+        return new WalQuery(state, from, to, participant, unsettled, cursor, limit);
+    }
+
+    // transactions the given participant URL takes part in, null matches any
+    public WalQuery participant(String participant) {
+        return new WalQuery(state, updatedFrom, updatedTo, participant, unsettled, cursor, limit);
+    }
+
+    // only transactions that still need recovery: not yet decided, or decided but not acknowledged by everyone
+    // answered from the index, settled transactions are never decoded
+    public WalQuery unsettled() {
+        return new WalQuery(state, updatedFrom, updatedTo, participant, true, cursor, limit);
+    }
+
+    // resumes where the cursor of an earlier page left off, null starts at the beginning of the log
+    public WalQuery after(String cursor) {
+        return new WalQuery(state, updatedFrom, updatedTo, participant, unsettled, cursor, limit);
+    }
+
+    // at most this many transactions per page, 0 for no limit
+    public WalQuery limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Query limit must not be negative: " + limit);
+        }
+        return new WalQuery(state, updatedFrom, updatedTo, participant, unsettled, cursor, limit);
+    }
+
+    public TransactionState getState() {
+        return state;
+    }
+
+    public LocalDateTime getUpdatedFrom() {
+        return updatedFrom;
+    }
+
+    public LocalDateTime getUpdatedTo() {
+        return updatedTo;
+    }
+
+    public String getParticipant() {
+        return participant;
+    }
+
+    public boolean isUnsettled() {
+        return unsettled;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    // the part of the filter that only needs the record header
+    boolean matchesHeader(WalRecord record) {
+        return state == null || record.getState() == state;
+    }
+
+    boolean matches(Transaction transaction) {
+        LocalDateTime updatedAt = transaction.getUpdatedAt();
+        if (updatedFrom != null && (updatedAt == null || updatedAt.isBefore(updatedFrom))) {
+            return false;
+        }
+        if (updatedTo != null && (updatedAt == null || !updatedAt.isBefore(updatedTo))) {
+            return false;
+        }
+        return participant == null
+                || (transaction.getParticipants() != null && transaction.getParticipants().contains(participant));
+    }
+}
@@ -0,0 +1,67 @@
+package com.twopc.common.log;
+
+import com.twopc.common.protocol.TransactionState;
+
+import java.nio.ByteBuffer;
+
+// one encoded record as it sits in a segment, plus the few header fields
+// the index, replay and compaction need without decoding the whole transaction
+// records read from a sealed segment are views into its mapping, they are only valid while the segment is
+class WalRecord {
+    private final RecordType type;
+    private final String transactionId;
+    private final TransactionState state;
+    private final ByteBuffer data;
+    private final SegmentFormat format;
+    private long position = LogPosition.NONE;
+
+    WalRecord(RecordType type, String transactionId, TransactionState state, byte[] data, SegmentFormat format) {
+        this(type, transactionId, state, ByteBuffer.wrap(data), format);
+    }
+
+    WalRecord(RecordType type, String transactionId, TransactionState state, ByteBuffer data, SegmentFormat format) {
+        this.type = type;
+        this.transactionId = transactionId;
+        this.state = state;
+        this.data = data;
+        this.format = format;
+    }
+
+    RecordType getType() {
+        return type;
+    }
+
+    String getTransactionId() {
+        return transactionId;
+    }
+
+    // state of a TRANSACTION or TRANSITION record, null for markers
+    TransactionState getState() {
+        return state;
+    }
+
+    boolean isTerminal() {
+        return state != null && state.isTerminalState();
+    }
+
+    // the complete record as stored, framing included, as a fresh buffer positioned at its start
+    ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    int length() {
+        return data.limit();
+    }
+
+    SegmentFormat getFormat() {
+        return format;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    void setPosition(long position) {
+        this.position = position;
+    }
+}
@@ -0,0 +1,13 @@
+package com.twopc.common.log;
+
+// a running WriteAheadLog.tail, stopped by close, by closing the log, or by the consumer throwing
+public interface WalSubscription extends AutoCloseable {
+
+    // cursor behind the last change the consumer finished with, where a new tail should resume
+    String cursor();
+
+    boolean isActive();
+
+    @Override
+    void close();
+}
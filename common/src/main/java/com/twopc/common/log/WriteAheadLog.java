@@ -4,18 +4,75 @@ import com.twopc.common.model.Transaction;
 import com.twopc.common.protocol.TransactionState;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 // coordinator logs commit before sending, can recover decision if crashes
 // participant logs prepared before voting yes, remembers the promise
-public interface WriteAheadLog {
+public interface WriteAheadLog extends AutoCloseable {
     void writeLog(Transaction transaction);
+
+    // hands the record to the log without waiting for the disk, the future completes with its log position
+    // once the record is durable; writeLog is the same append, waiting for that future
+    CompletableFuture<Long> appendAsync(Transaction transaction);
+
+    // logs a state change of a transaction that was written before, e.g. the phase-2 decision
+    // only the state, timestamp and votes are written, reads fold them onto the transaction's last full record
+    // a transaction the log does not know yet is written in full
+    void writeTransition(Transaction transaction);
+
+    // writes every record of the batch with a single group write and force (per shard), returns once all are durable
+    // under per-record durability each record is still forced on its own
+    void writeBatch(WalBatch batch);
+
+    // hands the whole batch to the log without waiting for the disk, the future completes once all of it is durable
+    // for records that need not be forced before going on, e.g. a participant's ABORTED under presumed abort
+    CompletableFuture<Void> appendBatchAsync(WalBatch batch);
+
     Optional<Transaction> readLog(String transactionId);
+
+    // false means the transaction was never written to this log, answered from memory by a bloom filter
+    // true means it probably was, it may still be gone from readLog once compaction dropped it
+    // also true for every id while the filter is incomplete, e.g. lost or reset on an existing log
+    boolean mightContain(String transactionId);
     List<Transaction> readLogsByState(TransactionState state);
     List<Transaction> readAllLogs();
+
+    // pages through the latest state of every live transaction in log order, reading as the cursor is iterated
+    // a page resumed after compaction rewrote its segment restarts that segment, so it may repeat transactions
+    TransactionCursor query(WalQuery query);
+
+    // follows the log from a cursor (null for its start) and pushes every durable change to the consumer in log order,
+    // on a thread of the subscription; to resume after a restart, pass the cursor of the last change handled
+    // at most tail-buffer-size changes are read ahead of a slow consumer, appends never wait for it
+    WalSubscription tail(String fromCursor, Consumer<WalChange> consumer);
+
+    // logically deletes the transaction, its records are reclaimed by compaction
     void deleteLog(String transactionId);
+
+    // phase 2 was acknowledged by everyone involved, a COMMITTED/ABORTED transaction
+    // needs no recovery anymore and compaction may drop it
+    void acknowledge(String transactionId);
+
     String getLogFilePath();
 
+    // persists the current index so the next startup only replays what is written after this point
+    void checkpoint();
+
+    // size and index figures for monitoring, e.g. memory per indexed transaction
+    Map<String, Object> getStats();
+
+    // flushes anything still pending and releases the file
+    @Override
+    void close();
+
+    // a ShardedWAL when more than one shard is configured, a single FileBasedWAL otherwise
+    static WriteAheadLog open(String serviceName, WalOptions options) {
+        return options.getShards() > 1 ? new ShardedWAL(serviceName, options) : new FileBasedWAL(serviceName, options);
+    }
+
     class LogException extends RuntimeException {
         public LogException(String message, Throwable cause) {
             super(message, cause);
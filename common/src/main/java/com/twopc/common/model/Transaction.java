@@ -1,5 +1,6 @@
 package com.twopc.common.model;
 
+import com.fasterxml.jackson.annotation.JsonSetter;
 import com.twopc.common.protocol.TransactionState;
 
 import java.time.LocalDateTime;
@@ -7,6 +8,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Transaction {
     private String transactionId;
@@ -19,6 +21,9 @@ public class Transaction {
     private Map<String, Object> operationData;
     private List<String> lockedResources;
 
+    // guards state and votes; not synchronized, so virtual threads waiting for it do not pin their carrier
+    private final transient ReentrantLock lock = new ReentrantLock();
+
     public Transaction() {
         this.state = TransactionState.INIT;
         this.createdAt = LocalDateTime.now();
@@ -34,33 +39,66 @@ public class Transaction {
         this.transactionId = transactionId;
     }
 
-    public synchronized void setState(TransactionState newState) {
-        if (this.state.canTransitionInto(newState)) {
-            this.state = newState;
-            this.updatedAt = LocalDateTime.now();
-        } else {
-            throw new IllegalStateException(
-                    String.format("Invalid state transition from %s to %s for transaction %s",
-                            this.state, newState, this.transactionId)
-            );
+    public void setState(TransactionState newState) {
+        lock.lock();
+        try {
+            if (this.state.canTransitionInto(newState)) {
+                this.state = newState;
+                this.updatedAt = LocalDateTime.now();
+            } else {
+                throw new IllegalStateException(
+                        String.format("Invalid state transition from %s to %s for transaction %s",
+                                this.state, newState, this.transactionId)
+                );
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void recordVote(String participantUrl, String vote) {
-        participantsVote.put(participantUrl, vote);
+    // used by Jackson when a transaction is read back from the WAL
+    // the logged state was validated when it was written, replaying it must not go through setState
+    // (a fresh Transaction starts in INIT, and INIT -> COMMITTED is not a legal transition)
+    @JsonSetter("state")
+    private void restoreState(TransactionState state) {
+        this.state = state;
     }
 
-    public synchronized boolean allParticipantsVotedYes() {
-        if (participantsVote.size() != participants.size()) return false;
-        return participantsVote.values().stream().allMatch("YES"::equals);
+    public void recordVote(String participantUrl, String vote) {
+        lock.lock();
+        try {
+            participantsVote.put(participantUrl, vote);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized boolean anyParticipantVotedNo() {
-        return participantsVote.values().stream().anyMatch("NO"::equals);
+    public boolean allParticipantsVotedYes() {
+        lock.lock();
+        try {
+            if (participantsVote.size() != participants.size()) return false;
+            return participantsVote.values().stream().allMatch("YES"::equals);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized boolean allVotesReceived() {
-        return participantsVote.size()==participants.size();
+    public boolean anyParticipantVotedNo() {
+        lock.lock();
+        try {
+            return participantsVote.values().stream().anyMatch("NO"::equals);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean allVotesReceived() {
+        lock.lock();
+        try {
+            return participantsVote.size()==participants.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void addParticipant(String participantUrl) {
@@ -32,8 +32,8 @@ public class TransactionMessage {
 
     public TransactionMessage(String transactionId, MessageType messageType) {
         this();
-        this.timestamp = LocalDateTime.now();
-        this.payload = new HashMap<>();
+        this.transactionId = transactionId;
+        this.messageType = messageType;
     }
 
     // factory methods for creating messages
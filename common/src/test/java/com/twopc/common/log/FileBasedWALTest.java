@@ -0,0 +1,268 @@
+package com.twopc.common.log;
+
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileBasedWALTest {
+    @TempDir
+    Path tempDir;
+
+    private final List<FileBasedWAL> opened = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        opened.forEach(FileBasedWAL::close);
+    }
+
+    @Test
+    void tornTailIsTruncatedOnReopen() throws IOException {
+        Path walDir = tempDir.resolve("wal");
+        long dataEnd = writeAndClose(walDir, 3);
+
+        // a frame header announcing more bytes than made it to disk
+        writeToSegment(walDir, dataEnd, ByteBuffer.allocate(14).putInt(1000).putInt(0x12345678).put(new byte[6]).flip());
+
+        assertTailTruncated(walDir, dataEnd, 3);
+    }
+
+    @Test
+    void crcBadTailIsTruncatedOnReopen() throws IOException {
+        Path walDir = tempDir.resolve("wal");
+        long dataEnd = writeAndClose(walDir, 3);
+
+        // a complete frame whose checksum does not match its bytes
+        writeToSegment(walDir, dataEnd, ByteBuffer.allocate(14).putInt(6).putInt(0xdeadbeef)
+                .put((byte) RecordType.TRANSACTION.ordinal()).put(new byte[5]).flip());
+
+        assertTailTruncated(walDir, dataEnd, 3);
+    }
+
+    @Test
+    void replayFromCheckpointMatchesFullReplay() throws IOException {
+        Path walDir = tempDir.resolve("wal");
+        FileBasedWAL wal = open(walDir);
+        List<Transaction> first = writeMixedHistory(wal, "A", 60);
+        wal.checkpoint();
+        // after the checkpoint: new transactions, and decisions on ones the checkpoint still has as open
+        writeMixedHistory(wal, "B", 60);
+        decide(wal, first.subList(40, 60), TransactionState.COMMITTED, true);
+        wal.deleteLog(first.get(0).getTransactionId());
+
+        // crash images of the running log, one with the checkpoint and one without it
+        Path withCheckpoint = copyOf(walDir, "with-checkpoint");
+        Path withoutCheckpoint = copyOf(walDir, "without-checkpoint");
+        Files.delete(withoutCheckpoint.resolve(CheckpointStore.FILE_NAME));
+
+        FileBasedWAL fromCheckpoint = open(withCheckpoint);
+        FileBasedWAL fullReplay = open(withoutCheckpoint);
+
+        assertEquals("checkpoint", fromCheckpoint.getStats().get("recoveryMode"));
+        assertEquals("full-replay", fullReplay.getStats().get("recoveryMode"));
+        assertEquals(snapshot(wal), snapshot(fromCheckpoint));
+        assertEquals(snapshot(wal), snapshot(fullReplay));
+        assertEquals(unsettled(wal), unsettled(fromCheckpoint));
+        assertEquals(unsettled(wal), unsettled(fullReplay));
+    }
+
+    @Test
+    void compactionKeepsUnsettledTransactionsAndTheBloomFilter() throws IOException {
+        Path walDir = tempDir.resolve("wal");
+        FileBasedWAL wal = open(walDir);
+        List<Transaction> transactions = writeMixedHistory(wal, "A", 300);
+        // roll past everything written so far, so all of it sits in sealed segments
+        writeMixedHistory(wal, "B", 100);
+        Set<String> unsettledBefore = unsettled(wal);
+
+        wal.compactNow();
+
+        assertTrue((Long) wal.getStats().get("compactions") > 0);
+        assertEquals(unsettledBefore, unsettled(wal));
+        for (Transaction transaction : transactions) {
+            String txnId = transaction.getTransactionId();
+            if (unsettledBefore.contains(txnId)) {
+                assertEquals(transaction.getState(), wal.readLog(txnId).orElseThrow().getState());
+            }
+            // settled ones may be gone from the log, the filter still knows they were logged
+            assertTrue(wal.mightContain(txnId));
+        }
+        assertFalse(wal.mightContain("TXN-never-logged"));
+        assertTrue(transactions.stream().anyMatch(transaction -> wal.readLog(transaction.getTransactionId()).isEmpty()));
+
+        // a crash right after the pass: the filter on disk already covers what compaction dropped
+        Path crashed = copyOf(walDir, "crashed");
+        Files.delete(crashed.resolve(CheckpointStore.FILE_NAME));
+        FileBasedWAL reopened = open(crashed);
+
+        assertEquals(true, reopened.getStats().get("bloomFilterComplete"));
+        assertEquals(unsettledBefore, unsettled(reopened));
+        for (Transaction transaction : transactions) {
+            assertTrue(reopened.mightContain(transaction.getTransactionId()));
+        }
+        assertFalse(reopened.mightContain("TXN-never-logged"));
+    }
+
+    @Test
+    void lostBloomFilterMakesEveryIdPossible() throws IOException {
+        Path walDir = tempDir.resolve("wal");
+        writeAndClose(walDir, 3);
+        Files.delete(walDir.resolve(TransactionIdFilter.FILE_NAME));
+
+        FileBasedWAL wal = open(walDir);
+
+        assertEquals(false, wal.getStats().get("bloomFilterComplete"));
+        assertTrue(wal.mightContain("TXN-never-logged"));
+    }
+
+    private FileBasedWAL open(Path walDir) {
+        WalOptions options = new WalOptions();
+        options.setSegmentSizeBytes(16 * 1024);
+        options.setPreallocateSegments(false);
+        options.setArchiveAfterSegments(0);
+        options.setCheckpointIntervalSeconds(0);
+        options.setBloomFilterExpectedIds(10_000);
+        FileBasedWAL wal = new FileBasedWAL(walDir, "test", options);
+        opened.add(wal);
+        return wal;
+    }
+
+    private void close(FileBasedWAL wal) {
+        opened.remove(wal);
+        wal.close();
+    }
+
+    // where the data of the only segment ends once the log is closed, the end-of-data marker follows
+    private long writeAndClose(Path walDir, int count) throws IOException {
+        FileBasedWAL wal = open(walDir);
+        for (int i = 0; i < count; i++) {
+            wal.writeLog(preparing("TXN-" + i));
+        }
+        close(wal);
+        return Files.size(walDir.resolve(Segment.fileName(1))) - RecordCodec.END_MARKER_BYTES;
+    }
+
+    private void assertTailTruncated(Path walDir, long dataEnd, int count) throws IOException {
+        FileBasedWAL wal = open(walDir);
+        // the segment ends at the last good record again, the bytes behind it are free space for the next append
+        assertEquals(dataEnd, wal.getStats().get("sizeBytes"));
+        for (int i = 0; i < count; i++) {
+            assertEquals(TransactionState.PREPARING, wal.readLog("TXN-" + i).orElseThrow().getState());
+        }
+
+        // appends go on behind the last good record and survive the next restart
+        wal.writeLog(preparing("TXN-" + count));
+        close(wal);
+        FileBasedWAL reopened = open(walDir);
+        assertEquals(count + 1, reopened.readAllLogs().size());
+    }
+
+    // over the end-of-data marker, as an append cut off by a crash leaves it
+    private static void writeToSegment(Path walDir, long offset, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(walDir.resolve(Segment.fileName(1)), StandardOpenOption.WRITE)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes, offset + bytes.position());
+            }
+        }
+    }
+
+    // every transaction PREPARING first; of each ten, three COMMITTED and acknowledged, two ABORTED and acknowledged,
+    // one COMMITTED but not yet acknowledged, the rest left undecided
+    private static List<Transaction> writeMixedHistory(FileBasedWAL wal, String prefix, int count) {
+        List<Transaction> transactions = new ArrayList<>();
+        WalBatch batch = WalBatch.create();
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = preparing("TXN-" + prefix + "-" + i);
+            transactions.add(transaction);
+            batch.write(transaction);
+        }
+        wal.writeBatch(batch);
+
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = transactions.get(i);
+            switch (i % 10) {
+                case 0, 1, 2 -> decide(wal, List.of(transaction), TransactionState.COMMITTED, true);
+                case 3, 4 -> decide(wal, List.of(transaction), TransactionState.ABORTED, true);
+                case 5 -> decide(wal, List.of(transaction), TransactionState.COMMITTED, false);
+                default -> { }
+            }
+        }
+        return transactions;
+    }
+
+    private static void decide(FileBasedWAL wal, List<Transaction> transactions, TransactionState decision,
+                               boolean acknowledged) {
+        WalBatch batch = WalBatch.create();
+        for (Transaction transaction : transactions) {
+            if (transaction.getState().isTerminalState()) {
+                continue;
+            }
+            transaction.recordVote("http://localhost:8081", decision == TransactionState.COMMITTED ? "YES" : "NO");
+            transaction.setState(decision);
+            batch.transition(transaction);
+            if (acknowledged) {
+                batch.acknowledge(transaction.getTransactionId());
+            }
+        }
+        wal.writeBatch(batch);
+    }
+
+    private static Transaction preparing(String txnId) {
+        Transaction transaction = new Transaction(txnId);
+        transaction.addParticipant("http://localhost:8081");
+        transaction.addParticipant("http://localhost:8082");
+        transaction.getOperationData().put("productId", "LAPTOP-001");
+        transaction.getOperationData().put("quantity", 1);
+        transaction.setState(TransactionState.PREPARING);
+        return transaction;
+    }
+
+    // id -> state, updatedAt and votes of every transaction the log returns
+    private static Map<String, String> snapshot(FileBasedWAL wal) {
+        Map<String, String> snapshot = new TreeMap<>();
+        for (Transaction transaction : wal.readAllLogs()) {
+            snapshot.put(transaction.getTransactionId(), transaction.getState() + " " + transaction.getUpdatedAt()
+                    + " " + new TreeMap<>(transaction.getParticipantsVote()));
+        }
+        return snapshot;
+    }
+
+    private static Set<String> unsettled(FileBasedWAL wal) {
+        Set<String> ids = new TreeSet<>();
+        try (TransactionCursor cursor = wal.query(WalQuery.all().unsettled())) {
+            cursor.forEachRemaining(transaction -> ids.add(transaction.getTransactionId()));
+        }
+        return ids;
+    }
+
+    // what a crash would leave on disk, every append has been forced before it returned
+    private Path copyOf(Path walDir, String name) throws IOException {
+        Path copy = tempDir.resolve(name);
+        Files.createDirectories(copy);
+        try (Stream<Path> files = Files.list(walDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, copy.resolve(file.getFileName()));
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,143 @@
+package com.twopc.common.log;
+
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RecordCodecTest {
+    @TempDir
+    Path walDir;
+
+    private StringDictionary dictionary;
+    private RecordCodec codec;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dictionary = new StringDictionary(walDir);
+        codec = new RecordCodec(dictionary);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        dictionary.close();
+    }
+
+    @Test
+    void transactionRoundTripsEveryField() throws IOException {
+        Transaction transaction = preparing("TXN-1");
+        Map<String, Object> operationData = new HashMap<>();
+        operationData.put("productId", "LAPTOP-001");
+        operationData.put("quantity", 3);
+        operationData.put("sequence", 1L << 40);
+        operationData.put("amount", 1499.99);
+        operationData.put("express", true);
+        operationData.put("gift", false);
+        operationData.put("note", null);
+        operationData.put("address", Map.of("city", "Berlin", "zip", "10115"));
+        transaction.setOperationData(operationData);
+        transaction.setLockedResources(List.of("LAPTOP-001", "CUST-001"));
+
+        WalRecord record = codec.encode(transaction);
+        Transaction decoded = codec.decode(record);
+
+        assertEquals(RecordType.TRANSACTION, record.getType());
+        assertEquals("TXN-1", record.getTransactionId());
+        assertEquals(TransactionState.PREPARING, record.getState());
+        assertSameTransaction(transaction, decoded);
+        assertEquals(operationData, decoded.getOperationData());
+        assertEquals(List.of("LAPTOP-001", "CUST-001"), decoded.getLockedResources());
+    }
+
+    @Test
+    void missingTimestampsRoundTrip() throws IOException {
+        Transaction transaction = preparing("TXN-1");
+        transaction.setCreatedAt(null);
+        transaction.setUpdatedAt(null);
+
+        Transaction decoded = codec.decode(codec.encode(transaction));
+
+        assertNull(decoded.getCreatedAt());
+        assertNull(decoded.getUpdatedAt());
+    }
+
+    @Test
+    void transitionFoldsOntoItsBase() throws IOException {
+        Transaction transaction = preparing("TXN-1");
+        WalRecord base = codec.encode(transaction);
+        transaction.recordVote("http://localhost:8081", "YES");
+        transaction.recordVote("http://localhost:8082", "YES");
+        transaction.setState(TransactionState.COMMITTED);
+        transaction.setUpdatedAt(LocalDateTime.of(2026, 1, 2, 3, 4, 5, 678_901_000));
+
+        WalRecord transition = codec.encodeTransition(transaction);
+        Transaction folded = codec.fold(codec.decode(base), transition);
+
+        assertEquals(RecordType.TRANSITION, transition.getType());
+        assertSameTransaction(transaction, folded);
+        assertEquals(transaction.getParticipantsVote(), codec.decodeTransition(transition).getParticipantsVote());
+    }
+
+    @Test
+    void transitionThatDoesNotFollowItsBaseIsRejected() throws IOException {
+        Transaction transaction = preparing("TXN-1");
+        transaction.setState(TransactionState.ABORTED);
+        WalRecord aborted = codec.encode(transaction);
+
+        Transaction other = preparing("TXN-1");
+        other.setState(TransactionState.COMMITTED);
+
+        assertThrows(IOException.class, () -> codec.fold(codec.decode(aborted), codec.encodeTransition(other)));
+    }
+
+    @Test
+    void markersKeepTheirTransactionId() throws IOException {
+        WalRecord ack = codec.encodeMarker(RecordType.ACK, "TXN-1");
+        WalRecord tombstone = codec.encodeMarker(RecordType.TOMBSTONE, "TXN-2");
+
+        assertEquals("TXN-1", ack.getTransactionId());
+        assertEquals("TXN-2", tombstone.getTransactionId());
+        assertThrows(IOException.class, () -> codec.decode(ack));
+    }
+
+    @Test
+    void dictionaryStringsSurviveReopen() throws IOException {
+        WalRecord record = codec.encode(preparing("TXN-1"));
+        dictionary.close();
+
+        dictionary = new StringDictionary(walDir);
+        codec = new RecordCodec(dictionary);
+
+        assertEquals(List.of("http://localhost:8081", "http://localhost:8082"), codec.decode(record).getParticipants());
+    }
+
+    private static Transaction preparing(String txnId) {
+        Transaction transaction = new Transaction(txnId);
+        transaction.addParticipant("http://localhost:8081");
+        transaction.addParticipant("http://localhost:8082");
+        transaction.setState(TransactionState.PREPARING);
+        return transaction;
+    }
+
+    private static void assertSameTransaction(Transaction expected, Transaction actual) {
+        assertEquals(expected.getTransactionId(), actual.getTransactionId());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+        assertEquals(expected.getUpdatedAt(), actual.getUpdatedAt());
+        assertEquals(expected.getParticipants(), actual.getParticipants());
+        assertEquals(expected.getParticipantsVote(), actual.getParticipantsVote());
+    }
+}
@@ -0,0 +1,133 @@
+package com.twopc.common.log;
+
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedWALTest {
+    @TempDir
+    Path baseDir;
+
+    private WalOptions options;
+    private final List<WriteAheadLog> opened = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        options = new WalOptions();
+        options.setBaseDir(baseDir.toString());
+        options.setSegmentSizeBytes(16 * 1024);
+        options.setPreallocateSegments(false);
+        options.setArchiveAfterSegments(0);
+        options.setCheckpointIntervalSeconds(0);
+        options.setBloomFilterExpectedIds(10_000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        opened.forEach(WriteAheadLog::close);
+    }
+
+    @Test
+    void migratedCompactedLogKeepsTheIdsItDropped() {
+        FileBasedWAL unsharded = openUnsharded();
+        List<String> settled = writeHistory(unsharded, 400);
+        unsharded.compactNow();
+        List<String> dropped = settled.stream().filter(txnId -> unsharded.readLog(txnId).isEmpty()).toList();
+        assertFalse(dropped.isEmpty());
+        close(unsharded);
+
+        WriteAheadLog sharded = openSharded(4);
+
+        for (String txnId : dropped) {
+            assertTrue(sharded.mightContain(txnId));
+        }
+        // the old filter was complete, so the shards' filters still are
+        assertFalse(sharded.mightContain("TXN-never-logged"));
+    }
+
+    @Test
+    void migratedLogWithoutCompleteFilterLeavesShardsIncomplete() throws IOException {
+        FileBasedWAL unsharded = openUnsharded();
+        writeHistory(unsharded, 400);
+        unsharded.compactNow();
+        close(unsharded);
+        Files.delete(baseDir.resolve("service").resolve(TransactionIdFilter.FILE_NAME));
+
+        WriteAheadLog sharded = openSharded(4);
+        close(sharded);
+        // and they stay that way across restarts
+        WriteAheadLog reopened = openSharded(4);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(reopened.mightContain("TXN-never-logged-" + i));
+        }
+    }
+
+    private FileBasedWAL openUnsharded() {
+        FileBasedWAL wal = new FileBasedWAL("service", options);
+        opened.add(wal);
+        return wal;
+    }
+
+    private WriteAheadLog openSharded(int shards) {
+        options.setShards(shards);
+        WriteAheadLog wal = WriteAheadLog.open("service", options);
+        opened.add(wal);
+        return wal;
+    }
+
+    private void close(WriteAheadLog wal) {
+        opened.remove(wal);
+        wal.close();
+    }
+
+    // every transaction PREPARING, then half of them COMMITTED and acknowledged, which compaction may drop;
+    // returns the settled ids
+    private static List<String> writeHistory(FileBasedWAL wal, int count) {
+        List<Transaction> transactions = new ArrayList<>();
+        WalBatch batch = WalBatch.create();
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = new Transaction("TXN-" + i);
+            transaction.addParticipant("http://localhost:8081");
+            transaction.setState(TransactionState.PREPARING);
+            transactions.add(transaction);
+            batch.write(transaction);
+        }
+        wal.writeBatch(batch);
+
+        List<String> settled = new ArrayList<>();
+        WalBatch decisions = WalBatch.create();
+        for (int i = 0; i < count / 2; i++) {
+            Transaction transaction = transactions.get(i);
+            transaction.recordVote("http://localhost:8081", "YES");
+            transaction.setState(TransactionState.COMMITTED);
+            decisions.transition(transaction);
+            decisions.acknowledge(transaction.getTransactionId());
+            settled.add(transaction.getTransactionId());
+        }
+        wal.writeBatch(decisions);
+        // later appends seal the segments holding all of the above, compaction only works on sealed segments
+        WalBatch filler = WalBatch.create();
+        for (int i = count; i < 2 * count; i++) {
+            Transaction transaction = new Transaction("TXN-" + i);
+            transaction.addParticipant("http://localhost:8081");
+            transaction.setState(TransactionState.PREPARING);
+            filler.write(transaction);
+        }
+        wal.writeBatch(filler);
+        return settled;
+    }
+}
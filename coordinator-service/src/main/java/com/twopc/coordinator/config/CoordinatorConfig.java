@@ -0,0 +1,54 @@
+package com.twopc.coordinator.config;
+
+import com.twopc.common.log.WalOptions;
+import com.twopc.common.log.WriteAheadLog;
+import com.twopc.coordinator.service.CoordinatorRecovery;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "coordinator")
+public class CoordinatorConfig {
+    private WalOptions wal = new WalOptions();
+    // coordinator partitions, each on its own WAL shard
+    private int partitions = 1;
+
+    public WalOptions getWal() {
+        return wal;
+    }
+
+    public void setWal(WalOptions wal) {
+        this.wal = wal;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    // one WAL instance per service, shared by the coordinator and the admin endpoints
+    // so there is exactly one open channel and one writer thread per log file (per shard with wal.shards > 1)
+    @Bean
+    public WriteAheadLog writeAheadLog() {
+        // partition i of the coordinator logs to shard i, so there is one shard per partition
+        if (partitions > 1) {
+            if (wal.getShards() > 1 && wal.getShards() != partitions) {
+                throw new IllegalStateException("coordinator.partitions=" + partitions
+                        + " does not match coordinator.wal.shards=" + wal.getShards());
+            }
+            wal.setShards(partitions);
+        }
+        return WriteAheadLog.open("coordinator-service", wal);
+    }
+
+    // finishes what an earlier run left in the WAL; the scan runs before startup completes, redelivery in the background
+    @Bean
+    public CommandLineRunner recoverTransactions(CoordinatorRecovery recovery) {
+        return args -> recovery.recover();
+    }
+}
@@ -1,14 +1,28 @@
 package com.twopc.coordinator.controller;
 
-import com.twopc.common.log.FileBasedWAL;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twopc.common.log.TransactionCursor;
+import com.twopc.common.log.WalQuery;
+import com.twopc.common.log.WalSubscription;
 import com.twopc.common.log.WriteAheadLog;
-import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+import com.twopc.coordinator.service.CoordinatorRecovery;
+import com.twopc.coordinator.service.DecisionDelivery;
+import com.twopc.coordinator.service.TransactionCoordinator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -20,47 +34,128 @@ import java.util.Map;
 public class AdminController {
     private static final Logger logger = LoggerFactory.getLogger(AdminController.class);
 
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+
     private final WriteAheadLog wal;
+    private final DecisionDelivery decisionDelivery;
+    private final CoordinatorRecovery recovery;
+    private final TransactionCoordinator coordinator;
+    private final ObjectMapper objectMapper;
 
-    public AdminController(@Value("${coordinator.wal.base-dir}") String walBaseDir) {
-        this.wal = new FileBasedWAL("coordinator-service", walBaseDir);
+    public AdminController(WriteAheadLog wal, DecisionDelivery decisionDelivery, CoordinatorRecovery recovery,
+                           TransactionCoordinator coordinator, ObjectMapper objectMapper) {
+        this.wal = wal;
+        this.decisionDelivery = decisionDelivery;
+        this.recovery = recovery;
+        this.coordinator = coordinator;
+        // the mapper Spring configured, so timestamps come out exactly as in the other JSON responses
+        // and AUTO_CLOSE_TARGET is off for writes into the response stream
+        this.objectMapper = objectMapper.copy().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
     }
 
     /**
-     * Get all transactions from the WAL.
+     * Stream transactions from the WAL as NDJSON, one transaction per line.
+     * Filters by state, participant and updatedAt range [from, to); at most {@code limit} transactions
+     * per page. The last line carries the cursor for the next page, null once the log is exhausted.
      */
     @GetMapping("/transactions")
-    public ResponseEntity<Map<String, Object>> getAllTransactions() {
-        List<Transaction> transactions = wal.readAllLogs();
+    public ResponseEntity<?> getAllTransactions(
+            @RequestParam(required = false) String state,
+            @RequestParam(required = false) String participant,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(defaultValue = "" + DEFAULT_PAGE_SIZE) int limit,
+            @RequestParam(required = false) String cursor) {
+        TransactionState txnState = null;
+        if (state != null) {
+            try {
+                txnState = TransactionState.valueOf(state.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return invalidState(state);
+            }
+        }
 
-        return ResponseEntity.ok(Map.of(
-                "count", transactions.size(),
-                "transactions", transactions
-        ));
+        TransactionCursor transactions;
+        try {
+            transactions = wal.query(WalQuery.all()
+                    .state(txnState)
+                    .participant(participant)
+                    .updatedBetween(from, to)
+                    .limit(limit)
+                    .after(cursor));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+
+        StreamingResponseBody body = out -> {
+            try (transactions) {
+                int count = 0;
+                while (transactions.hasNext()) {
+                    objectMapper.writeValue(out, transactions.next());
+                    out.write('\n');
+                    count++;
+                }
+                Map<String, Object> page = new LinkedHashMap<>();
+                page.put("count", count);
+                page.put("nextCursor", transactions.cursor());
+                objectMapper.writeValue(out, page);
+                out.write('\n');
+            }
+        };
+        return ResponseEntity.ok().contentType(NDJSON).body(body);
     }
 
     /**
-     * Get transaction logs by state.
+     * Stream transaction logs by state, same paging as /transactions.
      */
     @GetMapping("/transactions/state/{state}")
-    public ResponseEntity<Map<String, Object>> getTransactionsByState(@PathVariable String state) {
-        try {
-            com.twopc.common.protocol.TransactionState txnState =
-                    com.twopc.common.protocol.TransactionState.valueOf(state.toUpperCase());
+    public ResponseEntity<?> getTransactionsByState(
+            @PathVariable String state,
+            @RequestParam(required = false) String participant,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(defaultValue = "" + DEFAULT_PAGE_SIZE) int limit,
+            @RequestParam(required = false) String cursor) {
+        return getAllTransactions(state, participant, from, to, limit, cursor);
+    }
 
-            List<Transaction> transactions = wal.readLogsByState(txnState);
+    private ResponseEntity<Map<String, String>> invalidState(String state) {
+        return ResponseEntity.badRequest().body(Map.of(
+                "error", "Invalid state: " + state,
+                "validStates", "INIT, PREPARING, PREPARED, COMMITTED, ABORTED"
+        ));
+    }
 
-            return ResponseEntity.ok(Map.of(
-                    "state", state,
-                    "count", transactions.size(),
-                    "transactions", transactions
-            ));
+    /**
+     * Follow WAL changes as server-sent events, starting at {@code cursor} (the start of the log if omitted).
+     * Every event carries the change's cursor as its id, so a reconnecting client resumes where it left off.
+     */
+    @GetMapping("/wal/tail")
+    public ResponseEntity<?> tailWal(@RequestParam(required = false) String cursor,
+                                     @RequestHeader(name = "Last-Event-ID", required = false) String lastEventId) {
+        SseEmitter emitter = new SseEmitter(0L);
+        WalSubscription subscription;
+        try {
+            // a send blocks while the client is slow, which holds back the subscription's reader
+            subscription = wal.tail(lastEventId != null ? lastEventId : cursor, change -> {
+                try {
+                    emitter.send(SseEmitter.event()
+                            .id(change.getCursor())
+                            .name(change.getKind().name())
+                            .data(change.getTransaction() != null ? change.getTransaction()
+                                    : Map.of("transactionId", change.getTransactionId()), MediaType.APPLICATION_JSON));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
         } catch (IllegalArgumentException e) {
-            return ResponseEntity.badRequest().body(Map.of(
-                    "error", "Invalid state: " + state,
-                    "validStates", "INIT, PREPARING, PREPARED, COMMITTED, ABORTED"
-            ));
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         }
+        emitter.onCompletion(subscription::close);
+        emitter.onTimeout(subscription::close);
+        emitter.onError(error -> subscription.close());
+        return ResponseEntity.ok(emitter);
     }
 
     /**
@@ -73,6 +168,40 @@ public class AdminController {
         ));
     }
 
+    /**
+     * Get WAL size and index statistics (including memory per indexed transaction).
+     */
+    @GetMapping("/wal/stats")
+    public ResponseEntity<Map<String, Object>> getWalStats() {
+        return ResponseEntity.ok(wal.getStats());
+    }
+
+    /**
+     * Get phase-2 delivery statistics: decisions still waiting for acknowledgements, delivered, retried.
+     */
+    @GetMapping("/deliveries/stats")
+    public ResponseEntity<Map<String, Object>> getDeliveryStats() {
+        return ResponseEntity.ok(decisionDelivery.getStats());
+    }
+
+    /**
+     * Get startup recovery statistics: unsettled transactions found, undecided ones aborted,
+     * batches sent, acknowledged, and handed to phase-2 delivery.
+     */
+    @GetMapping("/recovery/stats")
+    public ResponseEntity<Map<String, Object>> getRecoveryStats() {
+        return ResponseEntity.ok(recovery.getStats());
+    }
+
+    /**
+     * Get coordinator partition statistics: transactions in flight per partition.
+     * The WAL endpoints cover every partition, each one is a shard of the log.
+     */
+    @GetMapping("/partitions/stats")
+    public ResponseEntity<List<Map<String, Object>>> getPartitionStats() {
+        return ResponseEntity.ok(coordinator.getPartitionStats());
+    }
+
     /**
      * Health check.
      */
@@ -4,9 +4,12 @@ import com.twopc.common.model.Transaction;
 import com.twopc.common.protocol.TransactionState;
 import com.twopc.coordinator.model.OrderRequest;
 import com.twopc.coordinator.model.OrderResponse;
+import com.twopc.coordinator.service.OverloadedException;
 import com.twopc.coordinator.service.TransactionCoordinator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -28,6 +31,7 @@ public class OrderController {
     /**
      * Create a new order.
      * Initiates the 2PC protocol across inventory and payment services.
+     * Answers 429 with a Retry-After header when the coordinator is at its in-flight limit.
      *
      * Request body:
      * {
@@ -64,6 +68,12 @@ public class OrderController {
                                 "Transaction aborted"));
             }
 
+        } catch (OverloadedException e) {
+            // shed fast, the client backs off instead of piling onto locks and the WAL
+            logger.warn("Rejected order {}: {}", orderRequest.getOrderId(), e.getMessage());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                    .body(OrderResponse.failure(orderRequest.getOrderId(), null, e.getMessage()));
         } catch (Exception e) {
             logger.error("Error processing order {}", orderRequest.getOrderId(), e);
             return ResponseEntity.internalServerError().body(
@@ -73,6 +83,7 @@ public class OrderController {
 
     /**
      * Get transaction status by transaction ID.
+     * With coordinator.presumed-abort, an ID that was never logged is reported as ABORTED.
      */
     @GetMapping("/transaction/{txnId}")
     public ResponseEntity<Transaction> getTransactionStatus(@PathVariable String txnId) {
@@ -0,0 +1,146 @@
+package com.twopc.coordinator.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// adaptive limit on the number of 2PC transactions in flight, AIMD on the PREPARE round trip
+// every finished phase 1 is a sample: a prepare slower than latency-threshold-millis, or one that ran into the
+// prepare timeout, multiplies the limit by backoff-ratio; a fast one while the limit is at least half used adds 1/limit,
+// so the limit grows by about one per limit's worth of fast transactions
+// like TCP, it backs off at most once per round trip: slow samples of transactions admitted before the last
+// decrease saw the same overload and are not counted again
+// work over the limit is refused right away instead of queueing for locks and the WAL, see OverloadedException
+// limit, in-flight count and rejections are published as coordinator.orders.* metrics on actuator
+@Component
+public class ConcurrencyLimiter {
+    private static final Logger logger = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+    private final boolean enabled;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+    private final int retryAfterSeconds;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // only written under sampleLock, read without it by acquire
+    private volatile double limit;
+    // bumped by every decrease, a permit remembers the value it was admitted under
+    private volatile long decreases;
+    private final ReentrantLock sampleLock = new ReentrantLock();
+    private final Counter rejected;
+
+    public ConcurrencyLimiter(
+            MeterRegistry meterRegistry,
+            @Value("${coordinator.limiter.enabled:true}") boolean enabled,
+            @Value("${coordinator.limiter.initial-limit:20}") int initialLimit,
+            @Value("${coordinator.limiter.min-limit:1}") int minLimit,
+            @Value("${coordinator.limiter.max-limit:200}") int maxLimit,
+            @Value("${coordinator.limiter.latency-threshold-millis:500}") long latencyThresholdMillis,
+            @Value("${coordinator.limiter.backoff-ratio:0.9}") double backoffRatio,
+            @Value("${coordinator.limiter.retry-after-seconds:1}") int retryAfterSeconds) {
+        this.enabled = enabled;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.backoffRatio = Math.min(0.99, Math.max(0.1, backoffRatio));
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+
+        Gauge.builder("coordinator.orders.limit", this, ConcurrencyLimiter::getLimit)
+                .description("Current adaptive limit on in-flight 2PC transactions")
+                .register(meterRegistry);
+        Gauge.builder("coordinator.orders.inflight", inFlight, AtomicInteger::get)
+                .description("2PC transactions currently in flight")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("coordinator.orders.rejected")
+                .description("Orders shed because the in-flight limit was reached")
+                .register(meterRegistry);
+    }
+
+    // a permit for one more transaction, or OverloadedException if the limit is reached
+    public Permit acquire() {
+        if (!enabled) {
+            inFlight.incrementAndGet();
+            return new Permit();
+        }
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                throw new OverloadedException(current, retryAfterSeconds);
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return new Permit();
+            }
+        }
+    }
+
+    private void onSample(long prepareNanos, boolean timedOut, int inFlightAtStart, long decreasesAtStart) {
+        if (!enabled) {
+            return;
+        }
+        sampleLock.lock();
+        try {
+            double current = limit;
+            double next = current;
+            if (timedOut || prepareNanos > latencyThresholdNanos) {
+                if (decreasesAtStart == decreases) {
+                    next = Math.max(minLimit, current * backoffRatio);
+                    decreases++;
+                }
+            } else if (inFlightAtStart * 2 >= current) {
+                // only grow a limit that is actually being used
+                next = Math.min(maxLimit, current + 1.0 / current);
+            }
+            if ((int) next != (int) current) {
+                logger.debug("In-flight limit {} -> {} (prepare {}ms{})", (int) current, (int) next,
+                        TimeUnit.NANOSECONDS.toMillis(prepareNanos), timedOut ? ", timed out" : "");
+            }
+            limit = next;
+        } finally {
+            sampleLock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected() {
+        return (long) rejected.count();
+    }
+
+    // one admitted transaction, released exactly once when it is done
+    public final class Permit implements AutoCloseable {
+        private final int inFlightAtStart = inFlight.get();
+        private final long decreasesAtStart = decreases;
+        private boolean released;
+
+        // the PREPARE round trip of this transaction, the limiter's input
+        public void onPrepared(long prepareNanos, boolean timedOut) {
+            onSample(prepareNanos, timedOut, inFlightAtStart, decreasesAtStart);
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.twopc.coordinator.service;
+
+import com.twopc.common.log.WalBatch;
+import com.twopc.common.log.WriteAheadLog;
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+// one slice of the coordinator: the transactions whose id maps to it, with the same mapping as the WAL's shards,
+// so all of a partition's records go to its own shard, file and group-commit writer
+// the in-flight table is only ever touched by the partition's single thread; every state change and lookup is a
+// short task on it, and the WAL appends it starts complete on the shard's writer, the thread never waits for the disk
+// orders in different partitions share no lock, no map and no writer
+final class CoordinatorPartition implements AutoCloseable {
+    private final int index;
+    private final WriteAheadLog wal;
+    private final ExecutorService writer;
+
+    // transaction id -> transaction between PREPARING and the hand-off of its decision, single-writer
+    private final Map<String, Transaction> inFlight = new HashMap<>();
+
+    CoordinatorPartition(int index, WriteAheadLog wal) {
+        this.index = index;
+        this.wal = wal;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "coordinator-partition-" + index);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // registers the transaction and moves it to PREPARING, completes once that is durable (right away if not logged)
+    CompletableFuture<Void> begin(Transaction transaction, boolean log) {
+        return onWriter(() -> {
+            inFlight.put(transaction.getTransactionId(), transaction);
+            transaction.setState(TransactionState.PREPARING);
+            return log ? wal.appendAsync(transaction).thenApply(position -> null) : CompletableFuture.completedFuture(null);
+        });
+    }
+
+    // records the votes and the decision, completes once the decision is durable (right away if not logged)
+    // the in-flight transaction stays PREPARING until then: a lookup must never report a decision the log can
+    // still lose, and if the write fails it is never taken at all
+    CompletableFuture<Void> decide(Transaction transaction, Map<String, String> votes, boolean logAbort) {
+        return onWriter(() -> {
+            votes.forEach(transaction::recordVote);
+            TransactionState decision = transaction.allParticipantsVotedYes() ? TransactionState.COMMITTED : TransactionState.ABORTED;
+            if (decision == TransactionState.ABORTED && !logAbort) {
+                transaction.setState(decision);
+                return CompletableFuture.completedFuture(null);
+            }
+            Transaction decided = withDecision(transaction, decision);
+            return wal.appendBatchAsync(WalBatch.create().transition(decided))
+                    .thenRunAsync(() -> {
+                        transaction.setState(decision);
+                        transaction.setUpdatedAt(decided.getUpdatedAt());
+                    }, writer);
+        });
+    }
+
+    // the decision was handed to phase 2, or the transaction failed; from now on it is only in the WAL
+    void finish(String txnId) {
+        writer.execute(() -> inFlight.remove(txnId));
+    }
+
+    CompletableFuture<Optional<Transaction>> lookup(String txnId) {
+        return CompletableFuture.supplyAsync(() -> Optional.ofNullable(inFlight.get(txnId)), writer);
+    }
+
+    CompletableFuture<Integer> inFlightCount() {
+        return CompletableFuture.supplyAsync(inFlight::size, writer);
+    }
+
+    int index() {
+        return index;
+    }
+
+    // a copy of the transaction carrying the decision, what gets logged while the in-flight one waits for it
+    private static Transaction withDecision(Transaction transaction, TransactionState decision) {
+        Transaction decided = new Transaction(transaction.getTransactionId());
+        decided.setParticipants(new ArrayList<>(transaction.getParticipants()));
+        decided.setParticipantsVote(new HashMap<>(transaction.getParticipantsVote()));
+        decided.setOperationData(new HashMap<>(transaction.getOperationData()));
+        decided.setLockedResources(new ArrayList<>(transaction.getLockedResources()));
+        decided.setCreatedAt(transaction.getCreatedAt());
+        decided.setState(transaction.getState());
+        decided.setState(decision);
+        return decided;
+    }
+
+    private <T> CompletableFuture<T> onWriter(Supplier<CompletableFuture<T>> task) {
+        return CompletableFuture.supplyAsync(task, writer).thenCompose(result -> result);
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+    }
+}
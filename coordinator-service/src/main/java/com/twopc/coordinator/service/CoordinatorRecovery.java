@@ -0,0 +1,243 @@
+package com.twopc.coordinator.service;
+
+import com.twopc.common.log.TransactionCursor;
+import com.twopc.common.log.WalBatch;
+import com.twopc.common.log.WalQuery;
+import com.twopc.common.log.WriteAheadLog;
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// finishes what an earlier run of the coordinator left in its WAL, once at startup
+// one pass over the unsettled transactions logged before this run started:
+// PREPARING never got a decision and becomes ABORTED, all of them logged with one batch write;
+// COMMITTED/ABORTED that were not acknowledged by every participant get their decision again
+// redelivery goes to every participant at the same time, to each in batches of recovery.batch-size,
+// one batch in flight and at most recovery.batches-per-second per participant, so a large backlog does not
+// swamp a participant that is also serving new orders
+// a transaction acknowledged by all of its participants is acknowledged in the WAL, one that is still missing
+// acknowledgements after the pass is handed to DecisionDelivery, which retries it with backoff
+// under presumed abort, transactions that were never logged are ABORTED and have nothing to recover
+@Component
+public class CoordinatorRecovery implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CoordinatorRecovery.class);
+
+    private final WriteAheadLog wal;
+    private final ParticipantClient participantClient;
+    private final DecisionDelivery decisionDelivery;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long batchIntervalNanos;
+
+    // transactions of this run are logged after this and left alone
+    private final LocalDateTime startedAt = LocalDateTime.now();
+    // paces the batches, the requests themselves are asynchronous
+    private final ScheduledExecutorService scheduler;
+
+    private volatile String status = "idle";
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong handedOff = new AtomicLong();
+
+    public CoordinatorRecovery(
+            WriteAheadLog wal,
+            ParticipantClient participantClient,
+            DecisionDelivery decisionDelivery,
+            @Value("${coordinator.recovery.enabled:true}") boolean enabled,
+            @Value("${coordinator.recovery.batch-size:100}") int batchSize,
+            @Value("${coordinator.recovery.batches-per-second:10}") double batchesPerSecond) {
+        this.wal = wal;
+        this.participantClient = participantClient;
+        this.decisionDelivery = decisionDelivery;
+        this.enabled = enabled;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchIntervalNanos = batchesPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / batchesPerSecond) : 0;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "coordinator-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // scans the WAL and starts redelivery, completes once every recovered decision was acknowledged or handed off
+    public CompletableFuture<Void> recover() {
+        if (!enabled) {
+            status = "disabled";
+            return CompletableFuture.completedFuture(null);
+        }
+        status = "running";
+        Map<String, Recovered> recovered = scan();
+        if (recovered.isEmpty()) {
+            status = "done";
+            logger.info("Recovery: nothing to recover");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // participant -> decision -> transaction ids, in log order
+        Map<String, Map<TransactionState, List<String>>> perParticipant = new LinkedHashMap<>();
+        for (Recovered txn : recovered.values()) {
+            for (String participantUrl : txn.unacknowledged) {
+                perParticipant.computeIfAbsent(participantUrl, url -> new LinkedHashMap<>())
+                        .computeIfAbsent(txn.transaction.getState(), state -> new ArrayList<>())
+                        .add(txn.transaction.getTransactionId());
+            }
+        }
+        logger.info("Recovery: redelivering {} decision(s) to {} participant(s)", recovered.size(), perParticipant.size());
+
+        List<CompletableFuture<Void>> participants = new ArrayList<>(perParticipant.size());
+        perParticipant.forEach((participantUrl, decisions) -> {
+            List<Batch> queue = new ArrayList<>();
+            decisions.forEach((decision, txnIds) -> {
+                for (int from = 0; from < txnIds.size(); from += batchSize) {
+                    queue.add(new Batch(decision, txnIds.subList(from, Math.min(txnIds.size(), from + batchSize))));
+                }
+            });
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            sendNext(participantUrl, queue, 0, recovered, done);
+            participants.add(done);
+        });
+
+        return CompletableFuture.allOf(participants.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            for (Recovered txn : recovered.values()) {
+                if (!txn.unacknowledged.isEmpty()) {
+                    decisionDelivery.redeliver(txn.transaction);
+                    handedOff.incrementAndGet();
+                }
+            }
+            status = "done";
+            logger.info("Recovery: done, {} acknowledged, {} left to phase-2 delivery", acknowledged.get(), handedOff.get());
+        });
+    }
+
+    // the one pass over the log: collects every unsettled transaction and logs the ABORT of the undecided ones
+    private Map<String, Recovered> scan() {
+        Map<String, Recovered> recovered = new LinkedHashMap<>();
+        WalBatch aborts = WalBatch.create();
+        try (TransactionCursor cursor = wal.query(WalQuery.all().unsettled().updatedBetween(null, startedAt))) {
+            while (cursor.hasNext()) {
+                Transaction transaction = cursor.next();
+                scanned.incrementAndGet();
+                if (transaction.getState() == TransactionState.PREPARING) {
+                    // no decision was logged, so none was sent: nobody can have committed
+                    transaction.setState(TransactionState.ABORTED);
+                    aborts.transition(transaction);
+                    aborted.incrementAndGet();
+                } else if (!transaction.getState().isTerminalState()) {
+                    continue;
+                }
+                recovered.put(transaction.getTransactionId(), new Recovered(transaction));
+            }
+        }
+        // durable before the first ABORT goes out, like any other decision
+        wal.writeBatch(aborts);
+        logger.info("Recovery: scanned {} unsettled transaction(s), {} undecided and now ABORTED", scanned.get(), aborted.get());
+        return recovered;
+    }
+
+    // sends the batches for one participant one after the other, no faster than batches-per-second
+    private void sendNext(String participantUrl, List<Batch> queue, int next, Map<String, Recovered> recovered,
+                          CompletableFuture<Void> done) {
+        if (next == queue.size()) {
+            done.complete(null);
+            return;
+        }
+        Batch batch = queue.get(next);
+        long sentAt = System.nanoTime();
+        CompletableFuture<List<Boolean>> send = batch.decision == TransactionState.COMMITTED
+                ? participantClient.sendCommitBatchAsync(participantUrl, batch.txnIds)
+                : participantClient.sendAbortBatchAsync(participantUrl, batch.txnIds);
+        batches.incrementAndGet();
+        send.whenComplete((acks, error) -> {
+            if (error == null) {
+                acknowledge(participantUrl, batch, acks, recovered);
+            }
+            long wait = batchIntervalNanos - (System.nanoTime() - sentAt);
+            try {
+                scheduler.schedule(() -> sendNext(participantUrl, queue, next + 1, recovered, done),
+                        Math.max(0, wait), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down, whatever is unacknowledged stays so in the WAL for the next start
+                done.complete(null);
+            }
+        });
+    }
+
+    // the transactions of the batch that every participant has now acknowledged, with one WAL write
+    private void acknowledge(String participantUrl, Batch batch, List<Boolean> acks, Map<String, Recovered> recovered) {
+        WalBatch settled = WalBatch.create();
+        for (int i = 0; i < batch.txnIds.size(); i++) {
+            if (!Boolean.TRUE.equals(acks.get(i))) {
+                continue;
+            }
+            Recovered txn = recovered.get(batch.txnIds.get(i));
+            if (txn.unacknowledged.remove(participantUrl) && txn.unacknowledged.isEmpty()) {
+                settled.acknowledge(txn.transaction.getTransactionId());
+            }
+        }
+        if (settled.isEmpty()) {
+            return;
+        }
+        try {
+            wal.writeBatch(settled);
+            acknowledged.addAndGet(settled.size());
+        } catch (RuntimeException e) {
+            // left unacknowledged, the next start sends the decision once more
+            logger.error("Recovery: could not acknowledge {} transaction(s) in the WAL", settled.size(), e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("status", status);
+        stats.put("scanned", scanned.get());
+        stats.put("aborted", aborted.get());
+        stats.put("batches", batches.get());
+        stats.put("acknowledged", acknowledged.get());
+        stats.put("handedOff", handedOff.get());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private static final class Recovered {
+        private final Transaction transaction;
+        private final Set<String> unacknowledged = ConcurrentHashMap.newKeySet();
+
+        Recovered(Transaction transaction) {
+            this.transaction = transaction;
+            this.unacknowledged.addAll(transaction.getParticipants());
+        }
+    }
+
+    private static final class Batch {
+        private final TransactionState decision;
+        private final List<String> txnIds;
+
+        Batch(TransactionState decision, List<String> txnIds) {
+            this.decision = decision;
+            this.txnIds = txnIds;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.twopc.coordinator.service;
+
+import com.twopc.common.log.WriteAheadLog;
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionState;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// phase 2 of the protocol, off the request thread
+// a decision is handed over once it is durable in the WAL, the order response does not wait for the participants
+// COMMIT/ABORT goes to all participants in parallel; once every one of them acknowledged, the transaction is
+// acknowledged in the WAL and the decision is done
+// a participant that did not acknowledge gets the decision again from its outbox: everything waiting for the same
+// participant goes out together as commit-batch/abort-batch calls, after an exponential backoff with jitter that
+// grows while that participant keeps failing and starts over once it answers
+// the outbox is durable through the WAL, a logged decision stays unacknowledged there until every participant has it,
+// so after a restart CoordinatorRecovery finds it again
+// under presumed abort an ABORT has no WAL record, it is delivered the same way but nothing is acknowledged
+// backlog size and lag (age of the oldest pending decision) are published as coordinator.delivery.* metrics
+@Component
+public class DecisionDelivery implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DecisionDelivery.class);
+
+    private final ParticipantClient participantClient;
+    private final WriteAheadLog wal;
+    private final long retryInitialMillis;
+    private final long retryMaxMillis;
+    private final int retryBatchSize;
+    private final boolean presumedAbort;
+
+    // only schedules retries, the requests themselves are asynchronous
+    private final ScheduledExecutorService scheduler;
+
+    // transaction id -> decision not yet acknowledged by every participant
+    private final Map<String, PendingDecision> pending = new ConcurrentHashMap<>();
+    // participant URL -> decisions waiting for a retry to that participant
+    private final Map<String, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retryBatches = new AtomicLong();
+
+    public DecisionDelivery(
+            ParticipantClient participantClient,
+            WriteAheadLog wal,
+            MeterRegistry meterRegistry,
+            @Value("${coordinator.delivery.retry-initial-millis:500}") long retryInitialMillis,
+            @Value("${coordinator.delivery.retry-max-millis:30000}") long retryMaxMillis,
+            @Value("${coordinator.delivery.retry-batch-size:100}") int retryBatchSize,
+            @Value("${coordinator.presumed-abort:false}") boolean presumedAbort) {
+        this.participantClient = participantClient;
+        this.wal = wal;
+        this.retryInitialMillis = Math.max(1, retryInitialMillis);
+        this.retryMaxMillis = Math.max(this.retryInitialMillis, retryMaxMillis);
+        this.retryBatchSize = Math.max(1, retryBatchSize);
+        this.presumedAbort = presumedAbort;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "decision-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Gauge.builder("coordinator.delivery.backlog", pending, Map::size)
+                .description("Decisions not yet acknowledged by every participant")
+                .register(meterRegistry);
+        Gauge.builder("coordinator.delivery.lag", this, DecisionDelivery::lagSeconds)
+                .description("Seconds since the oldest pending decision was made")
+                .register(meterRegistry);
+    }
+
+    // start delivering the decision of a COMMITTED or ABORTED transaction, returns immediately
+    public void deliver(Transaction transaction) {
+        // under presumed abort an ABORT was never logged, so there is nothing to acknowledge
+        start(transaction, transaction.getState() != TransactionState.ABORTED || !presumedAbort);
+    }
+
+    // a decision read back from the WAL, e.g. by recovery; it is acknowledged there once everyone has it
+    public void redeliver(Transaction transaction) {
+        start(transaction, true);
+    }
+
+    private void start(Transaction transaction, boolean logged) {
+        TransactionState decision = transaction.getState();
+        if (decision != TransactionState.COMMITTED && decision != TransactionState.ABORTED) {
+            throw new IllegalArgumentException("No decision to deliver for " + transaction.getTransactionId()
+                    + " in state " + decision);
+        }
+        PendingDecision pendingDecision = new PendingDecision(transaction.getTransactionId(), decision,
+                logged, transaction.getUpdatedAt(), transaction.getParticipants());
+        if (pending.putIfAbsent(pendingDecision.txnId, pendingDecision) != null) {
+            logger.debug("[{}] Decision already being delivered", pendingDecision.txnId);
+            return;
+        }
+        if (pendingDecision.unacknowledged.isEmpty()) {
+            complete(pendingDecision);
+            return;
+        }
+        for (String participantUrl : pendingDecision.unacknowledged) {
+            CompletableFuture<Boolean> send = decision == TransactionState.COMMITTED
+                    ? participantClient.sendCommitAsync(participantUrl, pendingDecision.txnId)
+                    : participantClient.sendAbortAsync(participantUrl, pendingDecision.txnId);
+            send.thenAccept(acked -> {
+                if (acked) {
+                    acknowledged(pendingDecision, participantUrl);
+                } else {
+                    outboxes.computeIfAbsent(participantUrl, Outbox::new).add(pendingDecision.txnId);
+                }
+            });
+        }
+    }
+
+    private void acknowledged(PendingDecision decision, String participantUrl) {
+        if (decision.unacknowledged.remove(participantUrl) && decision.unacknowledged.isEmpty()) {
+            complete(decision);
+        }
+    }
+
+    private void complete(PendingDecision decision) {
+        // exactly once, whichever acknowledgement came last
+        if (!pending.remove(decision.txnId, decision)) {
+            return;
+        }
+        // everyone has the decision, the wal entry is no longer needed for recovery
+        if (decision.logged) {
+            try {
+                wal.acknowledge(decision.txnId);
+            } catch (RuntimeException e) {
+                logger.error("[{}] Could not acknowledge delivered {} in the WAL", decision.txnId, decision.state, e);
+            }
+        }
+        delivered.incrementAndGet();
+        logger.info("[{}] {} delivered to all participants after {} attempt(s)",
+                decision.txnId, decision.state, decision.attempts.get() + 1);
+    }
+
+    // exponential in the participant's consecutive failed rounds, then anywhere in the upper half of that,
+    // so outboxes of participants that failed together do not all retry at the same moment
+    private long retryDelayMillis(int failures) {
+        long backoff = Math.min(retryMaxMillis, retryInitialMillis << Math.min(failures, 20));
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+    }
+
+    private double lagSeconds() {
+        LocalDateTime oldest = null;
+        for (PendingDecision decision : pending.values()) {
+            if (oldest == null || decision.decidedAt.isBefore(oldest)) {
+                oldest = decision.decidedAt;
+            }
+        }
+        return oldest == null ? 0 : Duration.between(oldest, LocalDateTime.now()).toMillis() / 1000.0;
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pending", pending.size());
+        stats.put("delivered", delivered.get());
+        stats.put("retries", retries.get());
+        stats.put("retryBatches", retryBatches.get());
+        stats.put("lagSeconds", lagSeconds());
+        Map<String, Integer> waiting = new LinkedHashMap<>();
+        outboxes.forEach((participantUrl, outbox) -> waiting.put(participantUrl, outbox.size()));
+        stats.put("outboxes", waiting);
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        if (!pending.isEmpty()) {
+            logger.warn("{} decision(s) not yet acknowledged by every participant", pending.size());
+        }
+    }
+
+    // the decisions one participant still has to acknowledge, sent again together after a backoff
+    // at most one retry round per participant is scheduled or in flight at any time
+    private final class Outbox {
+        private final String participantUrl;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Set<String> waiting = new LinkedHashSet<>();
+        // consecutive rounds that were not fully acknowledged, drives the backoff
+        private int failures;
+        private boolean scheduled;
+
+        Outbox(String participantUrl) {
+            this.participantUrl = participantUrl;
+        }
+
+        void add(String txnId) {
+            lock.lock();
+            try {
+                waiting.add(txnId);
+                if (!scheduled) {
+                    scheduled = true;
+                    schedule();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return waiting.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // called with the lock held
+        private void schedule() {
+            long delay = retryDelayMillis(failures);
+            try {
+                scheduler.schedule(this::retry, delay, TimeUnit.MILLISECONDS);
+                logger.warn("{} decision(s) not acknowledged by {}, retry in {}ms", waiting.size(), participantUrl, delay);
+            } catch (RejectedExecutionException e) {
+                // shutting down, the unacknowledged WAL entries keep the decisions
+                logger.warn("Delivery stopped with {} decision(s) unacknowledged by {}", waiting.size(), participantUrl);
+            }
+        }
+
+        // one round: everything waiting, in batches of retry-batch-size per decision, one batch after the other
+        private void retry() {
+            Map<TransactionState, List<String>> byDecision = new LinkedHashMap<>();
+            lock.lock();
+            try {
+                for (String txnId : waiting) {
+                    PendingDecision decision = pending.get(txnId);
+                    if (decision != null && decision.unacknowledged.contains(participantUrl)) {
+                        byDecision.computeIfAbsent(decision.state, state -> new ArrayList<>()).add(txnId);
+                    }
+                }
+                waiting.clear();
+            } finally {
+                lock.unlock();
+            }
+
+            // only touched by the batches of this round, which run one after the other
+            List<String> failed = new ArrayList<>();
+            CompletableFuture<Void> round = CompletableFuture.completedFuture(null);
+            for (Map.Entry<TransactionState, List<String>> entry : byDecision.entrySet()) {
+                List<String> txnIds = entry.getValue();
+                for (int from = 0; from < txnIds.size(); from += retryBatchSize) {
+                    List<String> batch = txnIds.subList(from, Math.min(txnIds.size(), from + retryBatchSize));
+                    round = round.thenCompose(ignored -> send(entry.getKey(), batch, failed));
+                }
+            }
+            round.whenComplete((ignored, error) -> {
+                lock.lock();
+                try {
+                    if (error != null) {
+                        // the next round skips whatever was acknowledged in the meantime
+                        logger.error("Retry round for {} failed", participantUrl, error);
+                        byDecision.values().forEach(waiting::addAll);
+                    }
+                    waiting.addAll(failed);
+                    failures = failed.isEmpty() && error == null ? 0 : failures + 1;
+                    if (waiting.isEmpty()) {
+                        scheduled = false;
+                    } else {
+                        schedule();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            });
+        }
+
+        private CompletableFuture<Void> send(TransactionState decision, List<String> txnIds, List<String> failed) {
+            retryBatches.incrementAndGet();
+            retries.addAndGet(txnIds.size());
+            CompletableFuture<List<Boolean>> send = decision == TransactionState.COMMITTED
+                    ? participantClient.sendCommitBatchAsync(participantUrl, txnIds)
+                    : participantClient.sendAbortBatchAsync(participantUrl, txnIds);
+            return send.thenAccept(acks -> {
+                for (int i = 0; i < txnIds.size(); i++) {
+                    PendingDecision pendingDecision = pending.get(txnIds.get(i));
+                    if (pendingDecision == null) {
+                        continue;
+                    }
+                    pendingDecision.attempts.incrementAndGet();
+                    if (acks.get(i)) {
+                        acknowledged(pendingDecision, participantUrl);
+                    } else {
+                        failed.add(txnIds.get(i));
+                    }
+                }
+            });
+        }
+    }
+
+    private static final class PendingDecision {
+        private final String txnId;
+        private final TransactionState state;
+        private final boolean logged;
+        // the transaction's last update, i.e. when the decision was made; the lag metric counts from here
+        private final LocalDateTime decidedAt;
+        private final Set<String> unacknowledged = ConcurrentHashMap.newKeySet();
+        // retries, counted per participant the decision was sent to again
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        PendingDecision(String txnId, TransactionState state, boolean logged, LocalDateTime decidedAt,
+                        List<String> participants) {
+            this.txnId = txnId;
+            this.state = state;
+            this.logged = logged;
+            this.decidedAt = decidedAt != null ? decidedAt : LocalDateTime.now();
+            this.unacknowledged.addAll(participants);
+        }
+    }
+}
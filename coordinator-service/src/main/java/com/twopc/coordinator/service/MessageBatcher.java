@@ -0,0 +1,135 @@
+package com.twopc.coordinator.service;
+
+import com.twopc.common.protocol.TransactionMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// gathers the messages of concurrent transactions for one participant endpoint and sends them as one request
+// the first message of a batch opens a window of batch-window-micros, the batch goes out when the window closes
+// or right away on the submitting thread once it holds batch-max-size messages
+// the sender must complete normally with exactly one result per message, in the order of the messages
+// cancelling the future of a message that is still waiting takes it out of its batch, it is never sent
+class MessageBatcher<R> {
+    private final int maxSize;
+    private final long windowMicros;
+    private final ScheduledExecutorService timer;
+    private final Function<List<TransactionMessage>, CompletableFuture<List<R>>> sender;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private List<Pending<R>> pending = new ArrayList<>();
+    private ScheduledFuture<?> window;
+
+    MessageBatcher(int maxSize, long windowMicros, ScheduledExecutorService timer,
+                   Function<List<TransactionMessage>, CompletableFuture<List<R>>> sender) {
+        this.maxSize = Math.max(1, maxSize);
+        this.windowMicros = Math.max(0, windowMicros);
+        this.timer = timer;
+        this.sender = sender;
+    }
+
+    CompletableFuture<R> submit(TransactionMessage message) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        Pending<R> item = new Pending<>(message, result);
+        List<Pending<R>> full = null;
+        lock.lock();
+        try {
+            pending.add(item);
+            if (pending.size() >= maxSize || windowMicros == 0) {
+                full = take();
+            } else if (pending.size() == 1) {
+                try {
+                    window = timer.schedule(this::flush, windowMicros, TimeUnit.MICROSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // shutting down, nothing would close the window
+                    full = take();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (full != null) {
+            send(full);
+        } else {
+            result.whenComplete((ignored, error) -> {
+                if (result.isCancelled()) {
+                    withdraw(item);
+                }
+            });
+        }
+        return result;
+    }
+
+    // a no-op once the batch holding the message was taken for sending
+    private void withdraw(Pending<R> item) {
+        lock.lock();
+        try {
+            if (pending.remove(item) && pending.isEmpty() && window != null) {
+                window.cancel(false);
+                window = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // sends whatever is waiting without waiting for the window to close
+    void flush() {
+        List<Pending<R>> batch;
+        lock.lock();
+        try {
+            batch = take();
+        } finally {
+            lock.unlock();
+        }
+        if (!batch.isEmpty()) {
+            send(batch);
+        }
+    }
+
+    // called with the lock held
+    private List<Pending<R>> take() {
+        if (window != null) {
+            window.cancel(false);
+            window = null;
+        }
+        List<Pending<R>> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    private void send(List<Pending<R>> batch) {
+        List<TransactionMessage> messages = new ArrayList<>(batch.size());
+        for (Pending<R> item : batch) {
+            messages.add(item.message);
+        }
+        sender.apply(messages).whenComplete((results, error) -> {
+            for (int i = 0; i < batch.size(); i++) {
+                if (error == null && results != null && i < results.size()) {
+                    batch.get(i).result.complete(results.get(i));
+                } else {
+                    batch.get(i).result.completeExceptionally(error != null ? error
+                            : new IllegalStateException("Batch answered " + (results == null ? 0 : results.size())
+                            + " of " + batch.size() + " messages"));
+                }
+            }
+        });
+    }
+
+    private static final class Pending<R> {
+        private final TransactionMessage message;
+        private final CompletableFuture<R> result;
+
+        Pending(TransactionMessage message, CompletableFuture<R> result) {
+            this.message = message;
+            this.result = result;
+        }
+    }
+}
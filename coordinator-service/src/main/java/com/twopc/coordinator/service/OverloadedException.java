@@ -0,0 +1,15 @@
+package com.twopc.coordinator.service;
+
+// the coordinator is at its in-flight limit, the order was not started and can be retried after retryAfterSeconds
+public class OverloadedException extends RuntimeException {
+    private final int retryAfterSeconds;
+
+    public OverloadedException(int inFlight, int retryAfterSeconds) {
+        super("Coordinator overloaded, " + inFlight + " transactions in flight");
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
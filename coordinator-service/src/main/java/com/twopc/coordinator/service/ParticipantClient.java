@@ -1,9 +1,11 @@
 package com.twopc.coordinator.service;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.twopc.common.protocol.TransactionMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.net.URI;
@@ -11,112 +13,331 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 // HTTP client to communicate with the participants
 // sends PREPARE, COMMIT, ABORT messages
+// with coordinator.batching.enabled, messages of concurrent transactions for the same participant are gathered
+// by a MessageBatcher and go out as one request to the participant's prepare-batch/commit-batch/abort-batch endpoint
 @Component
-public class ParticipantClient {
+public class ParticipantClient implements AutoCloseable {
     private static Logger logger = LoggerFactory.getLogger(ParticipantClient.class);
+    private static final TypeReference<List<TransactionMessage>> VOTES = new TypeReference<>() {};
+    private static final TypeReference<List<Boolean>> ACKS = new TypeReference<>() {};
 
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
 
-    public ParticipantClient() {
-        this.httpClient = HttpClient.newBuilder()
-                .connectTimeout(Duration.ofSeconds(5))
-                .build();
+    private final boolean batching;
+    private final int batchMaxSize;
+    private final long batchWindowMicros;
+    // closes the batching windows, sending is asynchronous so one thread serves every participant
+    private final ScheduledExecutorService batchTimer;
+    // participant URL -> batcher, one per message kind
+    private final Map<String, MessageBatcher<TransactionMessage>> prepareBatchers = new ConcurrentHashMap<>();
+    private final Map<String, MessageBatcher<Boolean>> commitBatchers = new ConcurrentHashMap<>();
+    private final Map<String, MessageBatcher<Boolean>> abortBatchers = new ConcurrentHashMap<>();
+
+    public ParticipantClient(
+            @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads,
+            @Value("${coordinator.batching.enabled:false}") boolean batching,
+            @Value("${coordinator.batching.max-size:64}") int batchMaxSize,
+            @Value("${coordinator.batching.window-micros:1000}") long batchWindowMicros) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5));
+        // responses are handled on a virtual thread each instead of the client's default cached thread pool,
+        // and the blocking send* wrappers park their (virtual) request thread rather than tie up a platform thread
+        if (virtualThreads) {
+            builder.executor(Executors.newVirtualThreadPerTaskExecutor());
+        }
+        this.httpClient = builder.build();
         this.objectMapper = new ObjectMapper();
         this.objectMapper.registerModule(new com.fasterxml.jackson.datatype.jsr310.JavaTimeModule());
         this.objectMapper.disable(com.fasterxml.jackson.databind.SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+        this.batching = batching;
+        this.batchMaxSize = batchMaxSize;
+        this.batchWindowMicros = batchWindowMicros;
+        this.batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "participant-batch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public TransactionMessage sendPrepare(String participantUrl, String txnId, Map<String, Object> operationData) {
-        try {
-            TransactionMessage prepareMsg = TransactionMessage.prepare(txnId, "coordinator", operationData);
+        return sendPrepareAsync(participantUrl, txnId, operationData).join();
+    }
+
+    // send PREPARE without blocking the caller, so the coordinator can ask all participants at once
+    // the future always completes with a vote, errors and non-200 answers become VOTE_NO
+    // cancelling it withdraws a batched PREPARE that has not gone out yet, or aborts the HTTP exchange
+    public CompletableFuture<TransactionMessage> sendPrepareAsync(String participantUrl, String txnId, Map<String, Object> operationData) {
+        TransactionMessage prepareMsg = TransactionMessage.prepare(txnId, "coordinator", operationData);
+        if (batching) {
+            CompletableFuture<TransactionMessage> submitted = prepareBatchers.computeIfAbsent(participantUrl,
+                            url -> new MessageBatcher<>(batchMaxSize, batchWindowMicros, batchTimer,
+                                    messages -> sendPrepareBatchAsync(url, messages)))
+                    .submit(prepareMsg);
+            return cancelling(submitted, submitted
+                    .exceptionally(e -> TransactionMessage.voteNo(txnId, participantUrl, "Communication error: " + e.getMessage())));
+        }
 
+        HttpRequest request;
+        try {
             String requestBody = objectMapper.writeValueAsString(prepareMsg);
 
-            HttpRequest request = HttpRequest.newBuilder()
+            request = HttpRequest.newBuilder()
                     .uri(URI.create(participantUrl + "/api/transaction/prepare"))
                     .header("Content-Type", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(requestBody))
                     .timeout(Duration.ofSeconds(5))
                     .build();
+        } catch (Exception e) {
+            logger.error("[{}] Error building PREPARE for {}", txnId, participantUrl, e);
+            return CompletableFuture.completedFuture(
+                    TransactionMessage.voteNo(txnId, participantUrl, "Communication error: " + e.getMessage()));
+        }
 
-            logger.debug("[{}] Sending PREPARE to {}", txnId, participantUrl);
+        logger.debug("[{}] Sending PREPARE to {}", txnId, participantUrl);
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        CompletableFuture<HttpResponse<String>> exchange = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        return cancelling(exchange, exchange
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        logger.error("[{}] PREPARE failed with status {}: {}", txnId, response.statusCode(), response.body());
+                        return TransactionMessage.voteNo(txnId, participantUrl, "HTTP error: " + response.statusCode());
+                    }
+                    try {
+                        TransactionMessage voteMsg = objectMapper.readValue(response.body(), TransactionMessage.class);
+                        logger.info("[{}] Received vote from {}: {}", txnId, participantUrl, voteMsg.getMessageType());
+                        return voteMsg;
+                    } catch (Exception e) {
+                        logger.error("[{}] Unreadable vote from {}", txnId, participantUrl, e);
+                        return TransactionMessage.voteNo(txnId, participantUrl, "Communication error: " + e.getMessage());
+                    }
+                })
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    logger.error("[{}] Error sending PREPARE to {}", txnId, participantUrl, cause);
+                    return TransactionMessage.voteNo(txnId, participantUrl, "Communication error: " + cause.getMessage());
+                }));
+    }
 
-            if (response.statusCode() == 200) {
-                TransactionMessage voteMsg = objectMapper.readValue(response.body(), TransactionMessage.class);
-                logger.info("[{}] Received vote from {}: {}", txnId, participantUrl, voteMsg.getMessageType());
-                return voteMsg;
-            } else {
-                logger.error("[{}] PREPARE failed with status {}: {}", txnId, response.statusCode(), response.body());
-                return TransactionMessage.voteNo(txnId, participantUrl, "HTTP error: " + + response.statusCode());
+    // cancelling a dependent future does not reach the one it was derived from, this passes it upstream
+    private static <T> CompletableFuture<T> cancelling(CompletableFuture<?> upstream, CompletableFuture<T> result) {
+        result.whenComplete((ignored, error) -> {
+            if (result.isCancelled()) {
+                upstream.cancel(true);
             }
-        } catch (Exception e) {
-            logger.error("[{}] Error sending PREPARE to {}", txnId, participantUrl, e);
-            return TransactionMessage.voteNo(txnId, participantUrl, "Communication error: " + e.getMessage());
+        });
+        return result;
+    }
+
+    // send commit message to a participant, returns whether the participant acknowledged it
+    public boolean sendCommit(String participantUrl, String txnId) {
+        return sendCommitAsync(participantUrl, txnId).join();
+    }
+
+    // send ABORT message to a participant, returns whether the participant acknowledged it
+    public boolean sendAbort(String participantUrl, String txnId) {
+        return sendAbortAsync(participantUrl, txnId).join();
+    }
+
+    // COMMIT without blocking the caller, completes with whether the participant acknowledged it
+    public CompletableFuture<Boolean> sendCommitAsync(String participantUrl, String txnId) {
+        if (batching) {
+            return batchDecision(commitBatchers, participantUrl, "COMMIT", "/api/transaction/commit-batch",
+                    TransactionMessage.commit(txnId, "coordinator"));
         }
+        return sendDecisionAsync(participantUrl, txnId, "COMMIT", "/api/transaction/commit",
+                TransactionMessage.commit(txnId, "coordinator"));
     }
 
-    // send commit message to a participant
-    public void sendCommit(String participantUrl, String txnId) {
-        try {
-            TransactionMessage prepareMsg = TransactionMessage.commit(txnId, "coordinator");
+    // ABORT without blocking the caller, completes with whether the participant acknowledged it
+    public CompletableFuture<Boolean> sendAbortAsync(String participantUrl, String txnId) {
+        if (batching) {
+            return batchDecision(abortBatchers, participantUrl, "ABORT", "/api/transaction/abort-batch",
+                    TransactionMessage.abort(txnId, "coordinator", "Transaction Aborted"));
+        }
+        return sendDecisionAsync(participantUrl, txnId, "ABORT", "/api/transaction/abort",
+                TransactionMessage.abort(txnId, "coordinator", "Transaction Aborted"));
+    }
 
-            String requestBody = objectMapper.writeValueAsString(prepareMsg);
+    // COMMIT for many transactions in one request, bypassing the batching window; one acknowledgement per id, in order
+    public CompletableFuture<List<Boolean>> sendCommitBatchAsync(String participantUrl, List<String> txnIds) {
+        List<TransactionMessage> messages = new ArrayList<>(txnIds.size());
+        for (String txnId : txnIds) {
+            messages.add(TransactionMessage.commit(txnId, "coordinator"));
+        }
+        return sendDecisionBatchAsync(participantUrl, "COMMIT", "/api/transaction/commit-batch", messages);
+    }
+
+    // ABORT for many transactions in one request, bypassing the batching window; one acknowledgement per id, in order
+    public CompletableFuture<List<Boolean>> sendAbortBatchAsync(String participantUrl, List<String> txnIds) {
+        List<TransactionMessage> messages = new ArrayList<>(txnIds.size());
+        for (String txnId : txnIds) {
+            messages.add(TransactionMessage.abort(txnId, "coordinator", "Transaction Aborted"));
+        }
+        return sendDecisionBatchAsync(participantUrl, "ABORT", "/api/transaction/abort-batch", messages);
+    }
 
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(participantUrl + "/api/transaction/commit"))
+    // never completes exceptionally, failures are logged and answered with false
+    private CompletableFuture<Boolean> sendDecisionAsync(String participantUrl, String txnId, String decision,
+                                                         String path, TransactionMessage message) {
+        HttpRequest request;
+        try {
+            String requestBody = objectMapper.writeValueAsString(message);
+
+            request = HttpRequest.newBuilder()
+                    .uri(URI.create(participantUrl + path))
                     .header("Content-Type", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(requestBody))
                     .timeout(Duration.ofSeconds(5))
                     .build();
+        } catch (Exception e) {
+            logger.error("[{}] Error building {} for {}", txnId, decision, participantUrl, e);
+            return CompletableFuture.completedFuture(false);
+        }
 
-            logger.debug("[{}] Sending COMMIT to {}", txnId, participantUrl);
+        logger.debug("[{}] Sending {} to {}", txnId, decision, participantUrl);
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    if (response.statusCode() == 200) {
+                        logger.info("[{}] {} acknowledged by {}", txnId, decision, participantUrl);
+                        return true;
+                    }
+                    logger.error("[{}] {} failed with status {}: {}", txnId, decision, response.statusCode(), response.body());
+                    return false;
+                })
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    logger.error("[{}] Error sending {} to {}: {}", txnId, decision, participantUrl, cause.toString());
+                    return false;
+                });
+    }
 
-            if (response.statusCode() == 200) {
-                logger.info("[{}] COMMIT acknowledged by {}", txnId, participantUrl);
-            } else {
-                logger.error("[{}] COMMIT failed with status {}: {}", txnId, response.statusCode(), response.body());
-            }
-        } catch (Exception e) {
-            logger.error("[{}] Error sending COMMIT to {}", txnId, participantUrl, e);
-            // in production we must retry
-        }
+    private CompletableFuture<Boolean> batchDecision(Map<String, MessageBatcher<Boolean>> batchers, String participantUrl,
+                                                     String decision, String path, TransactionMessage message) {
+        return batchers.computeIfAbsent(participantUrl, url -> new MessageBatcher<>(batchMaxSize, batchWindowMicros,
+                        batchTimer, messages -> sendDecisionBatchAsync(url, decision, path, messages)))
+                .submit(message)
+                .exceptionally(e -> false);
     }
 
-    // send ABORT message to a participant
-    public void sendAbort(String participantUrl, String txnId) {
+    // one request for a whole batch of PREPAREs, the participant answers with one vote per message in the same order
+    // a failed request or a malformed answer is a NO from every transaction in the batch
+    private CompletableFuture<List<TransactionMessage>> sendPrepareBatchAsync(String participantUrl, List<TransactionMessage> prepareMsgs) {
+        HttpRequest request;
         try {
-            TransactionMessage prepareMsg = TransactionMessage.abort(txnId, "coordinator", "Transaction Aborted");
-
-            String requestBody = objectMapper.writeValueAsString(prepareMsg);
-
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(participantUrl + "/api/transaction/abort"))
+            request = HttpRequest.newBuilder()
+                    .uri(URI.create(participantUrl + "/api/transaction/prepare-batch"))
                     .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(requestBody))
+                    .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(prepareMsgs)))
                     .timeout(Duration.ofSeconds(5))
                     .build();
+        } catch (Exception e) {
+            logger.error("Error building PREPARE batch for {}", participantUrl, e);
+            return CompletableFuture.completedFuture(votesNo(prepareMsgs, participantUrl, "Communication error: " + e.getMessage()));
+        }
 
-            logger.debug("[{}] Sending COMMIT to {}", txnId, participantUrl);
+        logger.debug("Sending PREPARE batch of {} to {}", prepareMsgs.size(), participantUrl);
 
-            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        logger.error("PREPARE batch of {} failed with status {}: {}", prepareMsgs.size(), response.statusCode(), response.body());
+                        return votesNo(prepareMsgs, participantUrl, "HTTP error: " + response.statusCode());
+                    }
+                    try {
+                        List<TransactionMessage> votes = objectMapper.readValue(response.body(), VOTES);
+                        if (votes.size() != prepareMsgs.size()) {
+                            logger.error("PREPARE batch of {} to {} answered with {} votes", prepareMsgs.size(), participantUrl, votes.size());
+                            return votesNo(prepareMsgs, participantUrl, "Malformed batch answer");
+                        }
+                        logger.info("Received {} votes from {}", votes.size(), participantUrl);
+                        return votes;
+                    } catch (Exception e) {
+                        logger.error("Unreadable votes from {}", participantUrl, e);
+                        return votesNo(prepareMsgs, participantUrl, "Communication error: " + e.getMessage());
+                    }
+                })
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    logger.error("Error sending PREPARE batch of {} to {}: {}", prepareMsgs.size(), participantUrl, cause.toString());
+                    return votesNo(prepareMsgs, participantUrl, "Communication error: " + cause.getMessage());
+                });
+    }
 
-            if (response.statusCode() == 200) {
-                logger.info("[{}] ABORT acknowledged by {}", txnId, participantUrl);
-            } else {
-                logger.error("[{}] ABORT failed with status {}: {}", txnId, response.statusCode(), response.body());
-            }
+    private static List<TransactionMessage> votesNo(List<TransactionMessage> prepareMsgs, String participantUrl, String reason) {
+        List<TransactionMessage> votes = new ArrayList<>(prepareMsgs.size());
+        for (TransactionMessage prepareMsg : prepareMsgs) {
+            votes.add(TransactionMessage.voteNo(prepareMsg.getTransactionId(), participantUrl, reason));
+        }
+        return votes;
+    }
+
+    // one request for a whole batch of COMMITs or ABORTs, the participant answers with one acknowledgement per message
+    // in the same order; a failed request or a malformed answer acknowledges none of them
+    private CompletableFuture<List<Boolean>> sendDecisionBatchAsync(String participantUrl, String decision, String path,
+                                                                    List<TransactionMessage> messages) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder()
+                    .uri(URI.create(participantUrl + path))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(messages)))
+                    .timeout(Duration.ofSeconds(5))
+                    .build();
         } catch (Exception e) {
-            logger.error("[{}] Error sending ABORT to {}", txnId, participantUrl, e);
+            logger.error("Error building {} batch for {}", decision, participantUrl, e);
+            return CompletableFuture.completedFuture(Collections.nCopies(messages.size(), false));
         }
+
+        logger.debug("Sending {} batch of {} to {}", decision, messages.size(), participantUrl);
+
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        logger.error("{} batch of {} failed with status {}: {}", decision, messages.size(), response.statusCode(), response.body());
+                        return Collections.nCopies(messages.size(), false);
+                    }
+                    try {
+                        List<Boolean> acks = objectMapper.readValue(response.body(), ACKS);
+                        if (acks.size() != messages.size()) {
+                            logger.error("{} batch of {} to {} answered with {} acknowledgements", decision, messages.size(), participantUrl, acks.size());
+                            return Collections.nCopies(messages.size(), false);
+                        }
+                        logger.info("{} batch of {} acknowledged by {}: {} of them", decision, messages.size(), participantUrl,
+                                acks.stream().filter(Boolean.TRUE::equals).count());
+                        return acks;
+                    } catch (Exception e) {
+                        logger.error("Unreadable {} acknowledgements from {}", decision, participantUrl, e);
+                        return Collections.nCopies(messages.size(), false);
+                    }
+                })
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    logger.error("Error sending {} batch of {} to {}: {}", decision, messages.size(), participantUrl, cause.toString());
+                    return Collections.nCopies(messages.size(), false);
+                });
     }
 
+    // sends whatever the batchers still hold, then stops the window timer
+    @Override
+    public void close() {
+        prepareBatchers.values().forEach(MessageBatcher::flush);
+        commitBatchers.values().forEach(MessageBatcher::flush);
+        abortBatchers.values().forEach(MessageBatcher::flush);
+        batchTimer.shutdownNow();
+    }
 }
@@ -1,6 +1,6 @@
 package com.twopc.coordinator.service;
 
-import com.twopc.common.log.FileBasedWAL;
+import com.twopc.common.log.ShardedWAL;
 import com.twopc.common.log.WriteAheadLog;
 import com.twopc.common.model.Transaction;
 import com.twopc.common.protocol.MessageType;
@@ -12,11 +12,18 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // core coordinator logic for the Two-Phase commit protocol
 // create transactions for incoming orders
@@ -24,37 +31,66 @@ import java.util.concurrent.ConcurrentHashMap;
 // collect votes
 // make COMMIT/ABORT decision
 // send decision to all participants
+// with coordinator.presumed-abort only COMMITTED is ever logged: no PREPARING record, no ABORTED record,
+// a transaction the WAL has never seen is ABORTED; an aborted order touches the disk not at all, a committed one once
+// transactions are split over coordinator.partitions partitions by id, each with its own WAL shard, in-flight table
+// and single writer thread, see CoordinatorPartition; only the vote collection runs on the request thread
 @Service
-public class TransactionCoordinator {
+public class TransactionCoordinator implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(TransactionCoordinator.class);
 
     private final ParticipantClient participantClient;
+    private final DecisionDelivery decisionDelivery;
+    private final ConcurrencyLimiter limiter;
     private final WriteAheadLog wal;
     private final String inventoryServiceUrl;
     private final String paymentServiceUrl;
+    // how long to wait for the votes before deciding ABORT
+    private final long prepareTimeoutSeconds;
+    private final boolean presumedAbort;
 
-    // active transactions in memory
-    private final Map<String, Transaction> activeTransactions = new ConcurrentHashMap<>();
+    // transaction id -> partition by the WAL's shard mapping, partition i logs to shard i
+    private final CoordinatorPartition[] partitions;
 
     public TransactionCoordinator(
             ParticipantClient participantClient,
-            @Value("${coordinator.wal.base-dir}") String wal,
+            DecisionDelivery decisionDelivery,
+            ConcurrencyLimiter limiter,
+            WriteAheadLog wal,
             @Value("${coordinator.participants.inventory-service}") String inventoryServiceUrl,
-            @Value("${coordinator.participants.payment-service}") String paymentServiceUrl) {
+            @Value("${coordinator.participants.payment-service}") String paymentServiceUrl,
+            @Value("${coordinator.prepare-timeout-seconds:5}") long prepareTimeoutSeconds,
+            @Value("${coordinator.presumed-abort:false}") boolean presumedAbort,
+            @Value("${coordinator.partitions:1}") int partitionCount) {
         this.participantClient = participantClient;
-        this.wal = new FileBasedWAL("coordinator-service", wal);
+        this.decisionDelivery = decisionDelivery;
+        this.limiter = limiter;
+        this.wal = wal;
         this.inventoryServiceUrl = inventoryServiceUrl;
         this.paymentServiceUrl = paymentServiceUrl;
+        this.prepareTimeoutSeconds = prepareTimeoutSeconds;
+        this.presumedAbort = presumedAbort;
+        this.partitions = new CoordinatorPartition[Math.max(1, partitionCount)];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new CoordinatorPartition(i, wal);
+        }
     }
 
     // process an order using the 2PC protocol
     // create transaction
-    // send prepare to all participants
-    // collect votes
+    // send prepare to all participants in parallel
+    // collect votes until all are in, one is NO or the prepare timeout passes
     // make decision(commit if all yes, abort otherwise)
     // log decision to wal
-    // send decision to all participants
+    // hand the decision to the delivery pipeline and return, participants get it in the background
+    // throws OverloadedException without starting anything when the in-flight limit is reached
     public Transaction processOrder(OrderRequest order) {
+        try (ConcurrencyLimiter.Permit permit = limiter.acquire()) {
+            return twoPhaseCommit(order, permit);
+        }
+    }
+
+    private Transaction twoPhaseCommit(OrderRequest order, ConcurrencyLimiter.Permit permit) {
         String txnId = "TXN-" + UUID.randomUUID().toString().substring(0,8);
 
         logger.info("[{}] Starting 2PC for order: {}", txnId, order);
@@ -70,66 +106,143 @@ public class TransactionCoordinator {
         transaction.getOperationData().put("quantity", order.getQuantity());
         transaction.getOperationData().put("amount", order.getAmount());
 
-        activeTransactions.put(txnId, transaction);
+        CoordinatorPartition partition = partitionOf(txnId);
 
         // transition to PREPARING state and send PREPARE to all participants
-        transaction.setState(TransactionState.PREPARING);
-        wal.writeLog(transaction);
+        // the partition forgets the transaction however this ends, e.g. when a WAL append fails
+        try {
+            await(partition.begin(transaction, !presumedAbort));
 
-        logger.info("[{}] Entering PREPARING phase", txnId);
+            logger.info("[{}] Entering PREPARING phase", txnId);
 
-        // send prepare to inventory service
-        Map<String, Object> inventoryData = new HashMap<>();
-        inventoryData.put("productId", order.getProductId());
-        inventoryData.put("quantity", order.getQuantity());
+            // send prepare to all participants at once
+            Map<String, Object> inventoryData = new HashMap<>();
+            inventoryData.put("productId", order.getProductId());
+            inventoryData.put("quantity", order.getQuantity());
 
-        TransactionMessage inventoryVote = participantClient.sendPrepare(inventoryServiceUrl, txnId, inventoryData);
-        transaction.recordVote(inventoryServiceUrl, inventoryVote.getMessageType() == MessageType.VOTE_YES ? "YES" : "NO");
+            Map<String, Object> paymentData = new HashMap<>();
+            paymentData.put("customerId", order.getCustomerId());
+            paymentData.put("amount", order.getAmount());
 
-        // send prepare to payment service
-        Map<String, Object> paymentData = new HashMap<>();
-        paymentData.put("customerId", order.getCustomerId());
-        paymentData.put("amount", order.getAmount());
+            Map<String, Map<String, Object>> prepares = new LinkedHashMap<>();
+            prepares.put(inventoryServiceUrl, inventoryData);
+            prepares.put(paymentServiceUrl, paymentData);
 
-        TransactionMessage paymentVote = participantClient.sendPrepare(paymentServiceUrl, txnId, paymentData);
-        transaction.recordVote(paymentServiceUrl, paymentVote.getMessageType() == MessageType.VOTE_YES ? "YES" : "NO");
+            long prepareStart = System.nanoTime();
+            Map<String, String> votes = gatherVotes(txnId, prepares);
+            // the prepare round trip drives the in-flight limit, a missing vote without any NO means the timeout hit
+            permit.onPrepared(System.nanoTime() - prepareStart, votes.size() < prepares.size() && !votes.containsValue("NO"));
 
-        // make decision based on votes
-        if (transaction.allParticipantsVotedYes()) {
-            logger.info("[{}] All participants voted YES - COMMITTING", txnId);
+            // make decision based on votes, COMMIT if all voted YES
+            // returns once the decision is durable, from here on it survives a crash
+            // without a PREPARING record (presumed abort) a COMMIT writes the transaction in full
+            await(partition.decide(transaction, votes, !presumedAbort));
 
-            transaction.setState(TransactionState.COMMITTED);
-            wal.writeLog(transaction);
-
-            // send commit to all participants
-            participantClient.sendCommit(inventoryServiceUrl,txnId);
-            participantClient.sendCommit(paymentServiceUrl,txnId);
+            // send the decision to all participants in the background, the client does not wait for it
+            decisionDelivery.deliver(transaction);
+        } finally {
+            partition.finish(txnId);
+        }
 
-            logger.info("[{}] Transaction COMMITTED successfully", txnId);
+        if (transaction.getState() == TransactionState.COMMITTED) {
+            logger.info("[{}] All participants voted YES - Transaction COMMITTED successfully", txnId);
         } else {
-            String reason = getAbortReason(transaction);
-            logger.warn("[{}] At least one participant voted NO - ABORTING. Reason: {}", txnId, reason);
+            logger.warn("[{}] At least one participant voted NO - Transaction ABORTED. Reason: {}", txnId,
+                    getAbortReason(transaction));
+        }
 
-            transaction.setState(TransactionState.ABORTED);
-            wal.writeLog(transaction);
+        return transaction;
+    }
+
+    private CoordinatorPartition partitionOf(String txnId) {
+        return partitions[ShardedWAL.shardOf(txnId, partitions.length)];
+    }
 
-            // send abort to both
-            participantClient.sendAbort(inventoryServiceUrl, txnId);
-            participantClient.sendAbort(paymentServiceUrl, txnId);
-            logger.info("[{}] Transaction ABORTED", txnId);
+    // waits for a partition task, its failure (e.g. a WAL LogException) is rethrown as is
+    private static <T> T await(CompletableFuture<T> task) {
+        try {
+            return task.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
         }
+    }
 
-        activeTransactions.remove(txnId);
+    // send PREPARE to every participant in parallel and wait for the votes
+    // returns as soon as every participant voted, the first NO arrived or the prepare timeout passed
+    // a participant missing from the result never answered in time, the decision counts that as a NO
+    // PREPAREs still outstanding then are cancelled: a batched one that has not gone out yet never does,
+    // a request already on the wire is dropped, and the ABORT that follows releases whatever it may have locked
+    private Map<String, String> gatherVotes(String txnId, Map<String, Map<String, Object>> prepares) {
+        Map<String, String> votes = new ConcurrentHashMap<>();
+        CompletableFuture<Void> decided = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(prepares.size());
+        Map<String, CompletableFuture<TransactionMessage>> requests = new LinkedHashMap<>();
 
-        return transaction;
+        for (Map.Entry<String, Map<String, Object>> prepare : prepares.entrySet()) {
+            String participantUrl = prepare.getKey();
+            CompletableFuture<TransactionMessage> request = participantClient.sendPrepareAsync(participantUrl, txnId, prepare.getValue());
+            requests.put(participantUrl, request);
+            request.thenAccept(vote -> {
+                boolean yes = vote.getMessageType() == MessageType.VOTE_YES;
+                votes.put(participantUrl, yes ? "YES" : "NO");
+                if (!yes || outstanding.decrementAndGet() == 0) {
+                    decided.complete(null);
+                }
+            });
+        }
+
+        decided.completeOnTimeout(null, prepareTimeoutSeconds, TimeUnit.SECONDS).join();
+
+        // votes arriving from here on are ignored, the decision is made on this snapshot
+        Map<String, String> snapshot = new HashMap<>(votes);
+        requests.forEach((participantUrl, request) -> {
+            if (!snapshot.containsKey(participantUrl) && request.cancel(true)) {
+                logger.debug("[{}] Cancelled PREPARE to {}", txnId, participantUrl);
+            }
+        });
+        if (snapshot.size() < prepares.size() && !snapshot.containsValue("NO")) {
+            logger.warn("[{}] Prepare timeout of {}s passed with {} of {} votes received",
+                    txnId, prepareTimeoutSeconds, snapshot.size(), prepares.size());
+        }
+        return snapshot;
     }
 
     public Optional<Transaction> getTransaction(String txnId) {
-        Transaction txn = activeTransactions.get(txnId);
-        if (txn != null) {
-            return Optional.of(txn);
+        Optional<Transaction> inFlight = await(partitionOf(txnId).lookup(txnId));
+        if (inFlight.isPresent()) {
+            return inFlight;
+        }
+        Optional<Transaction> logged = wal.readLog(txnId);
+        if (logged.isPresent() || !presumedAbort || wal.mightContain(txnId)) {
+            // a logged id missing from readLog was compacted away once phase 2 was acknowledged,
+            // it may well have committed, so it is not presumed anything
+            // the same goes for every id while the wal cannot vouch that its filter covers the whole log
+            return logged;
+        }
+        // never logged, so never committed
+        return Optional.of(presumedAborted(txnId));
+    }
+
+    // per partition, the transactions between PREPARING and the hand-off of their decision
+    public List<Map<String, Object>> getPartitionStats() {
+        List<Map<String, Object>> stats = new ArrayList<>(partitions.length);
+        for (CoordinatorPartition partition : partitions) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("partition", partition.index());
+            entry.put("inFlight", await(partition.inFlightCount()));
+            stats.add(entry);
         }
-        return wal.readLog(txnId);
+        return stats;
+    }
+
+    // the answer for a transaction without any WAL record under presumed abort
+    private static Transaction presumedAborted(String txnId) {
+        Transaction transaction = new Transaction(txnId);
+        transaction.setState(TransactionState.ABORTED);
+        return transaction;
     }
 
     // helper to determine why transaction was aborted
@@ -149,4 +262,11 @@ public class TransactionCoordinator {
 
         return reason.toString();
     }
+
+    @Override
+    public void close() {
+        for (CoordinatorPartition partition : partitions) {
+            partition.close();
+        }
+    }
 }
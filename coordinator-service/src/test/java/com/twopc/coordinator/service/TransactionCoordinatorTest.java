@@ -0,0 +1,147 @@
+package com.twopc.coordinator.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpServer;
+import com.twopc.common.log.WalOptions;
+import com.twopc.common.log.WriteAheadLog;
+import com.twopc.common.model.Transaction;
+import com.twopc.common.protocol.TransactionMessage;
+import com.twopc.common.protocol.TransactionState;
+import com.twopc.coordinator.model.OrderRequest;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TransactionCoordinatorTest {
+    @TempDir
+    Path walDir;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+    // decision writes the test completes by hand, one per appendBatchAsync
+    private final LinkedBlockingQueue<CompletableFuture<Void>> decisionWrites = new LinkedBlockingQueue<>();
+    private final ExecutorService orders = Executors.newSingleThreadExecutor();
+
+    private WriteAheadLog wal;
+    private HttpServer participant;
+    private ParticipantClient participantClient;
+    private DecisionDelivery decisionDelivery;
+    private TransactionCoordinator coordinator;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        WalOptions options = new WalOptions();
+        options.setBaseDir(walDir.toString());
+        options.setSegmentSizeBytes(1 << 20);
+        wal = WriteAheadLog.open("coordinator", options);
+        WriteAheadLog heldDecisions = holdingDecisionWrites(wal);
+
+        // both participants (one server under two URLs) vote YES to every PREPARE and acknowledge everything else
+        participant = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        participant.createContext("/", exchange -> {
+            byte[] body = new byte[0];
+            if (exchange.getRequestURI().getPath().endsWith("/prepare")) {
+                TransactionMessage prepare = objectMapper.readValue(exchange.getRequestBody(), TransactionMessage.class);
+                body = objectMapper.writeValueAsBytes(TransactionMessage.voteYes(prepare.getTransactionId(), "participant", null));
+            }
+            exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        participant.start();
+        String url = "http://localhost:" + participant.getAddress().getPort();
+
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        participantClient = new ParticipantClient(false, false, 64, 1000);
+        decisionDelivery = new DecisionDelivery(participantClient, heldDecisions, meterRegistry, 100, 1000, 100, false);
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(meterRegistry, false, 20, 1, 200, 500, 0.9, 1);
+        coordinator = new TransactionCoordinator(participantClient, decisionDelivery, limiter, heldDecisions,
+                url, url + "/", 5, false, 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        orders.shutdownNow();
+        coordinator.close();
+        decisionDelivery.close();
+        participantClient.close();
+        participant.stop(0);
+        wal.close();
+    }
+
+    @Test
+    void decisionIsNotReportedBeforeItIsDurable() throws Exception {
+        Future<Transaction> order = orders.submit(() -> coordinator.processOrder(order()));
+        CompletableFuture<Void> decisionWrite = decisionWrites.poll(10, TimeUnit.SECONDS);
+        String txnId = onlyTransactionId();
+
+        // every vote is in and the COMMITTED record is on its way, but not yet durable
+        assertEquals(TransactionState.PREPARING, coordinator.getTransaction(txnId).orElseThrow().getState());
+
+        decisionWrite.complete(null);
+        assertEquals(TransactionState.COMMITTED, order.get(10, TimeUnit.SECONDS).getState());
+    }
+
+    @Test
+    void failedDecisionWriteIsNeverReported() throws Exception {
+        Future<Transaction> order = orders.submit(() -> coordinator.processOrder(order()));
+        CompletableFuture<Void> decisionWrite = decisionWrites.poll(10, TimeUnit.SECONDS);
+        String txnId = onlyTransactionId();
+
+        decisionWrite.completeExceptionally(new WriteAheadLog.LogException("disk full"));
+
+        Exception failure = assertThrows(Exception.class, () -> order.get(10, TimeUnit.SECONDS));
+        assertEquals(WriteAheadLog.LogException.class, failure.getCause().getClass());
+        // the transaction left the in-flight table, the answer comes from the WAL, which only has PREPARING
+        assertEquals(TransactionState.PREPARING, coordinator.getTransaction(txnId).orElseThrow().getState());
+        assertEquals(0, coordinator.getPartitionStats().get(0).get("inFlight"));
+    }
+
+    private static OrderRequest order() {
+        return new OrderRequest("ORDER-1", "CUST-001", "LAPTOP-001", 1, 1499.99);
+    }
+
+    // the one transaction the coordinator logged PREPARING for
+    private String onlyTransactionId() {
+        List<Transaction> logged = wal.readAllLogs();
+        assertEquals(1, logged.size());
+        return logged.get(0).getTransactionId();
+    }
+
+    // the WAL, except that every appendBatchAsync (the decision record) waits for the test
+    private WriteAheadLog holdingDecisionWrites(WriteAheadLog delegate) {
+        return (WriteAheadLog) Proxy.newProxyInstance(WriteAheadLog.class.getClassLoader(),
+                new Class<?>[]{WriteAheadLog.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("appendBatchAsync")) {
+                        CompletableFuture<Void> write = new CompletableFuture<>();
+                        decisionWrites.add(write);
+                        return write;
+                    }
+                    try {
+                        return method.invoke(delegate, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+}
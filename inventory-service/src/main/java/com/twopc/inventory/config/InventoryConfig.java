@@ -1,5 +1,7 @@
 package com.twopc.inventory.config;
 
+import com.twopc.common.log.WalOptions;
+import com.twopc.common.log.WriteAheadLog;
 import com.twopc.common.model.Product;
 import com.twopc.inventory.storage.InventoryStore;
 import org.springframework.boot.CommandLineRunner;
@@ -14,6 +16,7 @@ import java.util.List;
 @ConfigurationProperties(prefix = "inventory")
 public class InventoryConfig {
     private List<ProductConfig> products = new ArrayList<>();
+    private WalOptions wal = new WalOptions();
 
     public static class ProductConfig {
         private String id;
@@ -62,6 +65,19 @@ public class InventoryConfig {
         this.products = products;
     }
 
+    public WalOptions getWal() {
+        return wal;
+    }
+
+    public void setWal(WalOptions wal) {
+        this.wal = wal;
+    }
+
+    @Bean
+    public WriteAheadLog writeAheadLog() {
+        return WriteAheadLog.open("inventory-service", wal);
+    }
+
     @Bean
     public CommandLineRunner initializeInventory(InventoryStore inventoryStore) {
         return args -> {
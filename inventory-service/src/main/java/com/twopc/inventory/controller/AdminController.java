@@ -1,5 +1,6 @@
 package com.twopc.inventory.controller;
 
+import com.twopc.inventory.service.DecisionInquiry;
 import com.twopc.inventory.service.ResourceLockManager;
 import com.twopc.inventory.storage.InventoryStore;
 import org.slf4j.Logger;
@@ -19,10 +20,13 @@ public class AdminController {
 
     private final InventoryStore inventoryStore;
     private final ResourceLockManager lockManager;
+    private final DecisionInquiry decisionInquiry;
 
-    public AdminController(InventoryStore inventoryStore, ResourceLockManager lockManager) {
+    public AdminController(InventoryStore inventoryStore, ResourceLockManager lockManager,
+                           DecisionInquiry decisionInquiry) {
         this.inventoryStore = inventoryStore;
         this.lockManager = lockManager;
+        this.decisionInquiry = decisionInquiry;
     }
 
     /**
@@ -45,6 +49,14 @@ public class AdminController {
         ));
     }
 
+    /**
+     * Get statistics of the inquiries about transactions that stayed PREPARED too long.
+     */
+    @GetMapping("/inquiry/stats")
+    public ResponseEntity<Map<String, Object>> getInquiryStats() {
+        return ResponseEntity.ok(decisionInquiry.getStats());
+    }
+
     /**
      * Simulate a crash (for testing recovery).
      * In a real scenario, this would terminate the process.
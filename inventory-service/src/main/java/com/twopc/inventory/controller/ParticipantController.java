@@ -4,9 +4,12 @@ import com.twopc.common.protocol.TransactionMessage;
 import com.twopc.inventory.service.TransactionParticipant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+
 /**
  * REST endpoints for 2PC participant operations.
  * Called by the coordinator during 2PC protocol*/
@@ -32,28 +35,68 @@ public class ParticipantController {
 
     /**
      * Coordinator sends COMMIT, participant applies changes.
+     * 200 once COMMITTED is durable here, 503 if it is not and the coordinator has to send it again.
      */
     @PostMapping("/commit")
     public ResponseEntity<Void> commit(@RequestBody TransactionMessage commitMsg) {
         logger.info("POST /api/transaction/commit - Transaction: {}",
                 commitMsg.getTransactionId());
 
-        participant.handleCommit(commitMsg.getTransactionId());
+        if (!participant.handleCommit(commitMsg.getTransactionId())) {
+            // not done here yet, the coordinator keeps the decision and sends it again
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
         return ResponseEntity.ok().build();
     }
 
     /**
      * Coordinator sends ABORT, participant releases locks.
+     * 200 once the ABORT is done here, 503 if the coordinator has to send it again.
      */
     @PostMapping("/abort")
     public ResponseEntity<Void> abort(@RequestBody TransactionMessage abortMsg) {
         logger.info("POST /api/transaction/abort - Transaction: {}",
                 abortMsg.getTransactionId());
 
-        participant.handleAbort(abortMsg.getTransactionId());
+        if (!participant.handleAbort(abortMsg.getTransactionId())) {
+            // not done here yet, the coordinator keeps the decision and sends it again
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
         return ResponseEntity.ok().build();
     }
 
+    /**
+     * Coordinator sends a batch of PREPAREs, participant votes on each; votes come back in request order.
+     */
+    @PostMapping("/prepare-batch")
+    public ResponseEntity<List<TransactionMessage>> prepareBatch(@RequestBody List<TransactionMessage> prepareMsgs) {
+        logger.info("POST /api/transaction/prepare-batch - {} transactions", prepareMsgs.size());
+
+        return ResponseEntity.ok(participant.handlePrepareBatch(prepareMsgs));
+    }
+
+    /**
+     * Coordinator sends a batch of COMMITs, participant applies all of them.
+     * Answers one acknowledgement per transaction in request order; false ones are sent again.
+     */
+    @PostMapping("/commit-batch")
+    public ResponseEntity<List<Boolean>> commitBatch(@RequestBody List<TransactionMessage> commitMsgs) {
+        logger.info("POST /api/transaction/commit-batch - {} transactions", commitMsgs.size());
+
+        return ResponseEntity.ok(participant.handleCommitBatch(commitMsgs.stream().map(TransactionMessage::getTransactionId).toList()));
+    }
+
+    /**
+     * Coordinator sends a batch of ABORTs, participant releases all locks.
+     * Answers one acknowledgement per transaction in request order; false ones are sent again.
+     */
+    @PostMapping("/abort-batch")
+    public ResponseEntity<List<Boolean>> abortBatch(@RequestBody List<TransactionMessage> abortMsgs) {
+        logger.info("POST /api/transaction/abort-batch - {} transactions", abortMsgs.size());
+
+        return ResponseEntity.ok(participant.handleAbortBatch(abortMsgs.stream().map(TransactionMessage::getTransactionId).toList()));
+    }
+
     /**
      * Get transaction status (for debugging).
      */
@@ -8,6 +8,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 // manages resource locks for transactions
 // prevents concurrent transactions from modifying the same resources.
@@ -21,60 +22,88 @@ public class ResourceLockManager {
     // map: transactionId -> set of resource ids that have locked it
     private final Map<String, Set<String>> transactionResources = new HashMap<>();
 
+    // a ReentrantLock instead of synchronized, so virtual threads waiting for it unmount instead of pinning their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
     // try to acquire a lock on a resource for a transaction
     // return true if lock acquired, false if already locked by another transaction
-    public synchronized boolean acquireLock(String transactionId, String resourceId) {
-        String currentOwner = resourceLocks.get(resourceId);
-
-        // check if resource is already locked by a different transaction
-        if (currentOwner != null && !currentOwner.equals(transactionId)) {
-            logger.warn("Resource {} already locked by transaction: {}. Cannot lock for {}",
-                    resourceId, currentOwner, transactionId);
-            return false;
-        }
-
-        if (currentOwner != null) {
-            logger.debug("Transaction {} already holds lock on resource {}", transactionId, resourceId);
+    public boolean acquireLock(String transactionId, String resourceId) {
+        lock.lock();
+        try {
+            String currentOwner = resourceLocks.get(resourceId);
+
+            // check if resource is already locked by a different transaction
+            if (currentOwner != null && !currentOwner.equals(transactionId)) {
+                logger.warn("Resource {} already locked by transaction: {}. Cannot lock for {}",
+                        resourceId, currentOwner, transactionId);
+                return false;
+            }
+
+            if (currentOwner != null) {
+                logger.debug("Transaction {} already holds lock on resource {}", transactionId, resourceId);
+                return true;
+            }
+
+            //acquire the lock
+            resourceLocks.put(resourceId, transactionId);
+            // track what this transaction has locked
+            transactionResources.computeIfAbsent(transactionId, k -> new HashSet<>())
+                    .add(resourceId);
+
+            logger.info("Transaction {} acquired lock on resource {}", transactionId, resourceId);
             return true;
+        } finally {
+            lock.unlock();
         }
-
-        //acquire the lock
-        resourceLocks.put(resourceId, transactionId);
-        // track what this transaction has locked
-        transactionResources.computeIfAbsent(transactionId, k -> new HashSet<>())
-                .add(resourceId);
-
-        logger.info("Transaction {} acquired lock on resource {}", transactionId, resourceId);
-        return true;
     }
 
     // release all locks held by a transaction
-    public synchronized void releaseLocks(String transactionId) {
-        Set<String> lockedResources = transactionResources.remove(transactionId);
-
-        if (lockedResources == null || lockedResources.isEmpty()) {
-            logger.debug("No locks to release for transaction {}", transactionId);
-            return;
+    public void releaseLocks(String transactionId) {
+        lock.lock();
+        try {
+            Set<String> lockedResources = transactionResources.remove(transactionId);
+
+            if (lockedResources == null || lockedResources.isEmpty()) {
+                logger.debug("No locks to release for transaction {}", transactionId);
+                return;
+            }
+            for (String resourceId : lockedResources) {
+                resourceLocks.remove(resourceId);
+            }
+
+            logger.info("Released {} locks for transaction {}", lockedResources.size(), transactionId);
+        } finally {
+            lock.unlock();
         }
-        for (String resourceId : lockedResources) {
-            resourceLocks.remove(resourceId);
-        }
-
-        logger.info("Released {} locks for transaction {}", lockedResources.size(), transactionId);
     }
 
     // check if a resource is currently locked
-    public synchronized boolean isLocked(String resourceId) {
-        return resourceLocks.containsKey(resourceId);
+    public boolean isLocked(String resourceId) {
+        lock.lock();
+        try {
+            return resourceLocks.containsKey(resourceId);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // get the transaction that owns the lock
-    public synchronized String lockOwner(String resourceId) {
-        return resourceLocks.get(resourceId);
+    public String lockOwner(String resourceId) {
+        lock.lock();
+        try {
+            return resourceLocks.get(resourceId);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // get all locked resources
     public Map<String, String> getLockedResources() {
-        return new HashMap<>(resourceLocks);
+        lock.lock();
+        try {
+            return new HashMap<>(resourceLocks);
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -1,6 +1,6 @@
 package com.twopc.inventory.service;
 
-import com.twopc.common.log.FileBasedWAL;
+import com.twopc.common.log.WalBatch;
 import com.twopc.common.log.WriteAheadLog;
 import com.twopc.common.model.Transaction;
 import com.twopc.common.protocol.TransactionMessage;
@@ -11,9 +11,18 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 // implements the participant side of the 2pc protocol
 // handles PREPARE, COMMIT, ABORT requests from the coordinator
@@ -24,15 +33,37 @@ public class TransactionParticipant {
     private final InventoryStore inventoryStore;
     private final ResourceLockManager lockManager;
     private final WriteAheadLog wal;
+    // ABORTED is appended without waiting for the disk, see handleAbortBatch
+    private final boolean presumedAbort;
 
     // active transactions in memory
     private final Map<String, Transaction> activeTransactions = new ConcurrentHashMap<>();
 
+    // ids a COMMIT or ABORT is being applied for right now; a redelivery of the same decision that arrives meanwhile
+    // is not applied a second time, the coordinator retries it and then finds it finished
+    private final Set<String> deciding = ConcurrentHashMap.newKeySet();
+    // pause between attempts of abortOvertaken at a claim, the holder is done after about one WAL write
+    private static final long CLAIM_PARK_NANOS = 100_000;
+
+    // ids of recently aborted transactions, so a PREPARE that arrives after its ABORT votes NO instead of locking
+    // the coordinator aborts on the first NO and cancels the other PREPAREs, one may still be on its way
+    // bounded, the oldest are forgotten first; long before that their PREPARE is past the coordinator's timeout
+    private static final int RECENT_ABORTS = 10_000;
+    private final ReentrantLock recentAbortsLock = new ReentrantLock();
+    private final Set<String> recentAborts = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_ABORTS;
+        }
+    });
+
     public TransactionParticipant(InventoryStore inventoryStore, ResourceLockManager lockManager,
-                                  @Value("${inventory.wal.base-dir}") String walBaseDir) {
+                                  WriteAheadLog wal,
+                                  @Value("${inventory.presumed-abort:false}") boolean presumedAbort) {
         this.inventoryStore = inventoryStore;
         this.lockManager = lockManager;
-        this.wal = new FileBasedWAL("inventory-service", walBaseDir);
+        this.wal = wal;
+        this.presumedAbort = presumedAbort;
     }
 
     /**
@@ -45,9 +76,80 @@ public class TransactionParticipant {
      * 4. Vote YES or NO
      * */
     public TransactionMessage handlePrepare(TransactionMessage prepareMsg) {
+        return handlePrepareBatch(List.of(prepareMsg)).get(0);
+    }
+
+    /**
+     * Handle a batch of PREPARE requests from coordinator
+     *
+     * Every transaction is checked, locked and voted on by itself, as in handlePrepare.
+     * The PREPARED states of all transactions about to vote YES are logged with one WAL group write,
+     * and no YES goes out before that write is durable. Votes are returned in request order.
+     * */
+    public List<TransactionMessage> handlePrepareBatch(List<TransactionMessage> prepareMsgs) {
+        TransactionMessage[] votes = new TransactionMessage[prepareMsgs.size()];
+        Map<Integer, Transaction> prepared = new LinkedHashMap<>();
+        for (int i = 0; i < votes.length; i++) {
+            TransactionMessage prepareMsg = prepareMsgs.get(i);
+            Transaction transaction = new Transaction(prepareMsg.getTransactionId());
+            votes[i] = prepare(prepareMsg, transaction);
+            if (votes[i] == null) {
+                prepared.put(i, transaction);
+            }
+        }
+        if (prepared.isEmpty()) {
+            return Arrays.asList(votes);
+        }
+
+        // log PREPARED state to WAL
+        WalBatch batch = WalBatch.create();
+        prepared.values().forEach(batch::write);
+        try {
+            wal.writeBatch(batch);
+        } catch (Exception e) {
+            logger.error("Error logging PREPARED for {} transactions", prepared.size(), e);
+            for (Map.Entry<Integer, Transaction> entry : prepared.entrySet()) {
+                String txnId = entry.getValue().getTransactionId();
+                lockManager.releaseLocks(txnId);
+                votes[entry.getKey()] = TransactionMessage.voteNo(txnId, "inventory-service", "Internal error: " + e.getMessage());
+            }
+            return Arrays.asList(votes);
+        }
+
+        List<String> overtaken = new ArrayList<>();
+        for (Map.Entry<Integer, Transaction> entry : prepared.entrySet()) {
+            Transaction transaction = entry.getValue();
+            String txnId = transaction.getTransactionId();
+
+            // store in memory
+            activeTransactions.put(txnId, transaction);
+            // the ABORT overtook this PREPARE while it was being logged and did not find it yet
+            if (wasAborted(txnId)) {
+                overtaken.add(txnId);
+                votes[entry.getKey()] = TransactionMessage.voteNo(txnId, "inventory-service", "Transaction already aborted");
+                continue;
+            }
+
+            logger.info("[{}] PREPARED - Locked resource {} and logged to WAL", txnId, transaction.getOperationData().get("productId"));
+
+            votes[entry.getKey()] = TransactionMessage.voteYes(txnId, "inventory-service",
+                    prepareMsgs.get(entry.getKey()).getPayload());
+        }
+        overtaken.forEach(this::abortOvertaken);
+        return Arrays.asList(votes);
+    }
+
+    // checks and locks for one PREPARE, leaving the transaction PREPARED but not yet logged
+    // returns null if the transaction can vote YES once it is logged, the NO vote otherwise
+    private TransactionMessage prepare(TransactionMessage prepareMsg, Transaction transaction) {
         String txnId = prepareMsg.getTransactionId();
         logger.info("[{}] Received PREPARE request", txnId);
 
+        if (wasAborted(txnId)) {
+            logger.info("[{}] PREPARE arrived after ABORT", txnId);
+            return TransactionMessage.voteNo(txnId, "inventory-service", "Transaction already aborted");
+        }
+
         try {
             // extract operation data
             Map<String, Object> payload = prepareMsg.getPayload();
@@ -58,8 +160,6 @@ public class TransactionParticipant {
                 return TransactionMessage.voteNo(txnId, "inventory-service", "Invalid request: missing productId or quantity");
             }
 
-            // create a transaction
-            Transaction transaction = new Transaction(txnId);
             transaction.getOperationData().put("productId", productId);
             transaction.getOperationData().put("quantity", quantity);
 
@@ -77,17 +177,9 @@ public class TransactionParticipant {
                 return TransactionMessage.voteNo(txnId, "inventory-service", "Resource already locked");
             }
 
-            // log PREPARED state to WAL
             transaction.setState(TransactionState.PREPARED);
             transaction.getLockedResources().add(resourceId);
-            wal.writeLog(transaction);
-
-            // store in memory
-            activeTransactions.put(txnId, transaction);
-
-            logger.info("[{}] PREPARED - Locked resource {} and logged to WAL", txnId, resourceId);
-
-            return TransactionMessage.voteYes(txnId, "inventory-service", prepareMsg.getPayload());
+            return null;
         } catch (Exception e) {
             logger.error("[{}] Error during PREPARE", txnId, e);
             lockManager.releaseLocks(txnId);
@@ -102,41 +194,99 @@ public class TransactionParticipant {
      * 1. apply the inventory changes
      * 2. log COMMITTED state to wal
      * 3. release locks
+     *
+     * Returns whether the COMMIT is durable here; if not, the coordinator sends it again.
      * */
-    public void handleCommit(String txnId) {
-        logger.info("[{}] Received COMMIT request", txnId);
+    public boolean handleCommit(String txnId) {
+        return handleCommitBatch(List.of(txnId)).get(0);
+    }
 
-        Transaction transaction = activeTransactions.get(txnId);
-        if (transaction == null) {
-            // try to load from wal
-            Optional<Transaction> walTxn = wal.readLog(txnId);
-            if (walTxn.isEmpty()) {
-                logger.warn("[{}] Transaction not found in memory or wal", txnId);
-                return;
-            }
-            transaction = walTxn.get();
+    /**
+     * Handle a batch of COMMIT requests from coordinator
+     *
+     * Applies every transaction's changes, then logs all COMMITTED states with one WAL group write.
+     * Locks are only released once that write is durable. Returns one acknowledgement per id, in request order:
+     * true if the transaction is COMMITTED in the WAL (or was never prepared here), false if the coordinator has to retry.
+     * */
+    public List<Boolean> handleCommitBatch(List<String> txnIds) {
+        List<String> claimed = claim(txnIds, "COMMIT");
+        try {
+            Set<String> acked = commit(claimed);
+            return txnIds.stream().map(acked::contains).toList();
+        } finally {
+            claimed.forEach(deciding::remove);
         }
+    }
 
-        try {
-            // apply inventory changes
-            String productId = (String) transaction.getOperationData().get("productId");
-            Integer quantity = (Integer) transaction.getOperationData().get("quantity");
+    private Set<String> commit(List<String> txnIds) {
+        Set<String> acked = new HashSet<>();
+        WalBatch batch = WalBatch.create();
+        List<Transaction> committed = new ArrayList<>();
 
-            inventoryStore.reserveInventory(productId,quantity);
+        for (String txnId : txnIds) {
+            Transaction transaction = findPrepared(txnId);
+            if (transaction == null) {
+                acked.add(txnId);
+                continue;
+            }
+            if (transaction.getState() == TransactionState.ABORTED) {
+                logger.error("[{}] COMMIT for a transaction that was ABORTED", txnId);
+                continue;
+            }
+            if (transaction.getState() == TransactionState.COMMITTED) {
+                if (!activeTransactions.containsKey(txnId)) {
+                    // a redelivery of a COMMIT that was applied and logged, only its acknowledgement got lost
+                    logger.info("[{}] Already COMMITTED", txnId);
+                    acked.add(txnId);
+                    continue;
+                }
+                // applied, but logging it failed last time: only the write is repeated
+            } else {
+                try {
+                    // the state moves before anything is applied, a COMMIT that finds it COMMITTED never applies it again
+                    transaction.setState(TransactionState.COMMITTED);
+                    // held in memory until COMMITTED is logged, the WAL still says PREPARED
+                    activeTransactions.put(txnId, transaction);
+
+                    // apply inventory changes
+                    String productId = (String) transaction.getOperationData().get("productId");
+                    Integer quantity = (Integer) transaction.getOperationData().get("quantity");
 
-            // log committed state
-            transaction.setState(TransactionState.COMMITTED);
-            wal.writeLog(transaction);
+                    inventoryStore.reserveInventory(productId,quantity);
+                } catch (Exception e) {
+                    logger.error("[{}] Error during COMMIT", txnId, e);
+                    // nothing was reserved, the next COMMIT starts over from the PREPARED record; the locks stay
+                    activeTransactions.remove(txnId);
+                    continue;
+                }
+            }
+            // nothing left to recover for this transaction once its outcome is logged
+            batch.transition(transaction).acknowledge(txnId);
+            committed.add(transaction);
+        }
+        if (committed.isEmpty()) {
+            return acked;
+        }
 
-            logger.info("[{}] COMMITTED - Reserved {} units of {}", txnId, quantity, productId);
+        try {
+            // log committed states
+            wal.writeBatch(batch);
         } catch (Exception e) {
-            logger.error("[{}] Error during COMMIT", txnId, e);
-            // in a real system, there should be a retry logic
-        } finally {
+            // applied but not durable: the locks and the in-memory COMMITTED stay until a redelivered COMMIT logs it
+            logger.error("Error logging COMMIT for {} transactions", committed.size(), e);
+            return acked;
+        }
+
+        for (Transaction transaction : committed) {
+            String txnId = transaction.getTransactionId();
+            logger.info("[{}] COMMITTED - Reserved {} units of {}", txnId,
+                    transaction.getOperationData().get("quantity"), transaction.getOperationData().get("productId"));
             // release locks
             lockManager.releaseLocks(txnId);
             activeTransactions.remove(txnId);
+            acked.add(txnId);
         }
+        return acked;
     }
 
     /**
@@ -145,30 +295,151 @@ public class TransactionParticipant {
      * Steps:
      * 1. Log ABORTED state to wal
      * 2. Release lock (no inventory changes needed)
+     *
+     * Returns whether the ABORT is done here; if not, the coordinator sends it again.
      * */
-    public void handleAbort(String txnId) {
+    public boolean handleAbort(String txnId) {
+        return handleAbortBatch(List.of(txnId)).get(0);
+    }
 
-        logger.info("[{}] Received ABORT request", txnId);
-        Transaction transaction = activeTransactions.get(txnId);
-        if (transaction == null) {
-            Optional<Transaction> walTxn = wal.readLog(txnId);
-            if (walTxn.isEmpty()) {
-                logger.warn("[{}] Transaction not found in memory or wal", txnId);
-                return;
+    /**
+     * Handle a batch of ABORT requests from coordinator
+     *
+     * Logs all ABORTED states with one WAL group write, then releases every lock.
+     * With presumed abort the write is not waited for: if it is lost in a crash, the transaction
+     * comes back PREPARED, and DecisionInquiry asks the coordinator about it once it has been PREPARED
+     * for inquiry.prepared-timeout-seconds; having no record of it, the coordinator answers ABORTED.
+     * Returns one acknowledgement per id, in request order, as handleCommitBatch does.
+     * */
+    public List<Boolean> handleAbortBatch(List<String> txnIds) {
+        // before the claim, a PREPARE racing with this ABORT either is found by abort() or sees the id
+        txnIds.forEach(this::markAborted);
+        List<String> claimed = claim(txnIds, "ABORT");
+        try {
+            Set<String> acked = abort(claimed);
+            return txnIds.stream().map(acked::contains).toList();
+        } finally {
+            claimed.forEach(deciding::remove);
+        }
+    }
+
+    private Set<String> abort(List<String> txnIds) {
+        Set<String> acked = new HashSet<>();
+        WalBatch batch = WalBatch.create();
+        List<String> finished = new ArrayList<>();
+
+        for (String txnId : txnIds) {
+            Transaction transaction = findPrepared(txnId);
+            if (transaction == null || transaction.getState() == TransactionState.ABORTED) {
+                acked.add(txnId);
+                continue;
             }
-            transaction = walTxn.get();
+
+            try {
+                transaction.setState(TransactionState.ABORTED);
+            } catch (Exception e) {
+                logger.error("[{}] Error during ABORT", txnId, e);
+                continue;
+            }
+            batch.transition(transaction).acknowledge(txnId);
+            finished.add(txnId);
+        }
+        if (finished.isEmpty()) {
+            return acked;
         }
 
         try {
-            // log aborted state
-            transaction.setState(TransactionState.ABORTED);
-            wal.writeLog(transaction);
+            // log aborted states
+            if (presumedAbort) {
+                wal.appendBatchAsync(batch).whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        logger.warn("Lazy ABORTED write for {} failed", finished, error);
+                    }
+                });
+            } else {
+                wal.writeBatch(batch);
+            }
 
-            logger.info("[{}] ABORTED - No changes applied", txnId);
+            finished.forEach(txnId -> logger.info("[{}] ABORTED - No changes applied", txnId));
+            acked.addAll(finished);
+        } catch (Exception e) {
+            // nothing was applied, so the locks can go; the redelivered ABORT finds PREPARED in the WAL and logs it
+            logger.error("Error logging ABORT for {} transactions", finished.size(), e);
         } finally {
-            lockManager.releaseLocks(txnId);
-            activeTransactions.remove(txnId);
+            for (String txnId : finished) {
+                lockManager.releaseLocks(txnId);
+                activeTransactions.remove(txnId);
+            }
+        }
+        return acked;
+    }
+
+    // the ABORT that overtook the PREPARE can still hold the claim, after it found nothing to abort or after it already
+    // removed the transaction from memory, which the PREPARE then put back; skipping the id like a redelivered
+    // decision would leave it PREPARED with its locks, so this waits for the claim
+    // no COMMIT can hold it, this participant never voted YES; one id at a time, so two of these never wait on each other
+    private void abortOvertaken(String txnId) {
+        while (!deciding.add(txnId)) {
+            LockSupport.parkNanos(CLAIM_PARK_NANOS);
+        }
+        try {
+            abort(List.of(txnId));
+        } finally {
+            deciding.remove(txnId);
+        }
+    }
+
+    // the ids no other COMMIT or ABORT is being applied for, now reserved for this one until it is done
+    private List<String> claim(List<String> txnIds, String decision) {
+        List<String> claimed = new ArrayList<>(txnIds.size());
+        for (String txnId : txnIds) {
+            logger.info("[{}] Received {} request", txnId, decision);
+            if (deciding.add(txnId)) {
+                claimed.add(txnId);
+            } else {
+                logger.info("[{}] A decision is already being applied, {} skipped", txnId, decision);
+            }
+        }
+        return claimed;
+    }
+
+    private void markAborted(String txnId) {
+        recentAbortsLock.lock();
+        try {
+            recentAborts.add(txnId);
+        } finally {
+            recentAbortsLock.unlock();
+        }
+    }
+
+    private boolean wasAborted(String txnId) {
+        recentAbortsLock.lock();
+        try {
+            return recentAborts.contains(txnId);
+        } finally {
+            recentAbortsLock.unlock();
+        }
+    }
+
+    // the prepared transaction from memory, or from the wal after a restart; null if there is nothing to finish
+    private Transaction findPrepared(String txnId) {
+        Transaction transaction = activeTransactions.get(txnId);
+        if (transaction != null) {
+            return transaction;
+        }
+        // a definite miss of the WAL's bloom filter, nothing was ever prepared here under this id
+        // e.g. this participant voted NO before logging anything, so there is nothing to undo
+        if (!wal.mightContain(txnId)) {
+            logger.info("[{}] Transaction was never prepared here", txnId);
+            return null;
+        }
+        // try to load from wal
+        Optional<Transaction> walTxn = wal.readLog(txnId);
+        if (walTxn.isEmpty()) {
+            logger.warn("[{}] Transaction not found in memory or wal", txnId);
+            return null;
         }
+        return walTxn.get();
     }
 
     // get transaction status for admin/debugging
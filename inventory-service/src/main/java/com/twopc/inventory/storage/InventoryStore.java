@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Component
 public class InventoryStore {
@@ -19,6 +20,9 @@ public class InventoryStore {
 
     private final Map<String, Product> products = new ConcurrentHashMap<>();
 
+    // makes check-and-update of a quantity atomic, a lock rather than synchronized so it is virtual-thread friendly
+    private final ReentrantLock lock = new ReentrantLock();
+
     public void initializeProducts(List<Product> initialProducts) {
         for (Product product : initialProducts) {
             products.put(product.getProductId(), product);
@@ -43,33 +47,43 @@ public class InventoryStore {
 
     // reserve inventory (decrease quantity)
     // called during commit phase
-    public synchronized void reserveInventory(String productId, int quantity) {
-        Product product = products.get(productId);
-        if (product == null) {
-            throw new IllegalStateException("Product not found: " + productId);
-        }
+    public void reserveInventory(String productId, int quantity) {
+        lock.lock();
+        try {
+            Product product = products.get(productId);
+            if (product == null) {
+                throw new IllegalStateException("Product not found: " + productId);
+            }
 
-        if (product.getQuantity() < quantity) {
-            throw new IllegalStateException(
-                    String.format("Insufficient inventory for %s. Available: %d, Requested: %d",
-                            productId, product.getQuantity(), quantity)
-            );
-        }
+            if (product.getQuantity() < quantity) {
+                throw new IllegalStateException(
+                        String.format("Insufficient inventory for %s. Available: %d, Requested: %d",
+                                productId, product.getQuantity(), quantity)
+                );
+            }
 
-        product.setQuantity(product.getQuantity() - quantity);
-        logger.info("Reserved {} units of {}. Remaining: {}", quantity, productId, product.getQuantity());
+            product.setQuantity(product.getQuantity() - quantity);
+            logger.info("Reserved {} units of {}. Remaining: {}", quantity, productId, product.getQuantity());
+        } finally {
+            lock.unlock();
+        }
     }
 
     // release inventory (increase quantity back)
     // called during ABORT phase
-    public synchronized void releaseInventory(String productId, int quantity) {
-        Product product = products.get(productId);
-        if (product == null) {
-            throw new IllegalStateException("Product not found: " + productId);
-        }
+    public void releaseInventory(String productId, int quantity) {
+        lock.lock();
+        try {
+            Product product = products.get(productId);
+            if (product == null) {
+                throw new IllegalStateException("Product not found: " + productId);
+            }
 
-        product.setQuantity(product.getQuantity() + quantity);
-        logger.info("Released {} units of {}. New Quantity: {}", quantity, productId, product.getQuantity());
+            product.setQuantity(product.getQuantity() + quantity);
+            logger.info("Released {} units of {}. New Quantity: {}", quantity, productId, product.getQuantity());
+        } finally {
+            lock.unlock();
+        }
     }
 
     // get all products (for admin/debugging)
@@ -0,0 +1,128 @@
+package com.twopc.inventory.service;
+
+import com.sun.net.httpserver.HttpServer;
+import com.twopc.common.log.WalOptions;
+import com.twopc.common.log.WriteAheadLog;
+import com.twopc.common.model.Product;
+import com.twopc.common.protocol.MessageType;
+import com.twopc.common.protocol.TransactionMessage;
+import com.twopc.common.protocol.TransactionState;
+import com.twopc.inventory.storage.InventoryStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DecisionInquiryTest {
+    @TempDir
+    Path walDir;
+
+    private InventoryStore store;
+    private ResourceLockManager lockManager;
+    private WriteAheadLog wal;
+    private TransactionParticipant participant;
+    // transaction id -> state the fake coordinator answers with, no entry answers 404
+    private final Map<String, String> decisions = new ConcurrentHashMap<>();
+    private HttpServer coordinator;
+    private DecisionInquiry inquiry;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = new InventoryStore();
+        store.initializeProducts(List.of(new Product("P1", "Laptop", 10, 999.0)));
+        lockManager = new ResourceLockManager();
+        WalOptions options = new WalOptions();
+        options.setBaseDir(walDir.toString());
+        options.setSegmentSizeBytes(1 << 20);
+        wal = WriteAheadLog.open("inventory-service", options);
+        participant = new TransactionParticipant(store, lockManager, wal, false);
+
+        coordinator = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        coordinator.createContext("/api/orders/transaction/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            String txnId = path.substring(path.lastIndexOf('/') + 1);
+            String state = decisions.get(txnId);
+            if (state == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                byte[] body = ("{\"transactionId\":\"" + txnId + "\",\"state\":\"" + state + "\"}")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        coordinator.start();
+        // no schedule and no timeout, every PREPARED transaction is asked about when the test calls inquire
+        inquiry = new DecisionInquiry(participant, wal,
+                "http://localhost:" + coordinator.getAddress().getPort(), 0, 0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        inquiry.close();
+        coordinator.stop(0);
+        wal.close();
+    }
+
+    @Test
+    void presumedAbortAnswerReleasesLocks() {
+        prepare("TXN-1", 3);
+        decisions.put("TXN-1", "ABORTED");
+
+        inquiry.inquire();
+
+        assertFalse(lockManager.isLocked("P1"));
+        assertEquals(10, quantity());
+        assertEquals(TransactionState.ABORTED, participant.getTransaction("TXN-1").orElseThrow().getState());
+    }
+
+    @Test
+    void committedAnswerAppliesCommit() {
+        prepare("TXN-1", 3);
+        decisions.put("TXN-1", "COMMITTED");
+
+        inquiry.inquire();
+        inquiry.inquire();
+
+        assertFalse(lockManager.isLocked("P1"));
+        assertEquals(7, quantity());
+        assertEquals(1L, inquiry.getStats().get("committed"));
+    }
+
+    @Test
+    void undecidedTransactionStaysPrepared() {
+        prepare("TXN-1", 3);
+
+        // unknown to the coordinator, then still in flight there
+        inquiry.inquire();
+        decisions.put("TXN-1", "PREPARING");
+        inquiry.inquire();
+
+        assertTrue(lockManager.isLocked("P1"));
+        assertEquals(TransactionState.PREPARED, participant.getTransaction("TXN-1").orElseThrow().getState());
+        assertEquals(2L, inquiry.getStats().get("unresolved"));
+    }
+
+    private void prepare(String txnId, int quantity) {
+        TransactionMessage vote = participant.handlePrepare(TransactionMessage.prepare(txnId, "coordinator",
+                Map.of("productId", "P1", "quantity", quantity)));
+        assertEquals(MessageType.VOTE_YES, vote.getMessageType());
+    }
+
+    private int quantity() {
+        return store.getProduct("P1").orElseThrow().getQuantity();
+    }
+}
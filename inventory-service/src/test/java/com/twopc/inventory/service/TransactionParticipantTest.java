@@ -0,0 +1,220 @@
+package com.twopc.inventory.service;
+
+import com.twopc.common.log.WalOptions;
+import com.twopc.common.log.WriteAheadLog;
+import com.twopc.common.model.Product;
+import com.twopc.common.protocol.MessageType;
+import com.twopc.common.protocol.TransactionMessage;
+import com.twopc.common.protocol.TransactionState;
+import com.twopc.inventory.storage.InventoryStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransactionParticipantTest {
+    @TempDir
+    Path walDir;
+
+    private InventoryStore store;
+    private ResourceLockManager lockManager;
+    private WriteAheadLog wal;
+    private TransactionParticipant participant;
+
+    @BeforeEach
+    void setUp() {
+        store = new InventoryStore();
+        store.initializeProducts(List.of(new Product("P1", "Laptop", 10, 999.0)));
+        lockManager = new ResourceLockManager();
+        wal = openWal();
+        participant = new TransactionParticipant(store, lockManager, wal, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        wal.close();
+    }
+
+    @Test
+    void duplicateCommitReservesOnce() {
+        prepare("TXN-1", 3);
+
+        participant.handleCommit("TXN-1");
+        participant.handleCommit("TXN-1");
+
+        assertEquals(7, quantity());
+        assertEquals(TransactionState.COMMITTED, participant.getTransaction("TXN-1").orElseThrow().getState());
+    }
+
+    @Test
+    void commitRedeliveredAfterRestartReservesOnce() {
+        prepare("TXN-1", 3);
+        participant.handleCommit("TXN-1");
+
+        // same store, fresh participant reading the reopened WAL
+        wal.close();
+        wal = openWal();
+        participant = new TransactionParticipant(store, new ResourceLockManager(), wal, false);
+        participant.handleCommitBatch(List.of("TXN-1"));
+
+        assertEquals(7, quantity());
+    }
+
+    @Test
+    void concurrentCommitsReserveOnce() throws Exception {
+        prepare("TXN-1", 3);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> commits = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                commits.add(executor.submit(() -> {
+                    start.await();
+                    participant.handleCommit("TXN-1");
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> commit : commits) {
+                commit.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(7, quantity());
+    }
+
+    @Test
+    void commitIsAcknowledgedAndUnlockedOnlyOnceLogged() {
+        AtomicBoolean failBatchWrites = new AtomicBoolean();
+        participant = new TransactionParticipant(store, lockManager, failingBatchWrites(wal, failBatchWrites), false);
+        prepare("TXN-1", 3);
+
+        failBatchWrites.set(true);
+        assertEquals(List.of(false, true), participant.handleCommitBatch(List.of("TXN-1", "TXN-unknown")));
+        assertTrue(lockManager.isLocked("P1"));
+
+        failBatchWrites.set(false);
+        assertTrue(participant.handleCommit("TXN-1"));
+        assertFalse(lockManager.isLocked("P1"));
+        assertEquals(7, quantity());
+        assertEquals(TransactionState.COMMITTED, wal.readLog("TXN-1").orElseThrow().getState());
+    }
+
+    @Test
+    void prepareOvertakenByAbortIsAbortedEvenWhileTheAbortHoldsTheClaim() throws Exception {
+        CountDownLatch prepareLogging = new CountDownLatch(1);
+        CountDownLatch prepareLogged = new CountDownLatch(1);
+        CountDownLatch abortLooking = new CountDownLatch(1);
+        CountDownLatch abortLooked = new CountDownLatch(1);
+        participant = new TransactionParticipant(store, lockManager,
+                interleaving(wal, prepareLogging, prepareLogged, abortLooking, abortLooked), false);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // the PREPARE is being logged when its ABORT arrives
+            Future<TransactionMessage> vote = executor.submit(() -> participant.handlePrepare(
+                    TransactionMessage.prepare("TXN-1", "coordinator", Map.of("productId", "P1", "quantity", 3))));
+            prepareLogging.await();
+            Future<Boolean> abort = executor.submit(() -> participant.handleAbort("TXN-1"));
+            // the ABORT holds the claim and has found nothing to abort, the PREPARE's write completes meanwhile
+            abortLooking.await();
+            prepareLogged.countDown();
+            // the PREPARE puts the transaction into memory and finds the claim taken
+            try {
+                vote.get(200, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException waitingForTheClaim) {
+                // expected, the PREPARE cannot abort what it logged before the ABORT lets go of the id
+            }
+            abortLooked.countDown();
+
+            assertTrue(abort.get(10, TimeUnit.SECONDS));
+            assertEquals(MessageType.VOTE_NO, vote.get(10, TimeUnit.SECONDS).getMessageType());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // nothing is left PREPARED in memory or holding the product
+        assertEquals(TransactionState.ABORTED, participant.getTransaction("TXN-1").orElseThrow().getState());
+        assertFalse(lockManager.isLocked("P1"));
+        assertEquals(10, quantity());
+    }
+
+    private void prepare(String txnId, int quantity) {
+        TransactionMessage vote = participant.handlePrepare(TransactionMessage.prepare(txnId, "coordinator",
+                Map.of("productId", "P1", "quantity", quantity)));
+        assertEquals(MessageType.VOTE_YES, vote.getMessageType());
+    }
+
+    private int quantity() {
+        return store.getProduct("P1").orElseThrow().getQuantity();
+    }
+
+    // the given WAL, with writeBatch failing while fail is set
+    private static WriteAheadLog failingBatchWrites(WriteAheadLog wal, AtomicBoolean fail) {
+        return (WriteAheadLog) Proxy.newProxyInstance(WriteAheadLog.class.getClassLoader(),
+                new Class<?>[]{WriteAheadLog.class}, (proxy, method, args) -> {
+                    if (fail.get() && method.getName().equals("writeBatch")) {
+                        throw new WriteAheadLog.LogException("Simulated write failure");
+                    }
+                    try {
+                        return method.invoke(wal, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    // the given WAL, with the first writeBatch (the PREPARED record) held until prepareLogged opens, and the
+    // first mightContain (the ABORT looking for the transaction) answered as of its call, but only once abortLooked opens
+    private static WriteAheadLog interleaving(WriteAheadLog wal, CountDownLatch prepareLogging, CountDownLatch prepareLogged,
+                                              CountDownLatch abortLooking, CountDownLatch abortLooked) {
+        AtomicBoolean prepareHeld = new AtomicBoolean();
+        AtomicBoolean abortHeld = new AtomicBoolean();
+        return (WriteAheadLog) Proxy.newProxyInstance(WriteAheadLog.class.getClassLoader(),
+                new Class<?>[]{WriteAheadLog.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("writeBatch") && prepareHeld.compareAndSet(false, true)) {
+                        prepareLogging.countDown();
+                        prepareLogged.await();
+                    }
+                    Object result;
+                    try {
+                        result = method.invoke(wal, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (method.getName().equals("mightContain") && abortHeld.compareAndSet(false, true)) {
+                        abortLooking.countDown();
+                        abortLooked.await();
+                    }
+                    return result;
+                });
+    }
+
+    private WriteAheadLog openWal() {
+        WalOptions options = new WalOptions();
+        options.setBaseDir(walDir.toString());
+        options.setSegmentSizeBytes(1 << 20);
+        return WriteAheadLog.open("inventory-service", options);
+    }
+}
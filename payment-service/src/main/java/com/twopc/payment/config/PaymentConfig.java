@@ -1,5 +1,7 @@
 package com.twopc.payment.config;
 
+import com.twopc.common.log.WalOptions;
+import com.twopc.common.log.WriteAheadLog;
 import com.twopc.payment.model.Account;
 import com.twopc.payment.storage.PaymentStore;
 import org.springframework.boot.CommandLineRunner;
@@ -14,6 +16,7 @@ import java.util.List;
 @ConfigurationProperties(prefix = "payment")
 public class PaymentConfig {
     private List<AccountConfig> accounts = new ArrayList<>();
+    private WalOptions wal = new WalOptions();
 
     public static class AccountConfig {
         private String customerId;
@@ -49,6 +52,19 @@ public class PaymentConfig {
         return accounts;
     }
 
+    public WalOptions getWal() {
+        return wal;
+    }
+
+    public void setWal(WalOptions wal) {
+        this.wal = wal;
+    }
+
+    @Bean
+    public WriteAheadLog writeAheadLog() {
+        return WriteAheadLog.open("payment-service", wal);
+    }
+
     @Bean
     public CommandLineRunner initializeAccounts(PaymentStore paymentStore) {
         return args -> {
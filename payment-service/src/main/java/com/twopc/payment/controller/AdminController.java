@@ -1,5 +1,6 @@
 package com.twopc.payment.controller;
 
+import com.twopc.payment.service.DecisionInquiry;
 import com.twopc.payment.service.ResourceLockManager;
 import com.twopc.payment.storage.PaymentStore;
 import org.slf4j.Logger;
@@ -19,10 +20,13 @@ public class AdminController {
 
     private final PaymentStore paymentStore;
     private final ResourceLockManager lockManager;
+    private final DecisionInquiry decisionInquiry;
 
-    public AdminController(PaymentStore paymentStore, ResourceLockManager lockManager) {
+    public AdminController(PaymentStore paymentStore, ResourceLockManager lockManager,
+                           DecisionInquiry decisionInquiry) {
         this.paymentStore = paymentStore;
         this.lockManager = lockManager;
+        this.decisionInquiry = decisionInquiry;
     }
 
     @GetMapping("/accounts")
@@ -39,6 +43,11 @@ public class AdminController {
         ));
     }
 
+    @GetMapping("/inquiry/stats")
+    public ResponseEntity<Map<String, Object>> getInquiryStats() {
+        return ResponseEntity.ok(decisionInquiry.getStats());
+    }
+
     @PostMapping("/crash")
     public ResponseEntity<Map<String, String>> crash() {
         logger.warn("CRASH endpoint called - simulating service crash");
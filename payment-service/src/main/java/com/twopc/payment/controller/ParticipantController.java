@@ -3,9 +3,12 @@ import com.twopc.common.protocol.TransactionMessage;
 import com.twopc.payment.service.TransactionParticipant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
+
 @RestController
 @RequestMapping("/api/transaction")
 public class ParticipantController {
@@ -31,7 +34,10 @@ public class ParticipantController {
         logger.info("POST /api/transaction/commit - Transaction: {}",
                 commitMsg.getTransactionId());
 
-        participant.handleCommit(commitMsg.getTransactionId());
+        if (!participant.handleCommit(commitMsg.getTransactionId())) {
+            // not done here yet, the coordinator keeps the decision and sends it again
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
         return ResponseEntity.ok().build();
     }
 
@@ -40,10 +46,34 @@ public class ParticipantController {
         logger.info("POST /api/transaction/abort - Transaction: {}",
                 abortMsg.getTransactionId());
 
-        participant.handleAbort(abortMsg.getTransactionId());
+        if (!participant.handleAbort(abortMsg.getTransactionId())) {
+            // not done here yet, the coordinator keeps the decision and sends it again
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
         return ResponseEntity.ok().build();
     }
 
+    @PostMapping("/prepare-batch")
+    public ResponseEntity<List<TransactionMessage>> prepareBatch(@RequestBody List<TransactionMessage> prepareMsgs) {
+        logger.info("POST /api/transaction/prepare-batch - {} transactions", prepareMsgs.size());
+
+        return ResponseEntity.ok(participant.handlePrepareBatch(prepareMsgs));
+    }
+
+    @PostMapping("/commit-batch")
+    public ResponseEntity<List<Boolean>> commitBatch(@RequestBody List<TransactionMessage> commitMsgs) {
+        logger.info("POST /api/transaction/commit-batch - {} transactions", commitMsgs.size());
+
+        return ResponseEntity.ok(participant.handleCommitBatch(commitMsgs.stream().map(TransactionMessage::getTransactionId).toList()));
+    }
+
+    @PostMapping("/abort-batch")
+    public ResponseEntity<List<Boolean>> abortBatch(@RequestBody List<TransactionMessage> abortMsgs) {
+        logger.info("POST /api/transaction/abort-batch - {} transactions", abortMsgs.size());
+
+        return ResponseEntity.ok(participant.handleAbortBatch(abortMsgs.stream().map(TransactionMessage::getTransactionId).toList()));
+    }
+
     @GetMapping("/{txnId}/status")
     public ResponseEntity<Object> getStatus(@PathVariable String txnId) {
         return participant.getTransaction(txnId)
@@ -0,0 +1,174 @@
+package com.twopc.payment.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.twopc.common.log.TransactionCursor;
+import com.twopc.common.log.WalQuery;
+import com.twopc.common.log.WriteAheadLog;
+import com.twopc.common.protocol.TransactionState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// asks the coordinator for the outcome of transactions that stayed PREPARED too long, and applies it
+// a COMMIT or ABORT can get lost: the coordinator crashed before it logged or sent a decision (under presumed abort
+// nothing is logged before COMMITTED, so its recovery has no ABORT to send), or it gave up delivering it
+// the coordinator answers from its in-flight table and WAL, and with presumed abort ABORTED for an id it never logged
+// an unknown id (404) or a transaction still PREPARING is asked about again on the next pass, its locks stay
+@Component
+public class DecisionInquiry implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DecisionInquiry.class);
+
+    private final TransactionParticipant participant;
+    private final WriteAheadLog wal;
+    private final String coordinatorUrl;
+    private final long preparedTimeoutSeconds;
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong inquiries = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong aborted = new AtomicLong();
+    private final AtomicLong unresolved = new AtomicLong();
+
+    public DecisionInquiry(
+            TransactionParticipant participant,
+            WriteAheadLog wal,
+            @Value("${payment.coordinator-url:http://localhost:8080}") String coordinatorUrl,
+            @Value("${payment.inquiry.interval-seconds:10}") long intervalSeconds,
+            @Value("${payment.inquiry.prepared-timeout-seconds:30}") long preparedTimeoutSeconds) {
+        this.participant = participant;
+        this.wal = wal;
+        this.coordinatorUrl = coordinatorUrl;
+        // well past the coordinator's prepare timeout, a transaction younger than this is still being decided
+        this.preparedTimeoutSeconds = Math.max(0, preparedTimeoutSeconds);
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "decision-inquiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 0 disables the inquiry, PREPARED transactions then wait for the coordinator to send the decision
+        if (intervalSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(this::inquireQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // one pass over every transaction that is PREPARED in the WAL and older than the timeout
+    public void inquire() {
+        LocalDateTime cutoff = LocalDateTime.now().minusSeconds(preparedTimeoutSeconds);
+        List<String> txnIds = new ArrayList<>();
+        try (TransactionCursor cursor = wal.query(WalQuery.all()
+                .state(TransactionState.PREPARED)
+                .unsettled()
+                .updatedBetween(null, cutoff))) {
+            cursor.forEachRemaining(transaction -> txnIds.add(transaction.getTransactionId()));
+        }
+        if (txnIds.isEmpty()) {
+            return;
+        }
+        logger.info("Asking the coordinator about {} transaction(s) PREPARED for over {}s", txnIds.size(), preparedTimeoutSeconds);
+
+        List<String> toCommit = new ArrayList<>();
+        List<String> toAbort = new ArrayList<>();
+        for (String txnId : txnIds) {
+            inquiries.incrementAndGet();
+            TransactionState decision = askCoordinator(txnId);
+            if (decision == TransactionState.COMMITTED) {
+                toCommit.add(txnId);
+            } else if (decision == TransactionState.ABORTED) {
+                toAbort.add(txnId);
+            } else {
+                unresolved.incrementAndGet();
+            }
+        }
+        if (!toCommit.isEmpty()) {
+            count(participant.handleCommitBatch(toCommit), committed);
+        }
+        if (!toAbort.isEmpty()) {
+            count(participant.handleAbortBatch(toAbort), aborted);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("coordinatorUrl", coordinatorUrl);
+        stats.put("preparedTimeoutSeconds", preparedTimeoutSeconds);
+        stats.put("inquiries", inquiries.get());
+        stats.put("committed", committed.get());
+        stats.put("aborted", aborted.get());
+        stats.put("unresolved", unresolved.get());
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void inquireQuietly() {
+        try {
+            inquire();
+        } catch (Exception e) {
+            logger.error("Decision inquiry failed", e);
+        }
+    }
+
+    // the decided state, or null while the coordinator does not know the outcome (yet)
+    private TransactionState askCoordinator(String txnId) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(coordinatorUrl + "/api/orders/transaction/" + txnId))
+                .timeout(Duration.ofSeconds(5))
+                .GET()
+                .build();
+        try {
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 404) {
+                logger.warn("[{}] Coordinator has no record of the transaction, it stays PREPARED", txnId);
+                return null;
+            }
+            if (response.statusCode() != 200) {
+                logger.warn("[{}] Coordinator answered {} to the inquiry", txnId, response.statusCode());
+                return null;
+            }
+            JsonNode state = objectMapper.readTree(response.body()).get("state");
+            TransactionState decision = state == null ? null : TransactionState.valueOf(state.asText());
+            if (decision == null || !decision.isTerminalState()) {
+                logger.info("[{}] Coordinator has not decided yet ({})", txnId, decision);
+                return null;
+            }
+            logger.info("[{}] Coordinator decided {}", txnId, decision);
+            return decision;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            logger.warn("[{}] Inquiry at the coordinator failed: {}", txnId, e.getMessage());
+            return null;
+        }
+    }
+
+    // acknowledged means the decision is logged here and the locks are gone
+    private static void count(List<Boolean> acks, AtomicLong counter) {
+        counter.addAndGet(acks.stream().filter(Boolean::booleanValue).count());
+    }
+}
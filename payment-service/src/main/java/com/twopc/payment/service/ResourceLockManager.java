@@ -6,6 +6,7 @@ import org.springframework.stereotype.Component;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 // manages resource locks for transactions
 // Prevents concurrent transactions from modifying the same accounts
@@ -17,52 +18,80 @@ public class ResourceLockManager {
 
     private final Map<String, String> transactionResources = new HashMap<>();
 
+    // guards both maps, waiting virtual threads park on it rather than pin their carrier as on a monitor
+    private final ReentrantLock lock = new ReentrantLock();
+
     // try to acquire lock on a customer account for a transaction
-    public synchronized boolean acquireLock(String transactionId, String resourceId) {
-        String currentOwner = resourceLocks.get(resourceId);
+    public boolean acquireLock(String transactionId, String resourceId) {
+        lock.lock();
+        try {
+            String currentOwner = resourceLocks.get(resourceId);
 
-        if (currentOwner != null && !currentOwner.equals(transactionId)) {
-            logger.warn("Resource {} already locked by transaction {}. Cannot lock for transaction {}", resourceId, currentOwner, transactionId);
-            return false;
-        }
+            if (currentOwner != null && !currentOwner.equals(transactionId)) {
+                logger.warn("Resource {} already locked by transaction {}. Cannot lock for transaction {}", resourceId, currentOwner, transactionId);
+                return false;
+            }
 
-        if (currentOwner != null && currentOwner.equals(transactionId)) {
-            logger.debug("Transaction {} already holds lock on resource {}", transactionId, resourceId);
-            return true;
-        }
+            if (currentOwner != null && currentOwner.equals(transactionId)) {
+                logger.debug("Transaction {} already holds lock on resource {}", transactionId, resourceId);
+                return true;
+            }
 
-        resourceLocks.put(resourceId, transactionId);
-        transactionResources.put(transactionId, resourceId);
+            resourceLocks.put(resourceId, transactionId);
+            transactionResources.put(transactionId, resourceId);
 
-        logger.info("Transaction {} acquired lock on resource {}", transactionId, resourceId);
-        return true;
+            logger.info("Transaction {} acquired lock on resource {}", transactionId, resourceId);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     // release the lock held by a transaction
-    public synchronized void releaseLocks(String transactionId) {
-        String lockedResources = transactionResources.remove(transactionId);
-
-        if (lockedResources == null) {
-            logger.debug("No lock to release for transaction {}", transactionId);
-            return;
+    public void releaseLocks(String transactionId) {
+        lock.lock();
+        try {
+            String lockedResources = transactionResources.remove(transactionId);
+
+            if (lockedResources == null) {
+                logger.debug("No lock to release for transaction {}", transactionId);
+                return;
+            }
+
+            resourceLocks.remove(lockedResources);
+            logger.info("Released lock for transaction {}: {}", transactionId, lockedResources);
+        } finally {
+            lock.unlock();
         }
-
-        resourceLocks.remove(lockedResources);
-        logger.info("Released lock for transaction {}: {}", transactionId, lockedResources);
     }
 
     // check if a resource is currently locked
-    public synchronized boolean isLocked(String resourceId) {
-        return resourceLocks.containsKey(resourceId);
+    public boolean isLocked(String resourceId) {
+        lock.lock();
+        try {
+            return resourceLocks.containsKey(resourceId);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // get the transaction that owns a lock on resource
-    public synchronized String getLockOwner(String resourceId) {
-        return resourceLocks.get(resourceId);
+    public String getLockOwner(String resourceId) {
+        lock.lock();
+        try {
+            return resourceLocks.get(resourceId);
+        } finally {
+            lock.unlock();
+        }
     }
 
     // get all locked resources
-    public synchronized Map<String, String> getResourceLocks() {
-        return new HashMap<>(resourceLocks);
+    public Map<String, String> getResourceLocks() {
+        lock.lock();
+        try {
+            return new HashMap<>(resourceLocks);
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -1,6 +1,6 @@
 package com.twopc.payment.service;
 
-import com.twopc.common.log.FileBasedWAL;
+import com.twopc.common.log.WalBatch;
 import com.twopc.common.log.WriteAheadLog;
 import com.twopc.common.model.Transaction;
 import com.twopc.common.protocol.TransactionMessage;
@@ -11,9 +11,18 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class TransactionParticipant {
@@ -22,20 +31,106 @@ public class TransactionParticipant {
     private final PaymentStore paymentStore;
     private final ResourceLockManager lockManager;
     private final WriteAheadLog wal;
+    // aborts are appended without waiting for the disk, see handleAbortBatch
+    private final boolean presumedAbort;
 
     private final Map<String, Transaction> activeTransactions = new ConcurrentHashMap<>();
 
-    public TransactionParticipant(PaymentStore paymentStore, ResourceLockManager lockManager, @Value("${payment.wal.base-dir}") String wal) {
+    // ids a COMMIT or ABORT is being applied for right now; a redelivery of the same decision that arrives meanwhile
+    // is not applied a second time, the coordinator retries it and then finds it finished
+    private final Set<String> deciding = ConcurrentHashMap.newKeySet();
+    // pause between attempts of abortOvertaken at a claim, the holder is done after about one WAL write
+    private static final long CLAIM_PARK_NANOS = 100_000;
+
+    // ids of recently aborted transactions, so a PREPARE that arrives after its ABORT votes NO instead of locking
+    // the coordinator aborts on the first NO and cancels the other PREPAREs, one may still be on its way
+    // bounded, the oldest are forgotten first; long before that their PREPARE is past the coordinator's timeout
+    private static final int RECENT_ABORTS = 10_000;
+    private final ReentrantLock recentAbortsLock = new ReentrantLock();
+    private final Set<String> recentAborts = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_ABORTS;
+        }
+    });
+
+    public TransactionParticipant(PaymentStore paymentStore, ResourceLockManager lockManager, WriteAheadLog wal,
+                                  @Value("${payment.presumed-abort:false}") boolean presumedAbort) {
         this.paymentStore = paymentStore;
         this.lockManager = lockManager;
-        this.wal = new FileBasedWAL("payment-service", wal);
+        this.wal = wal;
+        this.presumedAbort = presumedAbort;
     }
 
     // handle prepare request from coordinator
     public TransactionMessage handlePrepare(TransactionMessage prepareMsg) {
+        return handlePrepareBatch(List.of(prepareMsg)).get(0);
+    }
+
+    // handle a batch of prepare requests, each transaction gets its own vote, in request order
+    // the prepared states of all transactions voting yes go to the wal as one group write before any vote is returned
+    public List<TransactionMessage> handlePrepareBatch(List<TransactionMessage> prepareMsgs) {
+        TransactionMessage[] votes = new TransactionMessage[prepareMsgs.size()];
+        Map<Integer, Transaction> prepared = new LinkedHashMap<>();
+        for (int i = 0; i < votes.length; i++) {
+            TransactionMessage prepareMsg = prepareMsgs.get(i);
+            Transaction transaction = new Transaction(prepareMsg.getTransactionId());
+            votes[i] = prepare(prepareMsg, transaction);
+            if (votes[i] == null) {
+                prepared.put(i, transaction);
+            }
+        }
+        if (prepared.isEmpty()) {
+            return Arrays.asList(votes);
+        }
+
+        // log prepared state to wal
+        WalBatch batch = WalBatch.create();
+        prepared.values().forEach(batch::write);
+        try {
+            wal.writeBatch(batch);
+        } catch (Exception e) {
+            logger.error("Error logging PREPARED for {} transactions", prepared.size(), e);
+            for (Map.Entry<Integer, Transaction> entry : prepared.entrySet()) {
+                String txnId = entry.getValue().getTransactionId();
+                lockManager.releaseLocks(txnId);
+                votes[entry.getKey()] = TransactionMessage.voteNo(txnId, "payment-service", "Internal error: " + e.getMessage());
+            }
+            return Arrays.asList(votes);
+        }
+
+        List<String> overtaken = new ArrayList<>();
+        for (Map.Entry<Integer, Transaction> entry : prepared.entrySet()) {
+            Transaction transaction = entry.getValue();
+            String txnId = transaction.getTransactionId();
+            activeTransactions.put(txnId, transaction);
+            // the ABORT overtook this PREPARE while it was being logged and did not find it yet
+            if (wasAborted(txnId)) {
+                overtaken.add(txnId);
+                votes[entry.getKey()] = TransactionMessage.voteNo(txnId, "payment-service", "Transaction already aborted");
+                continue;
+            }
+
+            logger.info("[{}] PREPARED - Locked resource {} and logged to WAL", txnId, transaction.getOperationData().get("customerId"));
+
+            votes[entry.getKey()] = TransactionMessage.voteYes(txnId, "payment-service",
+                    prepareMsgs.get(entry.getKey()).getPayload());
+        }
+        overtaken.forEach(this::abortOvertaken);
+        return Arrays.asList(votes);
+    }
+
+    // balance check and lock for one prepare, the transaction is left PREPARED but not logged yet
+    // null if it can vote yes once logged, otherwise the no vote
+    private TransactionMessage prepare(TransactionMessage prepareMsg, Transaction transaction) {
         String txnId = prepareMsg.getTransactionId();
         logger.info("[{}] Received PREPARE request", txnId);
 
+        if (wasAborted(txnId)) {
+            logger.info("[{}] PREPARE arrived after ABORT", txnId);
+            return TransactionMessage.voteNo(txnId, "payment-service", "Transaction already aborted");
+        }
+
         try {
             // extract operation data
             Map<String, Object> payload = prepareMsg.getPayload();
@@ -49,8 +144,6 @@ public class TransactionParticipant {
                 return TransactionMessage.voteNo(txnId, "payment-service", "Invalid request: missing customer id or amount");
             }
 
-            // create a transaction
-            Transaction transaction = new Transaction(txnId);
             transaction.getOperationData().put("customerId", customerId);
             transaction.getOperationData().put("amount", amount);
 
@@ -66,15 +159,9 @@ public class TransactionParticipant {
                 return TransactionMessage.voteNo(txnId, "payment-service", "Resource already locked");
             }
 
-            // log prepared state to wal
             transaction.setState(TransactionState.PREPARED);
             transaction.getLockedResources().add(customerId);
-            wal.writeLog(transaction);
-
-            activeTransactions.put(txnId, transaction);
-
-            logger.info("[{}] PREPARED - Locked resource {} and logged to WAL", txnId, customerId);
-            return TransactionMessage.voteYes(txnId, "payment-service", prepareMsg.getPayload());
+            return null;
         } catch (Exception e) {
             logger.error("[{}] Error during PREPARE", txnId, e);
             lockManager.releaseLocks(txnId);
@@ -82,63 +169,226 @@ public class TransactionParticipant {
         }
     }
 
-    // handle commit request from coordinator
-    public void handleCommit(String txnId) {
-        logger.info("[{}] Received COMMIT request", txnId);
+    // handle commit request from coordinator, returns whether the commit is durable here (if not, it is sent again)
+    public boolean handleCommit(String txnId) {
+        return handleCommitBatch(List.of(txnId)).get(0);
+    }
 
-        Transaction transaction = activeTransactions.get(txnId);
-        if (transaction == null) {
-            Optional<Transaction> walTxn = wal.readLog(txnId);
-            if (walTxn.isEmpty()) {
-                logger.warn("[{}] Transaction not found in memory or WAL", txnId);
-                return;
+    // handle a batch of commit requests, applies every deduction and logs all commits with one wal group write
+    // locks are released only once that write is durable; one acknowledgement per id comes back, in request order,
+    // true if the transaction is COMMITTED in the wal (or was never prepared here), false if the coordinator has to retry
+    public List<Boolean> handleCommitBatch(List<String> txnIds) {
+        List<String> claimed = claim(txnIds, "COMMIT");
+        try {
+            Set<String> acked = commit(claimed);
+            return txnIds.stream().map(acked::contains).toList();
+        } finally {
+            claimed.forEach(deciding::remove);
+        }
+    }
+
+    private Set<String> commit(List<String> txnIds) {
+        Set<String> acked = new HashSet<>();
+        WalBatch batch = WalBatch.create();
+        List<Transaction> committed = new ArrayList<>();
+
+        for (String txnId : txnIds) {
+            Transaction transaction = findPrepared(txnId);
+            if (transaction == null) {
+                acked.add(txnId);
+                continue;
+            }
+            if (transaction.getState() == TransactionState.ABORTED) {
+                logger.error("[{}] COMMIT for a transaction that was ABORTED", txnId);
+                continue;
+            }
+            if (transaction.getState() == TransactionState.COMMITTED) {
+                if (!activeTransactions.containsKey(txnId)) {
+                    // a redelivery of a COMMIT that was applied and logged, only its acknowledgement got lost
+                    logger.info("[{}] Already COMMITTED", txnId);
+                    acked.add(txnId);
+                    continue;
+                }
+                // deducted, but logging it failed last time: only the write is repeated
+            } else {
+                try {
+                    // the state moves before anything is applied, a COMMIT that finds it COMMITTED never applies it again
+                    transaction.setState(TransactionState.COMMITTED);
+                    // held in memory until COMMITTED is logged, the wal still says PREPARED
+                    activeTransactions.put(txnId, transaction);
+
+                    String customerId = (String) transaction.getOperationData().get("customerId");
+                    Double amount = (Double) transaction.getOperationData().get("amount");
+
+                    paymentStore.deductAmount(customerId, amount);
+                } catch (Exception e) {
+                    logger.error("[{}] Error during COMMIT", txnId, e);
+                    // nothing was deducted, the next COMMIT starts over from the PREPARED record; the locks stay
+                    activeTransactions.remove(txnId);
+                    continue;
+                }
             }
-            transaction = walTxn.get();
+            batch.transition(transaction).acknowledge(txnId);
+            committed.add(transaction);
+        }
+        if (committed.isEmpty()) {
+            return acked;
+        }
+
+        try {
+            wal.writeBatch(batch);
+        } catch (Exception e) {
+            // deducted but not durable: the locks and the in-memory COMMITTED stay until a redelivered COMMIT logs it
+            logger.error("Error logging COMMIT for {} transactions", committed.size(), e);
+            return acked;
+        }
+
+        for (Transaction transaction : committed) {
+            String txnId = transaction.getTransactionId();
+            logger.info("[{}] COMMITTED - Deducted {} from {}", txnId,
+                    transaction.getOperationData().get("amount"), transaction.getOperationData().get("customerId"));
+            lockManager.releaseLocks(txnId);
+            activeTransactions.remove(txnId);
+            acked.add(txnId);
         }
+        return acked;
+    }
 
+    // handle abort request from coordinator, returns whether the abort is done here (if not, it is sent again)
+    public boolean handleAbort(String txnId) {
+        return handleAbortBatch(List.of(txnId)).get(0);
+    }
+
+    // handle a batch of abort requests, logs all aborts with one wal group write and releases the locks
+    // with presumed abort the write is not waited for, an abort lost in a crash leaves the transaction PREPARED
+    // until DecisionInquiry asks the coordinator about it, which never logged it and answers ABORTED
+    // one acknowledgement per id comes back, in request order, as from handleCommitBatch
+    public List<Boolean> handleAbortBatch(List<String> txnIds) {
+        // before the claim, a PREPARE racing with this ABORT either is found by abort() or sees the id
+        txnIds.forEach(this::markAborted);
+        List<String> claimed = claim(txnIds, "ABORT");
         try {
-            // apply payment changes
-            String customerId = (String) transaction.getOperationData().get("customerId");
-            Double amount = (Double) transaction.getOperationData().get("amount");
+            Set<String> acked = abort(claimed);
+            return txnIds.stream().map(acked::contains).toList();
+        } finally {
+            claimed.forEach(deciding::remove);
+        }
+    }
 
-            paymentStore.deductAmount(customerId, amount);
+    private Set<String> abort(List<String> txnIds) {
+        Set<String> acked = new HashSet<>();
+        WalBatch batch = WalBatch.create();
+        List<String> finished = new ArrayList<>();
 
-            // log committed state
-            transaction.setState(TransactionState.COMMITTED);
-            wal.writeLog(transaction);
+        for (String txnId : txnIds) {
+            Transaction transaction = findPrepared(txnId);
+            if (transaction == null || transaction.getState() == TransactionState.ABORTED) {
+                acked.add(txnId);
+                continue;
+            }
+
+            try {
+                transaction.setState(TransactionState.ABORTED);
+            } catch (Exception e) {
+                logger.error("[{}] Error during ABORT", txnId, e);
+                continue;
+            }
+            batch.transition(transaction).acknowledge(txnId);
+            finished.add(txnId);
+        }
+        if (finished.isEmpty()) {
+            return acked;
+        }
 
-            logger.info("[{}] COMMITTED - Deducted {} from {}", txnId, amount, customerId);
+        try {
+            if (presumedAbort) {
+                wal.appendBatchAsync(batch).whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        logger.warn("Lazy abort write for {} failed", finished, error);
+                    }
+                });
+            } else {
+                wal.writeBatch(batch);
+            }
+
+            finished.forEach(txnId -> logger.info("[{}] ABORTED - No changes applied", txnId));
+            acked.addAll(finished);
         } catch (Exception e) {
-            logger.error("[{}] Error during COMMIT", txnId, e);
+            // nothing was deducted, so the locks can go; the redelivered ABORT finds PREPARED in the wal and logs it
+            logger.error("Error logging ABORT for {} transactions", finished.size(), e);
         } finally {
-            lockManager.releaseLocks(txnId);
-            activeTransactions.remove(txnId);
+            for (String txnId : finished) {
+                lockManager.releaseLocks(txnId);
+                activeTransactions.remove(txnId);
+            }
         }
+        return acked;
     }
 
-    // handle abort request from coordinator
-    public void handleAbort(String txnId) {
-        logger.info("[{}] Received ABORT request", txnId);
+    // the ABORT that overtook the PREPARE can still hold the claim, after it found nothing to abort or after it already
+    // removed the transaction from memory, which the PREPARE then put back; skipping the id like a redelivered
+    // decision would leave it PREPARED with its locks, so this waits for the claim
+    // no COMMIT can hold it, this participant never voted YES; one id at a time, so two of these never wait on each other
+    private void abortOvertaken(String txnId) {
+        while (!deciding.add(txnId)) {
+            LockSupport.parkNanos(CLAIM_PARK_NANOS);
+        }
+        try {
+            abort(List.of(txnId));
+        } finally {
+            deciding.remove(txnId);
+        }
+    }
 
-        Transaction transaction = activeTransactions.get(txnId);
-        if (transaction == null) {
-            Optional<Transaction> walTxn = wal.readLog(txnId);
-            if (walTxn.isEmpty()) {
-                logger.warn("[{}] Transaction not found in memory or WAL", txnId);
-                return;
+    // the ids no other COMMIT or ABORT is being applied for, now reserved for this one until it is done
+    private List<String> claim(List<String> txnIds, String decision) {
+        List<String> claimed = new ArrayList<>(txnIds.size());
+        for (String txnId : txnIds) {
+            logger.info("[{}] Received {} request", txnId, decision);
+            if (deciding.add(txnId)) {
+                claimed.add(txnId);
+            } else {
+                logger.info("[{}] A decision is already being applied, {} skipped", txnId, decision);
             }
-            transaction = walTxn.get();
         }
+        return claimed;
+    }
 
+    private void markAborted(String txnId) {
+        recentAbortsLock.lock();
         try {
-            transaction.setState(TransactionState.ABORTED);
-            wal.writeLog(transaction);
+            recentAborts.add(txnId);
+        } finally {
+            recentAbortsLock.unlock();
+        }
+    }
 
-            logger.info("[{}] ABORTED - No changes applied", txnId);
+    private boolean wasAborted(String txnId) {
+        recentAbortsLock.lock();
+        try {
+            return recentAborts.contains(txnId);
         } finally {
-            lockManager.releaseLocks(txnId);
-            activeTransactions.remove(txnId);
+            recentAbortsLock.unlock();
+        }
+    }
+
+    // the prepared transaction from memory or, after a restart, from the wal; null if there is nothing to finish
+    private Transaction findPrepared(String txnId) {
+        Transaction transaction = activeTransactions.get(txnId);
+        if (transaction != null) {
+            return transaction;
+        }
+        // a definite miss of the WAL's bloom filter, nothing was ever prepared here under this id
+        if (!wal.mightContain(txnId)) {
+            logger.info("[{}] Transaction was never prepared here", txnId);
+            return null;
+        }
+        Optional<Transaction> walTxn = wal.readLog(txnId);
+        if (walTxn.isEmpty()) {
+            logger.warn("[{}] Transaction not found in memory or WAL", txnId);
+            return null;
         }
+        return walTxn.get();
     }
 
     // get transaction status
@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Component
 public class PaymentStore {
@@ -16,6 +17,9 @@ public class PaymentStore {
 
     private final Map<String, Account> accounts = new ConcurrentHashMap<>();
 
+    // makes check-and-update of a balance atomic, same as InventoryStore
+    private final ReentrantLock lock = new ReentrantLock();
+
     // initialize the store with accounts from configuration
 
     public void initializeAccounts(List<Account> initialAccounts) {
@@ -42,34 +46,44 @@ public class PaymentStore {
 
     // deduct amount from account(decrease balance)
     // called during COMMIT phase
-    public synchronized void deductAmount(String customerId, double amount) {
-        Account account = accounts.get(customerId);
+    public void deductAmount(String customerId, double amount) {
+        lock.lock();
+        try {
+            Account account = accounts.get(customerId);
 
-        if (account == null) {
-            throw new IllegalStateException("Account not found for customerId: " + customerId);
-        }
-        if (!hasSufficientBalance(customerId, amount)) {
-            throw new IllegalStateException(
-                    String.format("Insufficient balance for %s. Available: %.2f, Requested: %.2f", customerId, account.getBalance(), amount)
-            );
+            if (account == null) {
+                throw new IllegalStateException("Account not found for customerId: " + customerId);
+            }
+            if (!hasSufficientBalance(customerId, amount)) {
+                throw new IllegalStateException(
+                        String.format("Insufficient balance for %s. Available: %.2f, Requested: %.2f", customerId, account.getBalance(), amount)
+                );
+            }
+            account.setBalance(account.getBalance() - amount);
+            logger.info("Deducted {} from {}. New balance: {}",
+                    amount, customerId, account.getBalance());
+        } finally {
+            lock.unlock();
         }
-        account.setBalance(account.getBalance() - amount);
-        logger.info("Deducted {} from {}. New balance: {}",
-                amount, customerId, account.getBalance());
     }
 
     // refund amount to account (increase balance)
     // called during ABORT phase
-    public synchronized void refundAmount(String customerId, double amount) {
-        Account account = accounts.get(customerId);
+    public void refundAmount(String customerId, double amount) {
+        lock.lock();
+        try {
+            Account account = accounts.get(customerId);
 
-        if (account == null) {
-            throw new IllegalStateException("Account not found for customerId: " + customerId);
-        }
+            if (account == null) {
+                throw new IllegalStateException("Account not found for customerId: " + customerId);
+            }
 
-        account.setBalance(account.getBalance() + amount);
-        logger.info("Refunded {} to {}. Current balance: {}",
-                amount, customerId, account.getBalance());
+            account.setBalance(account.getBalance() + amount);
+            logger.info("Refunded {} to {}. Current balance: {}",
+                    amount, customerId, account.getBalance());
+        } finally {
+            lock.unlock();
+        }
     }
 
     // get all accounts (for admin/debugging)
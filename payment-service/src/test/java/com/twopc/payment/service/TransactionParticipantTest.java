@@ -0,0 +1,81 @@
+package com.twopc.payment.service;
+
+import com.twopc.common.log.WalOptions;
+import com.twopc.common.log.WriteAheadLog;
+import com.twopc.common.protocol.MessageType;
+import com.twopc.common.protocol.TransactionMessage;
+import com.twopc.payment.model.Account;
+import com.twopc.payment.storage.PaymentStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TransactionParticipantTest {
+    @TempDir
+    Path walDir;
+
+    private PaymentStore store;
+    private WriteAheadLog wal;
+    private TransactionParticipant participant;
+
+    @BeforeEach
+    void setUp() {
+        store = new PaymentStore();
+        store.initializeAccounts(List.of(new Account("C1", "Alice", 100.0)));
+        wal = openWal();
+        participant = new TransactionParticipant(store, new ResourceLockManager(), wal, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        wal.close();
+    }
+
+    @Test
+    void duplicateCommitChargesOnce() {
+        prepare("TXN-1", 25.0);
+
+        participant.handleCommit("TXN-1");
+        participant.handleCommitBatch(List.of("TXN-1", "TXN-1"));
+
+        assertEquals(75.0, balance(), 0.001);
+    }
+
+    @Test
+    void commitRedeliveredAfterRestartChargesOnce() {
+        prepare("TXN-1", 25.0);
+        participant.handleCommit("TXN-1");
+
+        // same accounts, fresh participant reading the reopened WAL
+        wal.close();
+        wal = openWal();
+        participant = new TransactionParticipant(store, new ResourceLockManager(), wal, false);
+        participant.handleCommit("TXN-1");
+
+        assertEquals(75.0, balance(), 0.001);
+    }
+
+    private void prepare(String txnId, double amount) {
+        TransactionMessage vote = participant.handlePrepare(TransactionMessage.prepare(txnId, "coordinator",
+                Map.of("customerId", "C1", "amount", amount)));
+        assertEquals(MessageType.VOTE_YES, vote.getMessageType());
+    }
+
+    private double balance() {
+        return store.getAccount("C1").orElseThrow().getBalance();
+    }
+
+    private WriteAheadLog openWal() {
+        WalOptions options = new WalOptions();
+        options.setBaseDir(walDir.toString());
+        options.setSegmentSizeBytes(1 << 20);
+        return WriteAheadLog.open("payment-service", options);
+    }
+}